@@ -0,0 +1,88 @@
+package bank;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The registry of the split accounts of a database, shared by the connections
+ * of a {@link BankManagerFactory} in split account mode: it tells which
+ * accounts have their balance spread over slots of
+ * <code>ACCOUNT_SLOTS</code>, and how many.
+ * <p>
+ * The registry only routes updates: a manager whose registry is stale still
+ * reads the right balances, and never lets a slot go negative, but may refuse
+ * a withdrawal from an account split by another process until the registry
+ * is reloaded, after at most {@link #REFRESH_PERIOD} ms.
+ */
+class AccountSlots {
+
+    //
+    // CONSTANTS
+    //
+    static final long REFRESH_PERIOD = 5000;
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final Map<Integer, Integer> counts = new ConcurrentHashMap<Integer, Integer>();
+    private volatile long loaded = 0; // time of the last load, 0 if never loaded
+
+    //
+    // REGISTRY
+    //
+
+    /**
+     * Returns true if the registry must be loaded from the database.
+     */
+    boolean isStale() {
+	return System.currentTimeMillis() - loaded > REFRESH_PERIOD;
+    }
+
+    /**
+     * Replaces the content of the registry with the slot counts of the split
+     * accounts.
+     */
+    synchronized void load(Map<Integer, Integer> slots) {
+	counts.keySet().retainAll(slots.keySet());
+	counts.putAll(slots);
+	loaded = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of slots of the specified account, or 0 if it is not
+     * split.
+     */
+    int count(int number) {
+	Integer n = counts.get(number);
+	return n == null ? 0 : n;
+    }
+
+    /**
+     * Records the number of slots of an account, 0 if it is merged.
+     */
+    void set(int number, int slots) {
+	if (slots > 0) {
+	    counts.put(number, slots);
+	} else {
+	    counts.remove(number);
+	}
+    }
+
+    /**
+     * Returns a copy of the registry, by account number.
+     */
+    Map<Integer, Integer> getCounts() {
+	return Collections.unmodifiableMap(new HashMap<Integer, Integer>(counts));
+    }
+
+    /**
+     * Returns a random slot of an account of n slots, so that concurrent
+     * credits spread over the slots.
+     */
+    static int random(int n) {
+	return ThreadLocalRandom.current().nextInt(n);
+    }
+}
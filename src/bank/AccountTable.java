@@ -0,0 +1,145 @@
+package bank;
+
+/**
+ * An in-memory table of account balances, keyed by account number. The table
+ * is split in a fixed number of stripes, each one an open addressing map from
+ * int to double guarded by its own lock: callers synchronize on the stripe of
+ * an account (see {@link #stripe(int)}) before reading or updating it.
+ */
+class AccountTable {
+
+    //
+    // HELPER CLASSES
+    //
+    static class Stripe {
+	final int index; // the stripe's position in the table, for lock ordering
+	private int[] keys;
+	private double[] values;
+	private boolean[] used;
+	private int size = 0;
+
+	Stripe(int index, int capacity) {
+	    this.index = index;
+	    keys = new int[capacity];
+	    values = new double[capacity];
+	    used = new boolean[capacity];
+	}
+
+	// returns the slot of the key, or of the free slot where it belongs
+	private int slot(int key) {
+	    int mask = keys.length - 1;
+	    int i = hash(key) & mask;
+	    while (used[i] && keys[i] != key) {
+		i = (i + 1) & mask;
+	    }
+	    return i;
+	}
+
+	boolean contains(int number) {
+	    return used[slot(number)];
+	}
+
+	/**
+	 * Returns the balance of the account, or <code>Double.NaN</code> if it
+	 * does not exist.
+	 */
+	double get(int number) {
+	    int i = slot(number);
+	    return used[i] ? values[i] : Double.NaN;
+	}
+
+	void put(int number, double balance) {
+	    int i = slot(number);
+	    if (!used[i]) {
+		if (2 * (size + 1) > keys.length) {
+		    grow();
+		    i = slot(number);
+		}
+		used[i] = true;
+		keys[i] = number;
+		size++;
+	    }
+	    values[i] = balance;
+	}
+
+	void clear() {
+	    used = new boolean[keys.length];
+	    size = 0;
+	}
+
+	int size() {
+	    return size;
+	}
+
+	private void grow() {
+	    int[] k = keys;
+	    double[] v = values;
+	    boolean[] u = used;
+	    keys = new int[k.length * 2];
+	    values = new double[k.length * 2];
+	    used = new boolean[k.length * 2];
+	    for (int i = 0; i < k.length; i++) {
+		if (u[i]) {
+		    int j = slot(k[i]);
+		    used[j] = true;
+		    keys[j] = k[i];
+		    values[j] = v[i];
+		}
+	    }
+	}
+    }
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final Stripe[] stripes;
+
+    //
+    // CONSTRUCTOR
+    //
+    AccountTable(int stripeCount) {
+	// at most 256 stripes, indexed by the 8 high bits of the hash
+	int n = Math.min(256, Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1);
+	stripes = new Stripe[n];
+	for (int i = 0; i < n; i++) {
+	    stripes[i] = new Stripe(i, 16);
+	}
+    }
+
+    //
+    // TABLE
+    //
+    static int hash(int key) {
+	int h = key * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the stripe holding the specified account.
+     */
+    Stripe stripe(int number) {
+	// use the high bits, the low ones index slots within the stripe
+	return stripes[(hash(number) >>> 24) & (stripes.length - 1)];
+    }
+
+    /**
+     * Removes all the accounts from the table.
+     */
+    void clear() {
+	for (Stripe s : stripes) {
+	    synchronized (s) {
+		s.clear();
+	    }
+	}
+    }
+
+    int size() {
+	int n = 0;
+	for (Stripe s : stripes) {
+	    synchronized (s) {
+		n += s.size();
+	    }
+	}
+	return n;
+    }
+}
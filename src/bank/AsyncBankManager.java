@@ -0,0 +1,410 @@
+package bank;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * An asynchronous facade of a BankManager: each operation returns at once a
+ * <code>CompletableFuture</code> of its result, so that a caller may have any
+ * number of calls in flight without blocking a thread per call.
+ * <p>
+ * Calls are executed on virtual threads when the JVM provides them (Java 21
+ * and later), and on a pool of as many platform threads as calls may run
+ * concurrently otherwise. In both cases, at most <i>maxConcurrency</i> calls
+ * run at a time, usually the number of connections of the underlying pool:
+ * the others wait for their turn, queued or parked, without holding an OS
+ * thread.
+ * <p>
+ * Each call has a timeout, after which its future completes exceptionally
+ * with a <code>TimeoutException</code>. A call whose future times out or is
+ * cancelled before it runs is not run at all; a call already running on the
+ * database runs to completion, and its result is discarded.
+ * <p>
+ * Once the facade is closed, the calls still waiting for their turn complete
+ * with a <code>CancellationException</code>, and the calls submitted complete
+ * at once with a <code>RejectedExecutionException</code>.
+ */
+public class AsyncBankManager {
+
+    //
+    // CONSTANTS
+    //
+    private static final long DEFAULT_TIMEOUT = 30000; // ms
+
+    //
+    // HELPER CLASSES
+    //
+
+    /**
+     * An operation, or a sequence of operations, run on the underlying manager
+     * by {@link AsyncBankManager#submit(Call, long)}.
+     */
+    public interface Call<T> {
+	T call(BankManager m) throws SQLException;
+    }
+
+    /**
+     * The execution of a call: waits for its turn, then runs it and completes
+     * its future.
+     */
+    private class Task<T> implements Runnable {
+
+	private final Call<T> call;
+	private final CompletableFuture<T> future = new CompletableFuture<T>();
+	private final long deadline;
+	private Thread waiter; // the thread waiting for a permit, if any
+	private Future<?> execution;
+	private ScheduledFuture<?> timer;
+	private boolean finished; // guarded by this
+
+	Task(Call<T> call, long timeoutMillis) {
+	    this.call = call;
+	    this.deadline = System.nanoTime() + timeoutMillis * 1000000;
+	}
+
+	public void run() {
+	    try {
+		if (acquire()) {
+		    try {
+			if (!future.isDone()) {
+			    future.complete(call.call(manager));
+			}
+		    } catch (Throwable t) {
+			future.completeExceptionally(t);
+		    } finally {
+			permits.release();
+		    }
+		}
+	    } finally {
+		finish();
+	    }
+	}
+
+	/**
+	 * Waits for the turn of the call, until its deadline.
+	 *
+	 * @return true if the call may run, false if it timed out or was
+	 *         cancelled
+	 */
+	private boolean acquire() {
+	    synchronized (this) {
+		if (future.isDone()) {
+		    return false;
+		}
+		waiter = Thread.currentThread();
+	    }
+	    boolean acquired = false;
+	    try {
+		acquired = permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	    } catch (InterruptedException e) {
+		// timed out, cancelled or closed while waiting
+	    } finally {
+		synchronized (this) {
+		    waiter = null;
+		}
+		// clear an interrupt delivered as the wait ended
+		Thread.interrupted();
+	    }
+	    if (!acquired) {
+		if (closed) {
+		    cancel();
+		} else {
+		    timeout();
+		}
+	    }
+	    return acquired;
+	}
+
+	private synchronized void finish() {
+	    if (!finished) {
+		finished = true;
+		inFlight.decrementAndGet();
+	    }
+	}
+
+	void timeout() {
+	    future.completeExceptionally(new TimeoutException("call timed out"));
+	}
+
+	/**
+	 * Abandons the call as the facade is closed, unless it is running.
+	 */
+	void cancel() {
+	    future.completeExceptionally(new CancellationException("manager closed"));
+	}
+
+	/**
+	 * Stops the execution of a call that completed, timed out or was
+	 * cancelled, unless it is running on the database.
+	 */
+	synchronized void done() {
+	    if (timer != null) {
+		timer.cancel(false);
+	    }
+	    if (execution != null && execution.cancel(false)) {
+		// never started
+		finish();
+	    }
+	    if (waiter != null) {
+		waiter.interrupt();
+	    }
+	}
+    }
+
+    /**
+     * The execution of a task by the executor, whose task is found back if it
+     * never started.
+     */
+    private static class Execution extends FutureTask<Void> {
+
+	private final Task<?> task;
+
+	Execution(Task<?> task) {
+	    super(task, null);
+	    this.task = task;
+	}
+    }
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManager manager;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final ScheduledExecutorService timers;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile boolean closed = false;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Creates a new facade of a manager of the specified factory, running at
+     * most as many calls at a time as the factory has connections.
+     */
+    public AsyncBankManager(BankManagerFactory f) {
+	this(f.newManager(), f.getMaxConnections());
+    }
+
+    /**
+     * Creates a new facade of the specified manager, which must be thread safe.
+     *
+     * @param m
+     *            the manager executing the calls
+     * @param maxConcurrency
+     *            the maximum number of calls running at a time
+     */
+    public AsyncBankManager(BankManager m, int maxConcurrency) {
+	if (maxConcurrency < 1) {
+	    throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+	}
+	manager = m;
+	permits = new Semaphore(maxConcurrency, true);
+	ExecutorService e = newVirtualThreadExecutor();
+	virtual = e != null;
+	if (e == null) {
+	    ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+		    new LinkedBlockingQueue<Runnable>(), daemonThreads("AsyncBankManager-"));
+	    pool.allowCoreThreadTimeOut(true);
+	    e = pool;
+	}
+	executor = e;
+	timers = Executors.newSingleThreadScheduledExecutor(daemonThreads("AsyncBankManager-timer-"));
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task, or null if the
+     * JVM has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+	try {
+	    Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService) m.invoke(null);
+	} catch (Exception e) {
+	    return null;
+	}
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+	return new ThreadFactory() {
+	    private final AtomicInteger count = new AtomicInteger();
+
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, prefix + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    }
+	};
+    }
+
+    //
+    // ASYNCHRONOUS OPERATIONS
+    //
+
+    /**
+     * Runs the specified call asynchronously.
+     *
+     * @param call
+     *            the call to run on the underlying manager
+     * @param timeoutMillis
+     *            the time after which the call is abandoned, including the
+     *            time waiting for its turn
+     * @return the future of the call's result, failed with a
+     *         <code>RejectedExecutionException</code> if this facade is closed
+     */
+    public <T> CompletableFuture<T> submit(Call<T> call, long timeoutMillis) {
+	if (closed) {
+	    CompletableFuture<T> f = new CompletableFuture<T>();
+	    f.completeExceptionally(new RejectedExecutionException("manager closed"));
+	    return f;
+	}
+	final Task<T> task = new Task<T>(call, timeoutMillis);
+	inFlight.incrementAndGet();
+	synchronized (task) {
+	    Execution e = new Execution(task);
+	    task.execution = e;
+	    try {
+		executor.execute(e);
+		task.timer = timers.schedule(new Runnable() {
+		    public void run() {
+			task.timeout();
+		    }
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+	    } catch (RejectedExecutionException x) {
+		// closed meanwhile
+		task.cancel();
+		task.finish();
+	    }
+	}
+	task.future.whenComplete(new BiConsumer<T, Throwable>() {
+	    public void accept(T t, Throwable u) {
+		task.done();
+	    }
+	});
+	return task.future;
+    }
+
+    public CompletableFuture<Void> createDB() {
+	return submit(new Call<Void>() {
+	    public Void call(BankManager m) throws SQLException {
+		m.createDB();
+		return null;
+	    }
+	}, timeout);
+    }
+
+    public CompletableFuture<Boolean> createAccount(final int number) {
+	return submit(new Call<Boolean>() {
+	    public Boolean call(BankManager m) throws SQLException {
+		return m.createAccount(number);
+	    }
+	}, timeout);
+    }
+
+    public CompletableFuture<Double> getBalance(final int number) {
+	return submit(new Call<Double>() {
+	    public Double call(BankManager m) throws SQLException {
+		return m.getBalance(number);
+	    }
+	}, timeout);
+    }
+
+    public CompletableFuture<Double> addBalance(final int number, final double amount) {
+	return submit(new Call<Double>() {
+	    public Double call(BankManager m) throws SQLException {
+		return m.addBalance(number, amount);
+	    }
+	}, timeout);
+    }
+
+    public CompletableFuture<Boolean> transfer(final int from, final int to, final double amount) {
+	return submit(new Call<Boolean>() {
+	    public Boolean call(BankManager m) throws SQLException {
+		return m.transfer(from, to, amount);
+	    }
+	}, timeout);
+    }
+
+    public CompletableFuture<List<Operation>> getOperations(final int number, final Date from, final Date to) {
+	return submit(new Call<List<Operation>>() {
+	    public List<Operation> call(BankManager m) throws SQLException {
+		return m.getOperations(number, from, to);
+	    }
+	}, timeout);
+    }
+
+    //
+    // ACCESSORS
+    //
+
+    /**
+     * Returns true if calls run on virtual threads.
+     */
+    public boolean isVirtual() {
+	return virtual;
+    }
+
+    /**
+     * Returns the number of calls submitted and not yet finished or abandoned.
+     */
+    public int getInFlight() {
+	return inFlight.get();
+    }
+
+    public long getTimeout() {
+	return timeout;
+    }
+
+    /**
+     * Sets the timeout of the calls of the operation methods.
+     */
+    public void setTimeout(long timeoutMillis) {
+	timeout = timeoutMillis;
+    }
+
+    /**
+     * Stops accepting calls, abandons the calls still waiting for their turn,
+     * completing their futures with a <code>CancellationException</code>, and
+     * waits for the running ones to finish.
+     */
+    public void close() throws InterruptedException {
+	closed = true;
+	// the tasks of a pool never started, those of virtual threads are
+	// interrupted while waiting for their turn
+	for (Runnable r : executor.shutdownNow()) {
+	    Task<?> task = ((Execution) r).task;
+	    task.cancel();
+	    task.finish();
+	}
+	timers.shutdownNow();
+	executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+	return "AsyncBankManager [virtual=" + virtual + ", inFlight=" + getInFlight() + ", available="
+		+ permits.availablePermits() + "]";
+    }
+}
@@ -0,0 +1,295 @@
+package bank;
+
+import java.util.Arrays;
+
+/**
+ * A bounded cache of account balances, keyed by account number, with least
+ * recently used eviction. Keys and values are kept in primitive arrays: an
+ * open addressing table indexes a fixed set of entries, which are linked in
+ * recency order.
+ * <p>
+ * A cache is thread safe, and is meant to be shared by all the
+ * {@link CachingBankManager} objects of a JVM that work on the same database.
+ * To avoid caching a balance read before a concurrent update committed, a
+ * balance read from the database is only cached if no invalidation of the
+ * account occurred since the read started (see {@link #stamp(int)}). The
+ * invalidations are counted per slot of the table, so that an update only
+ * discards the concurrent reads of the accounts hashed to the same slot.
+ */
+public class BalanceCache {
+
+    //
+    // CONSTANTS
+    //
+    private static final int NONE = -1;
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final int capacity; // maximum number of entries
+    private final int[] table; // entry index + 1 for each slot, 0 if free
+    private final int mask;
+
+    private final int[] keys; // account number of each entry
+    private final double[] values; // balance of each entry
+    private final int[] prev; // previous entry in recency order
+    private final int[] next; // next entry in recency order
+    private int head = NONE; // most recently used entry
+    private int tail = NONE; // least recently used entry
+    private int size = 0;
+
+    private final long[] stamps; // number of invalidations of each slot so far
+
+    // statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new cache holding at most the specified number of balances.
+     */
+    public BalanceCache(int capacity) {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("capacity must be positive: " + capacity);
+	}
+	this.capacity = capacity;
+	int n = Integer.highestOneBit(capacity) << 2; // load factor below 1/2
+	table = new int[n];
+	mask = n - 1;
+	stamps = new long[n];
+	keys = new int[capacity];
+	values = new double[capacity];
+	prev = new int[capacity];
+	next = new int[capacity];
+    }
+
+    //
+    // CACHE
+    //
+
+    /**
+     * Returns the current invalidation stamp of the specified account. A
+     * caller reading a balance from the database takes a stamp before the
+     * read, and passes it to {@link #put(int, double, long)}.
+     */
+    public synchronized long stamp(int number) {
+	return stamps[hash(number) & mask];
+    }
+
+    /**
+     * Returns the cached balance of the specified account, or
+     * <code>Double.NaN</code> if it is not cached.
+     */
+    public synchronized double get(int number) {
+	int slot = find(number);
+	if (slot < 0) {
+	    misses++;
+	    return Double.NaN;
+	}
+	hits++;
+	int e = table[slot] - 1;
+	moveToHead(e);
+	return values[e];
+    }
+
+    /**
+     * Caches the balance of the specified account, unless an invalidation of
+     * the account occurred since the specified stamp was taken.
+     *
+     * @return <code>true</code> if the balance was cached
+     */
+    public synchronized boolean put(int number, double balance, long stamp) {
+	if (stamp != stamps[hash(number) & mask]) {
+	    return false;
+	}
+	int slot = find(number);
+	int e;
+	if (slot >= 0) {
+	    e = table[slot] - 1;
+	    moveToHead(e);
+	} else {
+	    if (size == capacity) {
+		e = tail;
+		removeSlot(find(keys[e]));
+		unlink(e);
+		evictions++;
+	    } else {
+		e = size++;
+	    }
+	    keys[e] = number;
+	    table[free(number)] = e + 1;
+	    linkHead(e);
+	}
+	values[e] = balance;
+	return true;
+    }
+
+    /**
+     * Removes the balance of the specified account from the cache. This must
+     * be called after any committed update of the account.
+     */
+    public synchronized void invalidate(int number) {
+	stamps[hash(number) & mask]++;
+	invalidations++;
+	int slot = find(number);
+	if (slot < 0) {
+	    return;
+	}
+	int e = table[slot] - 1;
+	removeSlot(slot);
+	unlink(e);
+	// move the last entry in the hole, to keep entries 0..size-1 in use
+	int last = --size;
+	if (e != last) {
+	    table[find(keys[last])] = e + 1;
+	    keys[e] = keys[last];
+	    values[e] = values[last];
+	    prev[e] = prev[last];
+	    next[e] = next[last];
+	    if (prev[e] != NONE) {
+		next[prev[e]] = e;
+	    } else {
+		head = e;
+	    }
+	    if (next[e] != NONE) {
+		prev[next[e]] = e;
+	    } else {
+		tail = e;
+	    }
+	}
+    }
+
+    /**
+     * Removes all the balances from the cache.
+     */
+    public synchronized void clear() {
+	for (int i = 0; i < stamps.length; i++) {
+	    stamps[i]++;
+	}
+	invalidations++;
+	Arrays.fill(table, 0);
+	head = tail = NONE;
+	size = 0;
+    }
+
+    //
+    // HASH TABLE
+    //
+    private static int hash(int key) {
+	int h = key * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+    // returns the slot of the key, or -1 if absent
+    private int find(int key) {
+	for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+	    int e = table[i] - 1;
+	    if (e < 0) {
+		return -1;
+	    }
+	    if (keys[e] == key) {
+		return i;
+	    }
+	}
+    }
+
+    // returns the free slot where the absent key must be inserted
+    private int free(int key) {
+	int i = hash(key) & mask;
+	while (table[i] != 0) {
+	    i = (i + 1) & mask;
+	}
+	return i;
+    }
+
+    // frees a slot, shifting back the following entries of its probe sequence
+    private void removeSlot(int slot) {
+	int i = slot;
+	for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+	    int home = hash(keys[table[j] - 1]) & mask;
+	    // move j to i if its home slot is not in the cyclic range (i, j]
+	    if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+		table[i] = table[j];
+		i = j;
+	    }
+	}
+	table[i] = 0;
+    }
+
+    //
+    // RECENCY LIST
+    //
+    private void linkHead(int e) {
+	prev[e] = NONE;
+	next[e] = head;
+	if (head != NONE) {
+	    prev[head] = e;
+	}
+	head = e;
+	if (tail == NONE) {
+	    tail = e;
+	}
+    }
+
+    private void unlink(int e) {
+	if (prev[e] != NONE) {
+	    next[prev[e]] = next[e];
+	} else {
+	    head = next[e];
+	}
+	if (next[e] != NONE) {
+	    prev[next[e]] = prev[e];
+	} else {
+	    tail = prev[e];
+	}
+    }
+
+    private void moveToHead(int e) {
+	if (e != head) {
+	    unlink(e);
+	    linkHead(e);
+	}
+    }
+
+    //
+    // STATISTICS
+    //
+    public synchronized int size() {
+	return size;
+    }
+
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    public synchronized long getEvictions() {
+	return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+	return invalidations;
+    }
+
+    /**
+     * Returns the fraction of lookups that found the balance in the cache.
+     */
+    public synchronized double getHitRatio() {
+	long lookups = hits + misses;
+	return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return "BalanceCache [size=" + size + ", capacity=" + capacity + ", hits=" + hits + ", misses=" + misses
+		+ ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+    }
+}
@@ -0,0 +1,172 @@
+package bank;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * The jobs maintaining the balance checkpoints read by
+ * {@link PooledBankManager#getBalanceAt(int, Date)}.
+ * <p>
+ * {@link #checkpoint()} writes, for each day completed since the last call
+ * and each account with operations that day, the balance of the account at
+ * the end of the day: the balance of its previous checkpoint plus the
+ * credits minus the debits of the day, read from
+ * <code>OPERATIONS_DAILY</code>, after the operations of the split accounts
+ * still queued are rolled up. A day is checkpointed once it has ended for
+ * longer than the settle time, after which no operation dated that day may
+ * still commit. It should run daily, from a single process.
+ * <p>
+ * {@link #compact(Date)} deletes the checkpoints before a date except the
+ * last one of each account and month: the balances at the dates of old
+ * months then read up to a month of operations rather than a day.
+ */
+public class BalanceCheckpoints {
+
+    //
+    // CONSTANTS
+    //
+    private static final int DEFAULT_SETTLE_TIME = 60; // s
+
+    private static final String SELECT_LAST_CHECKPOINT = "select max(AT) from BALANCE_CHECKPOINTS ;";
+    private static final String SELECT_NEXT_DAY = "select min(PERIOD_START) from OPERATIONS_DAILY "
+	    + "where PERIOD_START>=? and PERIOD_START + interval 1 day <= now() - interval ? second ;";
+    private static final String INSERT_CHECKPOINTS = "insert into BALANCE_CHECKPOINTS (NUMBER, AT, BALANCE) "
+	    + "select D.NUMBER, D.PERIOD_START + interval 1 day, D.CREDITS - D.DEBITS + "
+	    + "ifnull((select C.BALANCE from BALANCE_CHECKPOINTS C where C.NUMBER=D.NUMBER and C.AT<=D.PERIOD_START "
+	    + "order by C.AT desc limit 1), 0) from OPERATIONS_DAILY D where D.PERIOD_START=? ;";
+    // the grouped derived table is materialized, so it may read the table deleted from
+    private static final String COMPACT_CHECKPOINTS = "delete C from BALANCE_CHECKPOINTS C join "
+	    + "(select NUMBER, date_format(AT, '%Y-%m') as MONTH, max(AT) as LAST from BALANCE_CHECKPOINTS "
+	    + "where AT<? group by NUMBER, MONTH) K on K.NUMBER=C.NUMBER and K.MONTH=date_format(C.AT, '%Y-%m') "
+	    + "and C.AT<K.LAST where C.AT<? ;";
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory factory;
+    private int settleTime = DEFAULT_SETTLE_TIME;
+
+    //
+    // CONSTRUCTOR
+    //
+    public BalanceCheckpoints(BankManagerFactory f) {
+	factory = f;
+    }
+
+    //
+    // JOBS
+    //
+
+    /**
+     * Writes the checkpoints of the days completed since the last
+     * checkpoint, one transaction per day.
+     *
+     * @return the number of days checkpointed
+     * @throws SQLException
+     *             if an SQL exception occurs; the days checkpointed before it
+     *             remain committed
+     */
+    public int checkpoint() throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Connection con = m.getConnection();
+	    Statement s = con.createStatement();
+	    PreparedStatement next = con.prepareStatement(SELECT_NEXT_DAY);
+	    PreparedStatement insert = con.prepareStatement(INSERT_CHECKPOINTS);
+	    try {
+		// for the databases created before the checkpoints
+		s.executeUpdate(BankManagerImpl.CREATE_TABLE_BALANCE_CHECKPOINTS);
+		m.rollUpPending();
+		ResultSet rs = s.executeQuery(SELECT_LAST_CHECKPOINT);
+		rs.next();
+		// the last checkpoint is at the end of the last day checkpointed
+		Timestamp from = rs.getTimestamp(1);
+		rs.close();
+		if (from == null) {
+		    from = new Timestamp(0);
+		}
+		int count = 0;
+		for (;;) {
+		    next.setTimestamp(1, from);
+		    next.setInt(2, settleTime);
+		    rs = next.executeQuery();
+		    rs.next();
+		    Timestamp day = rs.getTimestamp(1);
+		    rs.close();
+		    if (day == null) {
+			break;
+		    }
+		    insert.setTimestamp(1, day);
+		    insert.executeUpdate();
+		    m.commitTransaction();
+		    count++;
+		    // days start on whole seconds
+		    from = new Timestamp(day.getTime() + 1000);
+		}
+		failed = false;
+		return count;
+	    } finally {
+		s.close();
+		next.close();
+		insert.close();
+	    }
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Deletes the checkpoints dated before the specified date, except the
+     * last one of each account and month.
+     *
+     * @return the number of checkpoints deleted
+     */
+    public int compact(Date before) throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    PreparedStatement ps = m.getConnection().prepareStatement(COMPACT_CHECKPOINTS);
+	    try {
+		ps.setTimestamp(1, new Timestamp(before.getTime()));
+		ps.setTimestamp(2, new Timestamp(before.getTime()));
+		int count = ps.executeUpdate();
+		m.commitTransaction();
+		failed = false;
+		return count;
+	    } finally {
+		ps.close();
+	    }
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int getSettleTime() {
+	return settleTime;
+    }
+
+    /**
+     * Sets the time after the end of a day after which it is checkpointed.
+     *
+     * @param seconds
+     *            the settle time, longer than any transaction logging
+     *            operations
+     */
+    public void setSettleTime(int seconds) {
+	if (seconds < 0) {
+	    throw new IllegalArgumentException("seconds must not be negative: " + seconds);
+	}
+	settleTime = seconds;
+    }
+}
@@ -0,0 +1,117 @@
+package bank;
+
+import java.util.Arrays;
+
+/**
+ * The balances of a set of accounts read in a single consistent snapshot, as
+ * returned by {@link PooledBankManager#getBalances(int[])} and
+ * {@link PooledBankManager#getBalances(int, int)}. The numbers and balances
+ * are kept in two primitive arrays, so that millions of accounts take 12
+ * bytes each.
+ */
+public class Balances {
+
+    //
+    // HELPER CLASSES
+    //
+
+    /**
+     * A receiver of the balances streamed by
+     * {@link PooledBankManager#scanBalances(int, int, Handler)}, one account
+     * at a time in number order.
+     */
+    public interface Handler {
+	void balance(int number, double balance);
+    }
+
+    /**
+     * A handler collecting the balances in growing arrays.
+     */
+    static class Builder implements Handler {
+
+	private int[] numbers = new int[1024];
+	private double[] balances = new double[1024];
+	private int size = 0;
+
+	public void balance(int number, double balance) {
+	    if (size == numbers.length) {
+		numbers = Arrays.copyOf(numbers, size * 2);
+		balances = Arrays.copyOf(balances, size * 2);
+	    }
+	    numbers[size] = number;
+	    balances[size] = balance;
+	    size++;
+	}
+
+	Balances build() {
+	    return new Balances(Arrays.copyOf(numbers, size), Arrays.copyOf(balances, size));
+	}
+    }
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final int[] numbers;
+    private final double[] balances;
+
+    //
+    // CONSTRUCTOR
+    //
+    Balances(int[] numbers, double[] balances) {
+	this.numbers = numbers;
+	this.balances = balances;
+    }
+
+    @Override
+    public String toString() {
+	return "Balances [size=" + size() + ", total=" + getTotal() + "]";
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int size() {
+	return numbers.length;
+    }
+
+    public int getNumber(int i) {
+	return numbers[i];
+    }
+
+    /**
+     * Returns the balance of the i-th account, or <code>NaN</code> if it does
+     * not exist.
+     */
+    public double getBalance(int i) {
+	return balances[i];
+    }
+
+    /**
+     * Returns the array of the account numbers, which is not copied.
+     */
+    public int[] getNumbers() {
+	return numbers;
+    }
+
+    /**
+     * Returns the array of the balances, in the order of the account numbers,
+     * which is not copied. The balance of an account that does not exist is
+     * <code>NaN</code>.
+     */
+    public double[] getBalances() {
+	return balances;
+    }
+
+    /**
+     * Returns the sum of the balances of the existing accounts.
+     */
+    public double getTotal() {
+	double total = 0;
+	for (double b : balances) {
+	    if (!Double.isNaN(b)) {
+		total += b;
+	    }
+	}
+	return total;
+    }
+}
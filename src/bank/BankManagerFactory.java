@@ -0,0 +1,327 @@
+package bank;
+
+import java.sql.SQLException;
+
+/**
+ * A factory of {@link BankManager} objects sharing a bounded pool of
+ * connections to the same database.
+ * <p>
+ * Unlike {@link BankManagerImpl}, which keeps a dedicated connection for its
+ * whole life, the managers returned by {@link #newManager()} check a
+ * connection out of the pool for each call. Any number of managers (e.g. one
+ * per customer) can therefore share a few connections. The pool settings must
+ * be set before the first manager is created.
+ */
+public class BankManagerFactory {
+
+    //
+    // CONSTANTS
+    //
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final int DEFAULT_MIN_IDLE = 2;
+    private static final long DEFAULT_MAX_WAIT = 30000;
+    private static final long DEFAULT_MAX_IDLE_TIME = 10 * 60 * 1000;
+    private static final long DEFAULT_VALIDATION_INTERVAL = 5000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int minIdle = DEFAULT_MIN_IDLE;
+    private long maxWait = DEFAULT_MAX_WAIT;
+    private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+    private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private BankMetrics metrics;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private boolean conditionalUpdates;
+    private boolean applicationLog;
+    private boolean partitionedOperations;
+    private OperationArchive operationArchive;
+    private AccountSlots accountSlots;
+
+    private ConnectionPool pool;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new factory of managers connected to the specified database.
+     * No connection is opened until a manager is used.
+     *
+     * @param url
+     *            the url of the database to connect to
+     * @param user
+     *            the login name of the user
+     * @param password
+     *            his password
+     */
+    public BankManagerFactory(String url, String user, String password) {
+	this.url = url;
+	this.user = user;
+	this.password = password;
+    }
+
+    //
+    // FACTORY METHODS
+    //
+
+    /**
+     * Returns a new manager using the connections of this factory's pool.
+     * Managers are cheap, and may be created for each customer.
+     */
+    public BankManager newManager() {
+	return new PooledBankManager(this);
+    }
+
+    /**
+     * Returns the connection pool of this factory, creating it if needed.
+     */
+    public synchronized ConnectionPool getPool() {
+	if (pool == null) {
+	    pool = new ConnectionPool(this);
+	}
+	return pool;
+    }
+
+    /**
+     * Closes the connection pool of this factory.
+     */
+    public synchronized void close() {
+	if (pool != null) {
+	    pool.close();
+	    pool = null;
+	}
+    }
+
+    /**
+     * Opens a new connection to the database, wrapped in a manager object.
+     */
+    BankManagerImpl openSession() throws SQLException {
+	BankManagerImpl m = new BankManagerImpl(BankManagerImpl.connect(url, user, password,
+		BankManagerImpl.driverProperties()));
+	m.metrics = metrics;
+	m.retryPolicy = retryPolicy;
+	m.conditionalUpdates = conditionalUpdates;
+	m.applicationLog = applicationLog;
+	m.partitionedOperations = partitionedOperations;
+	m.archive = operationArchive;
+	m.slots = accountSlots;
+	return m;
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int getMaxConnections() {
+	return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections opened by the pool.
+     */
+    public void setMaxConnections(int n) {
+	if (n < 1) {
+	    throw new IllegalArgumentException("maxConnections must be positive: " + n);
+	}
+	maxConnections = n;
+    }
+
+    public int getMinIdle() {
+	return minIdle;
+    }
+
+    /**
+     * Sets the number of idle connections that are never evicted.
+     */
+    public void setMinIdle(int n) {
+	minIdle = n;
+    }
+
+    public long getMaxWait() {
+	return maxWait;
+    }
+
+    /**
+     * Sets the maximum time a call waits for a connection, in milliseconds.
+     */
+    public void setMaxWait(long millis) {
+	maxWait = millis;
+    }
+
+    public long getMaxIdleTime() {
+	return maxIdleTime;
+    }
+
+    /**
+     * Sets the time after which an idle connection is closed, in milliseconds.
+     */
+    public void setMaxIdleTime(long millis) {
+	maxIdleTime = millis;
+    }
+
+    public long getValidationInterval() {
+	return validationInterval;
+    }
+
+    /**
+     * Sets the time after which an idle connection is validated before being
+     * reused, in milliseconds.
+     */
+    public void setValidationInterval(long millis) {
+	validationInterval = millis;
+    }
+
+    public int getBatchSize() {
+	return batchSize;
+    }
+
+    /**
+     * Sets the number of updates sent in a JDBC batch and committed together by
+     * the batch methods of {@link PooledBankManager}.
+     */
+    public void setBatchSize(int n) {
+	if (n < 1) {
+	    throw new IllegalArgumentException("batchSize must be positive: " + n);
+	}
+	batchSize = n;
+    }
+
+    public int getPageSize() {
+	return pageSize;
+    }
+
+    /**
+     * Sets the number of operations read per page by an
+     * {@link OperationCursor}.
+     */
+    public void setPageSize(int n) {
+	if (n < 1) {
+	    throw new IllegalArgumentException("pageSize must be positive: " + n);
+	}
+	pageSize = n;
+    }
+
+    public BankMetrics getMetrics() {
+	return metrics;
+    }
+
+    /**
+     * Sets the metrics updated by the connections of this factory: commits,
+     * rollbacks, and database errors by cause.
+     */
+    public void setMetrics(BankMetrics m) {
+	metrics = m;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+	return retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy of the transactions aborted by lock contention on
+     * the connections of this factory. The policy also counts the contention.
+     */
+    public void setRetryPolicy(RetryPolicy p) {
+	retryPolicy = p;
+    }
+
+    public boolean isConditionalUpdates() {
+	return conditionalUpdates;
+    }
+
+    /**
+     * Sets whether the connections of this factory update balances with the
+     * guarded ADD_BALANCE and TRANSFER_BALANCE procedures, rather than with
+     * plain updates checked by the balance trigger. A guarded update refuses a
+     * withdrawal without raising an exception, and returns the new balance in
+     * the same round trip, so that a refusal costs as much as a success. The
+     * procedures are created by <code>createDB</code>. Only sessions opened
+     * after this call are affected.
+     */
+    public void setConditionalUpdates(boolean b) {
+	conditionalUpdates = b;
+    }
+
+    public boolean isApplicationLog() {
+	return applicationLog;
+    }
+
+    /**
+     * Sets whether the connections of this factory log operations themselves,
+     * rather than through the OperationsLogUpdateTrigger. Each connection then
+     * buffers the operations of its transaction, and inserts them with a
+     * single batch right before the commit, so that the balance updates hold
+     * their row locks for a shorter time. <code>createDB</code> omits the
+     * trigger in this mode, which must therefore be set before it is called,
+     * and kept by every client of the database.
+     */
+    public void setApplicationLog(boolean b) {
+	applicationLog = b;
+    }
+
+    public boolean isPartitionedOperations() {
+	return partitionedOperations;
+    }
+
+    /**
+     * Sets whether <code>createDB</code> creates <code>OPERATIONS</code>
+     * range-partitioned by month, so that the queries on a date range only
+     * read the partitions of its months, and old months can be archived and
+     * dropped with {@link OperationPartitions}. A partitioned table has no
+     * foreign key to <code>ACCOUNTS</code>.
+     */
+    public void setPartitionedOperations(boolean b) {
+	partitionedOperations = b;
+    }
+
+    public OperationArchive getOperationArchive() {
+	return operationArchive;
+    }
+
+    /**
+     * Sets the archive of the operations of the partitions dropped from
+     * <code>OPERATIONS</code>. The managers of this factory then read the
+     * operations dated before the horizon of the archive from it, and
+     * <code>createDB</code> clears it. Only sessions opened after this call
+     * are affected.
+     */
+    public void setOperationArchive(OperationArchive a) {
+	operationArchive = a;
+    }
+
+    public boolean isSplitAccounts() {
+	return accountSlots != null;
+    }
+
+    /**
+     * Sets whether the connections of this factory support split accounts,
+     * whose balance is spread over several rows so that concurrent updates of
+     * a hot account do not all wait for the same row lock (see
+     * {@link HotAccounts}). Balances are then read with their slots, which
+     * costs an index lookup per read. Every client updating a database with
+     * split accounts must use this mode. Only sessions opened after this call
+     * are affected.
+     */
+    public synchronized void setSplitAccounts(boolean b) {
+	if (b != isSplitAccounts()) {
+	    accountSlots = b ? new AccountSlots() : null;
+	}
+    }
+
+    /**
+     * Returns the registry of the split accounts, or null if split accounts
+     * are disabled.
+     */
+    AccountSlots getAccountSlots() {
+	return accountSlots;
+    }
+}
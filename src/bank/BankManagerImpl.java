@@ -1,15 +1,25 @@
 package bank;
 
+import java.io.IOException;
 import java.sql.*;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * A simple implementation of the ReservationManager interface. Each object of
  * this class must create a dedicated connection to the database.
  * <p>
+ * The statements of an object are prepared once, on their first use, and kept
+ * in the {@link StatementRegistry} of its connection. The methods of the
+ * interface are synchronized, so that an object may be shared by several
+ * threads, each call executing alone on the connection.
+ * <p>
  * <b>Note: DO NOT alter this class's interface.</b>
  * 
  * @author Busca
@@ -33,9 +43,24 @@ public class BankManagerImpl implements BankManager {
     	    "AMOUNT double, " + 
     	    "DATE timestamp not null default NOW(), " +
     	    "primary key (ID)," + 
+    	    //serves date range queries on an account, and the foreign key below
+    	    "key OPERATIONS_NUMBER_DATE (NUMBER, DATE, ID), " +
     	    "constraint account_fk foreign key (NUMBER) references ACCOUNTS(NUMBER) " +
     	    ")";
    
+   //the partitioned variant: the partition column must be in the primary key, and a
+   //partitioned table cannot have foreign keys; the partitions are appended by createDB
+   private static final String CREATE_TABLE_OPERATIONS_PARTITIONED = "create table OPERATIONS (" + 
+		   	"ID int NOT NULL AUTO_INCREMENT, " +
+    	    "NUMBER int not null, " + 
+    	    "AMOUNT double, " + 
+    	    "DATE timestamp not null default NOW(), " +
+    	    "primary key (ID, DATE)," + 
+    	    "key OPERATIONS_NUMBER_DATE (NUMBER, DATE, ID) " +
+    	    ") partition by range (unix_timestamp(DATE)) ";
+   //number of month partitions created by createDB, from the current month
+   private static final int INITIAL_PARTITIONS = 3;
+   
    /**
     * Trigger to check balance is not negative upon update of account balance
     * It was necessary to use DBMS specific (non-standard SQL) language in order to force the trigger to raise an
@@ -58,24 +83,282 @@ public class BankManagerImpl implements BankManager {
 		   "AFTER UPDATE ON ACCOUNTS " +
 		   "FOR EACH ROW " +
 		   "BEGIN " +
+		   //internal moves of funds between an account and its slots are not operations
+		   "IF @BANK_INTERNAL IS NULL THEN " +
 		   "INSERT INTO OPERATIONS(NUMBER, AMOUNT, DATE) VALUES(NEW.NUMBER, (NEW.BALANCE-OLD.BALANCE), SYSDATE()); " +
+		   "END IF; " +
 		   "END ";   
+   
+   //slots of the split accounts, whose balance is the sum of their slots and of ACCOUNTS.BALANCE
+   private static final String CREATE_TABLE_ACCOUNT_SLOTS = "create table ACCOUNT_SLOTS (" +
+		   "NUMBER int not null, " +
+		   "SLOT int not null, " +
+		   "BALANCE double not null, " +
+		   "primary key (NUMBER, SLOT), " +
+		   "constraint slot_account_fk foreign key (NUMBER) references ACCOUNTS(NUMBER) " +
+		   ")";
+   
+   private static final String CREATE_TRIGGER_VALIDATE_SLOT = "CREATE TRIGGER SlotUpdateTrigger " + 
+		   "BEFORE UPDATE ON ACCOUNT_SLOTS " +
+		   "FOR EACH ROW " +
+		   "IF NEW.BALANCE < 0 THEN " +
+		   "SIGNAL SQLSTATE '45000' SET MESSAGE_TEXT = 'Balance cannot be less than 0. This transaction has been reversed.';" +
+		   "END IF; ";
+   
+   private static final String CREATE_TRIGGER_LOG_UPDATE_SLOT = "CREATE TRIGGER SlotLogUpdateTrigger " + 
+		   "AFTER UPDATE ON ACCOUNT_SLOTS " +
+		   "FOR EACH ROW " +
+		   "BEGIN " +
+		   "IF @BANK_INTERNAL IS NULL THEN " +
+		   "INSERT INTO OPERATIONS(NUMBER, AMOUNT, DATE) VALUES(NEW.NUMBER, (NEW.BALANCE-OLD.BALANCE), SYSDATE()); " +
+		   "END IF; " +
+		   "END ";
+    
+   /**
+    * Procedure adding an amount to an account unless its balance would become negative, and
+    * returning the new balance in the same round trip: the guarded update assigns the new
+    * balance to a session variable, which stays null if no row was updated.
+    * The result is the new balance, -1 if the withdrawal was refused, or 0 if the account does not exist,
+    * followed by 1 if the account was updated and 0 otherwise.
+    */
+   private static final String CREATE_PROCEDURE_ADD_BALANCE = "CREATE PROCEDURE ADD_BALANCE(IN N INT, IN A DOUBLE) " +
+		   "BEGIN " +
+		   "SET @BANK_BALANCE = NULL; " +
+		   "UPDATE ACCOUNTS SET BALANCE = (@BANK_BALANCE := BALANCE + A) WHERE NUMBER = N AND BALANCE + A >= 0; " +
+		   "SELECT IF(@BANK_BALANCE IS NOT NULL, @BANK_BALANCE, " +
+		   "IF(EXISTS (SELECT 1 FROM ACCOUNTS WHERE NUMBER = N), -1.0, 0.0)), @BANK_BALANCE IS NOT NULL; " +
+		   "END ";
+   
+   /**
+    * Procedure transferring an amount between two accounts unless the debited balance would become
+    * negative. Both rows are locked first in ascending number order, then the guarded debit is
+    * performed, and the credit only if the debit was. The result is 1 if the transfer was performed
+    * and 0 otherwise, including if the debited account does not exist, followed by 1 if the credited
+    * account was updated and 0 otherwise.
+    */
+   private static final String CREATE_PROCEDURE_TRANSFER_BALANCE = "CREATE PROCEDURE TRANSFER_BALANCE(IN F INT, IN T INT, IN A DOUBLE) " +
+		   "BEGIN " +
+		   "DECLARE C INT; " +
+		   "SELECT COUNT(*) INTO C FROM ACCOUNTS WHERE NUMBER IN (F, T) FOR UPDATE; " +
+		   "SET @BANK_BALANCE = NULL; " +
+		   "UPDATE ACCOUNTS SET BALANCE = (@BANK_BALANCE := BALANCE - A) WHERE NUMBER = F AND BALANCE - A >= 0; " +
+		   "IF @BANK_BALANCE IS NOT NULL THEN " +
+		   "UPDATE ACCOUNTS SET BALANCE = BALANCE + A WHERE NUMBER = T; " +
+		   "END IF; " +
+		   "SELECT @BANK_BALANCE IS NOT NULL, @BANK_BALANCE IS NOT NULL AND (C = 2 OR F = T); " +
+		   "END ";
+    
+   /**
+    * Tables of the totals of the operations on each account per hour and per day, which
+    * serve the summaries of long intervals without reading their operations.
+    */
+   private static final String CREATE_TABLE_OPERATIONS_HOURLY = "create table OPERATIONS_HOURLY (" +
+		   "NUMBER int not null, " +
+		   "PERIOD_START datetime not null, " +
+		   "OPS int not null, " +
+		   "CREDITS double not null, " +
+		   "DEBITS double not null, " +
+		   "primary key (NUMBER, PERIOD_START))";
+   private static final String CREATE_TABLE_OPERATIONS_DAILY = "create table OPERATIONS_DAILY (" +
+		   "NUMBER int not null, " +
+		   "PERIOD_START datetime not null, " +
+		   "OPS int not null, " +
+		   "CREDITS double not null, " +
+		   "DEBITS double not null, " +
+		   "primary key (NUMBER, PERIOD_START), " +
+		   //serves the balance checkpoints, taken for all the accounts of a day at once
+		   "key OPERATIONS_DAILY_PERIOD (PERIOD_START))";
+   
+   /**
+    * Balance of each account at the end of the days of its operations, written by
+    * BalanceCheckpoints: the balance at a date is that of the last checkpoint before it,
+    * plus the operations since
+    */
+   static final String CREATE_TABLE_BALANCE_CHECKPOINTS = "create table if not exists BALANCE_CHECKPOINTS (" +
+		   "NUMBER int not null, " +
+		   "AT datetime not null, " +
+		   "BALANCE double not null, " +
+		   "primary key (NUMBER, AT))";
+   
+   /**
+    * Operations of the split accounts not yet added to the rollups: the concurrent credits
+    * of a split account would otherwise all wait for the lock of its rollup rows
+    */
+   private static final String CREATE_TABLE_OPERATIONS_ROLLUP_PENDING = "create table OPERATIONS_ROLLUP_PENDING (" +
+		   "ID bigint not null, " +
+		   "NUMBER int not null, " +
+		   "AMOUNT double, " +
+		   "DATE datetime not null, " +
+		   "primary key (ID), " +
+		   "key OPERATIONS_ROLLUP_PENDING_NUMBER (NUMBER, DATE))";
+   
+   /**
+    * Trigger to add each logged operation to the totals of its hour and day, whether it is
+    * logged by the log trigger or by the manager. The operations of the split accounts are
+    * queued instead, and added by {@link #rollUpPending()}
+    */
+   private static final String CREATE_TRIGGER_ROLLUP_OPERATIONS = "CREATE TRIGGER OperationsRollupTrigger " +
+		   "AFTER INSERT ON OPERATIONS " +
+		   "FOR EACH ROW " +
+		   "BEGIN " +
+		   "IF EXISTS (SELECT 1 FROM ACCOUNT_SLOTS WHERE NUMBER = NEW.NUMBER) THEN " +
+		   "INSERT INTO OPERATIONS_ROLLUP_PENDING(ID, NUMBER, AMOUNT, DATE) VALUES(NEW.ID, NEW.NUMBER, NEW.AMOUNT, NEW.DATE); " +
+		   "ELSE " +
+		   "INSERT INTO OPERATIONS_HOURLY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) " +
+		   "VALUES(NEW.NUMBER, DATE_FORMAT(NEW.DATE, '%Y-%m-%d %H:00:00'), 1, " +
+		   "GREATEST(IFNULL(NEW.AMOUNT, 0), 0), GREATEST(-IFNULL(NEW.AMOUNT, 0), 0)) " +
+		   "ON DUPLICATE KEY UPDATE OPS = OPS + 1, CREDITS = CREDITS + VALUES(CREDITS), DEBITS = DEBITS + VALUES(DEBITS); " +
+		   "INSERT INTO OPERATIONS_DAILY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) " +
+		   "VALUES(NEW.NUMBER, DATE(NEW.DATE), 1, " +
+		   "GREATEST(IFNULL(NEW.AMOUNT, 0), 0), GREATEST(-IFNULL(NEW.AMOUNT, 0), 0)) " +
+		   "ON DUPLICATE KEY UPDATE OPS = OPS + 1, CREDITS = CREDITS + VALUES(CREDITS), DEBITS = DEBITS + VALUES(DEBITS); " +
+		   "END IF; " +
+		   "END ";
     
+    private static final String DROP_TRIGGER_ROLLUP_OPERATIONS = "drop trigger if exists OperationsRollupTrigger;";
+    //adds the operations following an ID to the rollups, as the rollup trigger would have
+    private static final String REBUILD_OPERATIONS_HOURLY = "insert into OPERATIONS_HOURLY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) " +
+    		"select NUMBER, DATE_FORMAT(DATE, '%Y-%m-%d %H:00:00'), count(*), sum(greatest(ifnull(AMOUNT, 0), 0)), " +
+    		"sum(greatest(-ifnull(AMOUNT, 0), 0)) from OPERATIONS where ID>? group by 1, 2 " +
+    		"on duplicate key update OPS = OPS + values(OPS), CREDITS = CREDITS + values(CREDITS), DEBITS = DEBITS + values(DEBITS) ;";
+    private static final String REBUILD_OPERATIONS_DAILY = "insert into OPERATIONS_DAILY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) " +
+    		"select NUMBER, DATE(DATE), count(*), sum(greatest(ifnull(AMOUNT, 0), 0)), " +
+    		"sum(greatest(-ifnull(AMOUNT, 0), 0)) from OPERATIONS where ID>? group by 1, 2 " +
+    		"on duplicate key update OPS = OPS + values(OPS), CREDITS = CREDITS + values(CREDITS), DEBITS = DEBITS + values(DEBITS) ;";
+    //adds the pending operations up to an ID to the rollups, then deletes them
+    private static final String SELECT_PENDING_MAX = "select max(ID) from OPERATIONS_ROLLUP_PENDING ;";
+    private static final String ROLL_UP_PENDING_HOURLY = "insert into OPERATIONS_HOURLY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) " +
+    		"select NUMBER, DATE_FORMAT(DATE, '%Y-%m-%d %H:00:00'), count(*), sum(greatest(ifnull(AMOUNT, 0), 0)), " +
+    		"sum(greatest(-ifnull(AMOUNT, 0), 0)) from OPERATIONS_ROLLUP_PENDING where ID<=? group by 1, 2 " +
+    		"on duplicate key update OPS = OPS + values(OPS), CREDITS = CREDITS + values(CREDITS), DEBITS = DEBITS + values(DEBITS) ;";
+    private static final String ROLL_UP_PENDING_DAILY = "insert into OPERATIONS_DAILY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) " +
+    		"select NUMBER, DATE(DATE), count(*), sum(greatest(ifnull(AMOUNT, 0), 0)), " +
+    		"sum(greatest(-ifnull(AMOUNT, 0), 0)) from OPERATIONS_ROLLUP_PENDING where ID<=? group by 1, 2 " +
+    		"on duplicate key update OPS = OPS + values(OPS), CREDITS = CREDITS + values(CREDITS), DEBITS = DEBITS + values(DEBITS) ;";
+    private static final String DELETE_PENDING = "delete from OPERATIONS_ROLLUP_PENDING where ID<=? ;";
+    private static final String DROP_TABLE_OPERATIONS_ROLLUP_PENDING = "drop table if exists OPERATIONS_ROLLUP_PENDING;";
+    private static final String DROP_TABLE_BALANCE_CHECKPOINTS = "drop table if exists BALANCE_CHECKPOINTS;";
+    private static final String DROP_TABLE_OPERATIONS_HOURLY = "drop table if exists OPERATIONS_HOURLY;";
+    private static final String DROP_TABLE_OPERATIONS_DAILY = "drop table if exists OPERATIONS_DAILY;";
+    private static final String DROP_PROCEDURE_ADD_BALANCE = "drop procedure if exists ADD_BALANCE;";
+    private static final String DROP_PROCEDURE_TRANSFER_BALANCE = "drop procedure if exists TRANSFER_BALANCE;";
     private static final String DROP_TABLE_OPERATIONS = "drop table if exists OPERATIONS;";
+    private static final String DROP_TABLE_ACCOUNT_SLOTS = "drop table if exists ACCOUNT_SLOTS;";
     private static final String DROP_TABLE_ACCOUNTS = "drop table if exists ACCOUNTS;";
     
     
     private static final String INSERT_ACCOUNT = "insert into ACCOUNTS (NUMBER, BALANCE) values (?, 0) ;";
-    private static final String SELECT_BALANCE = "select BALANCE from ACCOUNTS where NUMBER=";
+    private static final String SELECT_BALANCE = "select BALANCE from ACCOUNTS where NUMBER=? ;";
     private static final String UPDATE_BALANCE = "update ACCOUNTS set BALANCE=(BALANCE+?) where NUMBER=? ;";
-    private static final String SELECT_OPERATIONS = "select * from OPERATIONS ";
+    private static final String SELECT_OPERATIONS = "select ID, NUMBER, AMOUNT, DATE from OPERATIONS " +
+    		"where DATE between ? and ? and NUMBER=? ;";
+    //keyset pagination over the (NUMBER, DATE, ID) index: next page after the last (DATE, ID) read
+    private static final String SELECT_OPERATIONS_PAGE = "select ID, NUMBER, AMOUNT, DATE from OPERATIONS " +
+    		"where NUMBER=? and DATE>=? and DATE<=? and (DATE>? or ID>?) order by DATE, ID limit ? ;";
+    private static final String SELECT_BALANCES = "select NUMBER, BALANCE from ACCOUNTS ;";
+    //debits and credits both accounts of a transfer in a single statement, so that a
+    //rejection by the balance trigger rolls back the whole transfer and nothing else
+    private static final String TRANSFER_BALANCE = "update ACCOUNTS set BALANCE=(BALANCE + " +
+    		"case when NUMBER=? then ? else 0 end + case when NUMBER=? then ? else 0 end) where NUMBER in (?, ?) ;";
+    
+    //totals of the operations of an account: raw operations at the edges of the interval,
+    //then whole hours, then whole days, each part being a pair of ranges or a range, then
+    //the operations of the whole hours and days not yet rolled up
+    private static final String SELECT_SUMMARY = "select count(*), sum(greatest(AMOUNT, 0)), sum(greatest(-AMOUNT, 0)) " +
+    		"from OPERATIONS where NUMBER=? and (DATE>=? and DATE<? or DATE>=? and DATE<?) " +
+    		"union all select sum(OPS), sum(CREDITS), sum(DEBITS) from OPERATIONS_HOURLY " +
+    		"where NUMBER=? and (PERIOD_START>=? and PERIOD_START<? or PERIOD_START>=? and PERIOD_START<?) " +
+    		"union all select sum(OPS), sum(CREDITS), sum(DEBITS) from OPERATIONS_DAILY " +
+    		"where NUMBER=? and PERIOD_START>=? and PERIOD_START<? " +
+    		"union all select count(*), sum(greatest(AMOUNT, 0)), sum(greatest(-AMOUNT, 0)) " +
+    		"from OPERATIONS_ROLLUP_PENDING where NUMBER=? and DATE>=? and DATE<? ;";
+    private static final String INSERT_OPERATION = "insert into OPERATIONS(NUMBER, AMOUNT, DATE) values (?, ?, sysdate()) ;";
+    private static final String SELECT_ACCOUNT = "select NUMBER from ACCOUNTS where NUMBER=? ;";
+    //last journal record applied by the write-behind of each in-memory manager
+    private static final String CREATE_TABLE_JOURNAL_STATE = "create table if not exists JOURNAL_STATE (" +
+    		"NAME varchar(255) not null, APPLIED_SEQ bigint not null, primary key (NAME))";
+    //offsets of the consumers of the ChangeFeed, created if not exists for older databases
+    static final String CREATE_TABLE_FEED_OFFSETS = "create table if not exists FEED_OFFSETS (" +
+    		"CONSUMER varchar(64) not null, LAST_ID bigint not null, primary key (CONSUMER)) ;";
+    private static final String DROP_TABLE_FEED_OFFSETS = "drop table if exists FEED_OFFSETS;";
+    private static final String SELECT_JOURNAL_STATE = "select APPLIED_SEQ from JOURNAL_STATE where NAME=? ;";
+    private static final String UPDATE_JOURNAL_STATE = "insert into JOURNAL_STATE(NAME, APPLIED_SEQ) values (?, ?) " +
+    		"on duplicate key update APPLIED_SEQ=values(APPLIED_SEQ) ;";
+    //split accounts
+    private static final String SELECT_SPLIT_BALANCE = "select BALANCE + (select ifnull(sum(BALANCE), 0) " +
+    		"from ACCOUNT_SLOTS where NUMBER=?) from ACCOUNTS where NUMBER=? ;";
+    private static final String UPDATE_SLOT = "update ACCOUNT_SLOTS set BALANCE=(BALANCE+?) " +
+    		"where NUMBER=? and SLOT=? and BALANCE+?>=0 ;";
+    private static final String SELECT_SLOTS = "select SLOT, BALANCE from ACCOUNT_SLOTS where NUMBER=? ;";
+    private static final String SELECT_SLOTS_FOR_UPDATE = "select SLOT, BALANCE from ACCOUNT_SLOTS where NUMBER=? " +
+    		"order by SLOT for update ;";
+    private static final String SELECT_BALANCE_FOR_UPDATE = "select BALANCE from ACCOUNTS where NUMBER=? for update ;";
+    private static final String SELECT_SLOT_COUNTS = "select NUMBER, count(*) from ACCOUNT_SLOTS group by NUMBER ;";
+    private static final String SELECT_ANY_SLOT = "select NUMBER from ACCOUNT_SLOTS limit 1 ;";
+    private static final String DELETE_SLOTS = "delete from ACCOUNT_SLOTS where NUMBER=? ;";
+    private static final String INSERT_SLOT = "insert into ACCOUNT_SLOTS (NUMBER, SLOT, BALANCE) values (?, ?, ?) ;";
+    private static final String SET_BALANCE = "update ACCOUNTS set BALANCE=? where NUMBER=? ;";
+    private static final String SET_INTERNAL = "set @BANK_INTERNAL = 1";
+    private static final String RESET_INTERNAL = "set @BANK_INTERNAL = NULL";
+    private static final String SELECT_OPERATIONS_COLUMNS = "select ID, NUMBER, AMOUNT, unix_timestamp(DATE) " +
+    		"from OPERATIONS where NUMBER=? and DATE between ? and ? order by DATE, ID ;";
+    //point in time balances
+    private static final String SELECT_CHECKPOINT = "select AT, BALANCE from BALANCE_CHECKPOINTS " +
+    		"where NUMBER=? and AT<=? order by AT desc limit 1 ;";
+    private static final String SELECT_OPERATIONS_SUM = "select ifnull(sum(AMOUNT), 0) from OPERATIONS " +
+    		"where NUMBER=? and DATE>=? and DATE<=? ;";
+    //balance snapshots
+    private static final String START_SNAPSHOT = "start transaction with consistent snapshot";
+    private static final String SELECT_BALANCES_IN = "select 0, NUMBER, BALANCE from ACCOUNTS where NUMBER in (%s)";
+    private static final String SELECT_SLOTS_IN = " union all select 1, NUMBER, BALANCE from ACCOUNT_SLOTS where NUMBER in (%s)";
+    private static final String SELECT_BALANCES_RANGE = "select NUMBER, BALANCE from ACCOUNTS " +
+    		"where NUMBER between ? and ? order by NUMBER ;";
+    private static final String SELECT_SLOT_SUMS_RANGE = "select NUMBER, sum(BALANCE) from ACCOUNT_SLOTS " +
+    		"where NUMBER between ? and ? group by NUMBER order by NUMBER ;";
+    //number of accounts read per IN list
+    private static final int IN_CHUNK = 1000;
+    private static final String CALL_ADD_BALANCE = "{call ADD_BALANCE(?, ?)}";
+    private static final String CALL_TRANSFER_BALANCE = "{call TRANSFER_BALANCE(?, ?, ?)}";
+    
+    //SQL state raised by the balance validation trigger
+    private static final String BALANCE_REJECTED = "45000";
+    //SQL state class of integrity constraint violations, e.g. duplicate account numbers
+    private static final String INTEGRITY_VIOLATION = "23";
+    //MySQL error code of a missing table
+    private static final int NO_SUCH_TABLE = 1146;
   
-    private Connection con;
+    private final Connection con;
     
+    //statement of the texts that cannot be prepared: DDL, transaction control and XA
     private Statement statement;
-    private PreparedStatement psInsertAccount;
-    private PreparedStatement psUpdateBalance;
-    private ResultSet result;
+    //prepared statements of the connection, by SQL text
+    private final StatementRegistry statements;
+    //query of the balances of a full IN list, built once
+    private String selectBalancesChunk;
+    
+    //metrics updated by this manager, if any
+    BankMetrics metrics;
+    //retry policy of the transactions aborted by lock contention
+    RetryPolicy retryPolicy = new RetryPolicy();
+    //true if balances are updated by the guarded procedures rather than checked by the trigger
+    boolean conditionalUpdates = false;
+    //true if operations are logged by this manager rather than by the log trigger
+    boolean applicationLog = false;
+    //true if createDB partitions OPERATIONS by month
+    boolean partitionedOperations = false;
+    //archive of the operations of the partitions dropped from OPERATIONS, if any
+    OperationArchive archive;
+    //registry of the split accounts, null unless split accounts are enabled
+    AccountSlots slots;
+    
+    //operations performed by the current transaction, inserted in OPERATIONS on commit
+    private int[] logNumbers = new int[16];
+    private double[] logAmounts = new double[16];
+    private int logSize;
+    //XA transaction branch started on this connection and not yet completed, if any
+    private String branch;
+    //second column of the result of the last procedure call: true if it updated an account
+    private boolean callUpdated;
     
     
     /**
@@ -91,6 +374,36 @@ public class BankManagerImpl implements BankManager {
      */
     public BankManagerImpl(String url, String user, String password) throws SQLException {
     	
+    	this(connect(url, user, password, driverProperties()));
+    }
+
+    /**
+     * Creates a new BankManagerImpl object working on an already opened
+     * connection. This is used by {@link ConnectionPool} to keep the prepared
+     * statements of a pooled connection alive across checkouts.
+     * 
+     * @param con
+     *            the connection to work on
+     */
+    BankManagerImpl(Connection con) throws SQLException {
+    	
+    	this.con = con;
+    	//disable autocommit
+    	con.setAutoCommit(false);
+    	//create new statement object; the prepared statements are prepared on first use,
+    	//as the tables may not exist yet
+    	statement = con.createStatement();
+    	statements = new StatementRegistry(con);
+
+
+    }
+    
+    /**
+     * Loads the MySQL driver and opens a new connection to the database, with
+     * the specified driver properties in addition to the credentials
+     */
+    static Connection connect(String url, String user, String password, Properties info) throws SQLException {
+    	
     	try {
 			Class.forName("com.mysql.jdbc.Driver");
 		} catch (ClassNotFoundException e) {
@@ -99,27 +412,245 @@ public class BankManagerImpl implements BankManager {
 		}
     	
     	//Create a new connection with the database
-    	con = DriverManager.getConnection(url, user, password);
-    	//disable autocommit
-    	con.setAutoCommit(false);
-    	//create new statement et prepared statement objects
-    	statement = con.createStatement();
-    	psInsertAccount = con.prepareStatement(INSERT_ACCOUNT);
-    	psUpdateBalance = con.prepareStatement(UPDATE_BALANCE);
-
-
+    	info.setProperty("user", user);
+    	info.setProperty("password", password);
+    	return DriverManager.getConnection(url, info);
+    }
+    
+    /**
+     * Returns the driver properties of the connections opened by this class and by
+     * {@link BankManagerFactory}
+     */
+    static Properties driverProperties() {
+    	Properties info = new Properties();
+    	//skip commit/rollback round trips when no transaction is in progress
+    	info.setProperty("useLocalTransactionState", "true");
+    	//send the batches of PooledBankManager in as few round trips as possible
+    	info.setProperty("rewriteBatchedStatements", "true");
+    	//parse each statement once per connection, see StatementRegistry
+    	info.setProperty("useServerPrepStmts", "true");
+    	//keep the statements closed after each call (e.g. by the jobs) prepared
+    	info.setProperty("cachePrepStmts", "true");
+    	info.setProperty("prepStmtCacheSize", "250");
+    	info.setProperty("prepStmtCacheSqlLimit", "2048");
+    	//read the parameters of the procedures once per connection
+    	info.setProperty("cacheCallableStmts", "true");
+    	return info;
+    }
+    
+    /**
+     * Returns the prepared statement of the SQL text in param, from the registry of the
+     * connection
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+    	return statements.prepare(sql, metrics);
+    }
+    
+    /**
+     * Returns the client-side prepared statement of the SQL text in param, for JDBC
+     * batches, from the registry of the connection
+     */
+    private PreparedStatement prepareBatch(String sql) throws SQLException {
+    	return statements.prepareBatch(sql, metrics);
+    }
+    
+    /**
+     * Returns the statement calling the procedure in param, from the registry of the
+     * connection
+     */
+    private CallableStatement prepareCall(String sql) throws SQLException {
+    	return statements.prepareCall(sql, metrics);
+    }
+    
+    /**
+     * Returns the date in param as a timestamp truncated to the second, the precision of
+     * the dates of OPERATIONS
+     */
+    static Timestamp seconds(Date date) {
+    	return new Timestamp(date.getTime() / 1000 * 1000);
+    }
+    
+    /**
+     * Commits the current transaction, and counts it in the metrics if any
+     */
+    private void commit() throws SQLException {
+    	flushLog();
+    	con.commit();
+    	if (metrics != null) {
+    		metrics.recordCommit();
+    	}
+    }
+    
+    /**
+     * Rolls back the current transaction, and counts it in the metrics if any
+     */
+    private void rollback() throws SQLException {
+    	logSize = 0;
+    	con.rollback();
+    	if (metrics != null) {
+    		metrics.recordRollback();
+    	}
+    }
+    
+    /**
+     * Commits the current transaction for a caller executing its own sequence of
+     * updates, e.g. {@link GroupCommitter}
+     */
+    void commitTransaction() throws SQLException {
+    	commit();
+    }
+    
+    /**
+     * Rolls back the transaction in progress if any, without counting it, so that the
+     * next user of this manager starts afresh
+     */
+    void rollbackTransaction() throws SQLException {
+    	logSize = 0;
+    	con.rollback();
+    }
+    
+    /**
+     * Records an operation performed by the current transaction, if operations are
+     * logged by this manager
+     */
+    private void log(int number, double amount) {
+    	if (applicationLog) {
+    		record(number, amount);
+    	}
+    }
+    
+    /**
+     * Records an operation performed by the current transaction, to be inserted in
+     * OPERATIONS on commit whatever the log mode
+     */
+    private void record(int number, double amount) {
+    	if (logSize == logNumbers.length) {
+    		logNumbers = Arrays.copyOf(logNumbers, logSize * 2);
+    		logAmounts = Arrays.copyOf(logAmounts, logSize * 2);
+    	}
+    	logNumbers[logSize] = number;
+    	logAmounts[logSize] = amount;
+    	logSize++;
+    }
+    
+    /**
+     * Records the operations of a transfer executed by the single transfer statement,
+     * which updated the specified number of rows (negative if unknown). As the log
+     * trigger would, one operation is recorded per row updated, in primary key order.
+     */
+    private void logTransfer(int from, int to, double amount, int rows) throws SQLException {
+    	if (!applicationLog || rows == 0) {
+    		return;
+    	}
+    	if (from == to) {
+    		//both terms of the statement applied to a single row
+    		log(from, 0);
+    		return;
+    	}
+    	//a single row updated means that one of the accounts does not exist
+    	boolean debited = rows != 1 || exists(from);
+    	boolean credited = rows != 1 || !debited;
+    	if (debited && from < to) {
+    		log(from, -amount);
+    	}
+    	if (credited) {
+    		log(to, amount);
+    	}
+    	if (debited && from > to) {
+    		log(from, -amount);
+    	}
+    }
+    
+    /**
+     * Returns true if the account with number in param exists
+     */
+    private boolean exists(int number) throws SQLException {
+    	PreparedStatement ps = prepare(SELECT_ACCOUNT);
+    	ps.setInt(1, number);
+    	ResultSet rs = ps.executeQuery();
+    	try {
+    		return rs.next();
+    	} finally {
+    		rs.close();
+    	}
+    }
+    
+    /**
+     * Inserts the operations recorded by the current transaction in OPERATIONS, in a
+     * single batch that the driver rewrites as multi-row inserts if rewriteBatchedStatements
+     * is set. Operations are dated by the DBMS, as they are by the log trigger.
+     */
+    private void flushLog() throws SQLException {
+    	if (logSize == 0) {
+    		return;
+    	}
+    	try {
+    		PreparedStatement ps = prepareBatch(INSERT_OPERATION);
+    		try {
+    			for (int i = 0; i < logSize; i++) {
+    				ps.setInt(1, logNumbers[i]);
+    				ps.setDouble(2, logAmounts[i]);
+    				ps.addBatch();
+    			}
+    			ps.executeBatch();
+    		} catch (SQLException e) {
+    			ps.clearBatch();
+    			throw e;
+    		}
+    	} finally {
+    		logSize = 0;
+    	}
+    }
+    
+    /**
+     * Counts the exception in param in the metrics if any: balance trigger rejection,
+     * deadlock, lock wait timeout or other error. Only the exceptions this manager
+     * handles are counted here: those it throws are counted by its caller, e.g. an
+     * {@link InstrumentedBankManager}, so that no error is counted twice.
+     */
+    private void count(Exception e) {
+    	if (metrics != null) {
+    		metrics.recordError(e);
+    	}
+    }
+    
+    /**
+     * Returns the connection used by this manager
+     */
+    Connection getConnection() {
+    	return con;
+    }
+    
+    /**
+     * Closes the connection used by this manager, and the statements prepared on it
+     */
+    void close() {
+    	try {
+			con.close();
+		} catch (SQLException e) {
+			System.err.println("Error: " + e.getMessage());
+		}
     }
 
     /**
      * Drop the existing tables if so, and creates the tables accounts and operations in the database
      */
-    public void createDB() throws SQLException {
+    public synchronized void createDB() throws SQLException {
 
     	try {
-    		//drop tables if they exists in database...
+    		//drop procedures and tables if they exists in database...
+    		statement.executeUpdate(DROP_PROCEDURE_ADD_BALANCE);
+    		statement.executeUpdate(DROP_PROCEDURE_TRANSFER_BALANCE);
+    		statement.executeUpdate(DROP_TABLE_OPERATIONS_DAILY);
+    		statement.executeUpdate(DROP_TABLE_OPERATIONS_HOURLY);
+    		statement.executeUpdate(DROP_TABLE_OPERATIONS_ROLLUP_PENDING);
+    		statement.executeUpdate(DROP_TABLE_BALANCE_CHECKPOINTS);
     		statement.executeUpdate(DROP_TABLE_OPERATIONS);
+    		//the offsets of the feed are IDs of the dropped operations
+    		statement.executeUpdate(DROP_TABLE_FEED_OFFSETS);
+    		statement.executeUpdate(DROP_TABLE_ACCOUNT_SLOTS);
     		statement.executeUpdate(DROP_TABLE_ACCOUNTS);
-			con.commit();
+			commit();
 		} catch (Exception e1) {
 			// TODO Auto-generated catch block
 			//e1.printStackTrace();
@@ -129,15 +660,43 @@ public class BankManagerImpl implements BankManager {
     	try{
     		//Execute table creation statements
         	statement.executeUpdate(CREATE_TABLE_ACCOUNTS);
-        	statement.executeUpdate(CREATE_TABLE_OPERATIONS);
+        	statement.executeUpdate(CREATE_TABLE_ACCOUNT_SLOTS);
+        	if (partitionedOperations) {
+        		Calendar month = OperationPartitions.startOfMonth(Calendar.getInstance());
+        		statement.executeUpdate(CREATE_TABLE_OPERATIONS_PARTITIONED + "(" + 
+        				OperationPartitions.definitions(month, INITIAL_PARTITIONS) + ")");
+        	} else {
+        		statement.executeUpdate(CREATE_TABLE_OPERATIONS);
+        	}
+        	statement.executeUpdate(CREATE_TABLE_OPERATIONS_HOURLY);
+        	statement.executeUpdate(CREATE_TABLE_OPERATIONS_DAILY);
+        	statement.executeUpdate(CREATE_TABLE_OPERATIONS_ROLLUP_PENDING);
+        	statement.executeUpdate(CREATE_TABLE_FEED_OFFSETS);
+        	statement.executeUpdate(CREATE_TABLE_BALANCE_CHECKPOINTS);
         	//Execute two trigger creation queries
         	statement.executeUpdate(CREATE_TRIGGER_VALIDATE_BALANCE);
-        	statement.executeUpdate(CREATE_TRIGGER_LOG_UPDATE_OPERATIONS);
+        	//the log trigger is replaced by the manager in application log mode
+        	statement.executeUpdate(CREATE_TRIGGER_VALIDATE_SLOT);
+        	if (!applicationLog) {
+        		statement.executeUpdate(CREATE_TRIGGER_LOG_UPDATE_OPERATIONS);
+        		statement.executeUpdate(CREATE_TRIGGER_LOG_UPDATE_SLOT);
+        	}
+        	statement.executeUpdate(CREATE_TRIGGER_ROLLUP_OPERATIONS);
+        	//Execute the procedures of the conditional update mode
+        	statement.executeUpdate(CREATE_PROCEDURE_ADD_BALANCE);
+        	statement.executeUpdate(CREATE_PROCEDURE_TRANSFER_BALANCE);
         	//Commit the executed queries
-        	con.commit();
+        	commit();
+        	//the archived operations belong to the dropped table
+        	if (archive != null) {
+        		archive.clear();
+        	}
+        	if (slots != null) {
+        		slots.load(new HashMap<Integer, Integer>());
+        	}
     	}catch(Exception e){
     		//roll-back the transaction if errors occured
-    		con.rollback();
+    		rollback();
     		System.out.println("System failed to create database tables : " + e.getMessage());
     	}
     	
@@ -152,20 +711,22 @@ public class BankManagerImpl implements BankManager {
      * 		true if success
      * 		false if failed
      */
-    public boolean createAccount(int number) throws SQLException {
+    public synchronized boolean createAccount(int number) throws SQLException {
     	//initialize success variable
     	boolean success = true;
     	
     	try {
     		//set prepared statement parameters and execute it
-			psInsertAccount.setInt(1, number);
-			psInsertAccount.execute();
+			PreparedStatement ps = prepare(INSERT_ACCOUNT);
+			ps.setInt(1, number);
+			ps.execute();
 			//commit the transaction
-			con.commit();
+			commit();
 		} catch (Exception e) {
 			success = false;
 			//roll-back the transaction if errors occured
-			con.rollback();
+			rollback();
+			count(e);
 			e.printStackTrace();
 			//set success variable to false, as account creation failed
 			
@@ -187,15 +748,25 @@ public class BankManagerImpl implements BankManager {
      * 		the account balance if success
      * 		0 if account doesn't exist
      */
-    public double getBalance(int number) throws SQLException {
+    public synchronized double getBalance(int number) throws SQLException {
+    	//an account may have been split by another client since the registry was loaded
+    	if (slots != null) {
+    		return getSplitBalance(number);
+    	}
     	//Retrives the account balance
-    	result = statement.executeQuery( SELECT_BALANCE + number + ";" );
-    	if(result.next()){
-    		// return the balance if the account exists, 
-    		return result.getDouble(1);	
-    	}else{
-    		//return 0 if the account does not exist
-    		return 0;
+    	PreparedStatement ps = prepare(SELECT_BALANCE);
+    	ps.setInt(1, number);
+    	ResultSet rs = ps.executeQuery();
+    	try {
+    		if(rs.next()){
+    			// return the balance if the account exists, 
+    			return rs.getDouble(1);	
+    		}else{
+    			//return 0 if the account does not exist
+    			return 0;
+    		}
+    	} finally {
+    		rs.close();
     	}
     }
 
@@ -208,22 +779,37 @@ public class BankManagerImpl implements BankManager {
      * @param amount
      * 		the balance to add
      * @return 
-     * 		the account new balance 
+     * 		the account new balance, or -1.0 if the withdrawal was rejected
      */
-    public double addBalance(int number, double amount) throws SQLException {
+    public synchronized double addBalance(int number, double amount) throws SQLException {
     	
+    	if (slotCount(number) > 0) {
+    		return addBalanceSplit(number, amount);
+    	}
+    	if (conditionalUpdates) {
+    		return addBalanceConditional(number, amount);
+    	}
     	try {
     		//set the parameters in the prepared statement an execute it
-			psUpdateBalance.setDouble(1, amount);
-			psUpdateBalance.setInt(2, number);
-			psUpdateBalance.execute();
+			PreparedStatement ps = prepare(UPDATE_BALANCE);
+			ps.setDouble(1, amount);
+			ps.setInt(2, number);
+			if (ps.executeUpdate() > 0) {
+				log(number, amount);
+			}
 			//commit the transaction
-			con.commit();
+			commit();
 		} catch (Exception e) {
 			/**
-			 * If transaction causes the balance of account to be less than 0, a trigger will raise a validation exception
-			 * This will cause DBMS to automatically roll back the transaction.
+			 * If transaction causes the balance of account to be less than 0, a trigger will raise a validation exception.
+			 * The statement is rolled back, but not the transaction: roll it back to release its locks, as transfer does.
 			 */
+			//do not leave an update without its log row, e.g. if the log insert failed
+			rollback();
+			count(e);
+			if (e instanceof SQLException && isBalanceRejection((SQLException) e)) {
+				return -1.0;
+			}
 			System.err.println("Error: " + e.getMessage());
 			
 		}
@@ -233,57 +819,1507 @@ public class BankManagerImpl implements BankManager {
 
     
     @Override
-    public boolean transfer(int from, int to, double amount) throws SQLException {
-    	boolean success = true;    	
+    public synchronized boolean transfer(int from, int to, double amount) throws SQLException {
+    	if (slotCount(from) > 0 || slotCount(to) > 0) {
+    		return transferSplit(from, to, amount);
+    	}
+    	if (conditionalUpdates) {
+    		return transferConditional(from, to, amount);
+    	}
+    	for (int attempt = 1;; attempt++) {
+    		try {
+    			//update the accounts in ascending number order: concurrent transfers between
+    			//the same accounts then lock their rows in the same order, and cannot deadlock
+    			if (from <= to) {
+    				updateBalance(from, -amount);
+    				updateBalance(to, amount);
+    			} else {
+    				updateBalance(to, amount);
+    				updateBalance(from, -amount);
+    			}
+    			//commit the transaction
+    			commit();
+    			return true;
+    		} catch (SQLException e) {
+    			//undo the credit if it was performed before a rejected debit
+    			rollback();
+    			/**
+    			 * If transfer causes balance of debited account to be less than 0, a trigger will raise an exception.
+    			 * A deadlock or a lock wait timeout is retried, and reported as an exception if it persists.
+    			 */
+    			if (isBalanceRejection(e)) {
+    				count(e);
+    				return false;
+    			}
+    			if (!retryPolicy.retry(e, attempt)) {
+    				if (RetryPolicy.isContention(e)) {
+    					throw e;
+    				}
+    				count(e);
+    				System.err.println("Error: " + e.getMessage());
+    				return false;
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Adds the amount in param to the account with number in param, using the guarded
+     * ADD_BALANCE procedure: a refused withdrawal costs a single round trip, as a
+     * successful one, and raises no exception.
+     * 
+     * @return 
+     * 		the account new balance, -1.0 if the withdrawal was refused, 0 if the account does not exist
+     */
+    private double addBalanceConditional(int number, double amount) throws SQLException {
+    	for (int attempt = 1;; attempt++) {
+    		try {
+    			double balance = executeAddBalance(number, amount);
+    			commit();
+    			return balance;
+    		} catch (SQLException e) {
+    			rollback();
+    			if (!retryPolicy.retry(e, attempt)) {
+    				throw e;
+    			}
+    			count(e);
+    		}
+    	}
+    }
+    
+    /**
+     * Transfers the amount in param between the accounts in param, using the guarded
+     * TRANSFER_BALANCE procedure.
+     * 
+     * @return 
+     * 		true if the transfer was performed, false if the debited account does not exist
+     * 		or has insufficient funds
+     */
+    private boolean transferConditional(int from, int to, double amount) throws SQLException {
+    	for (int attempt = 1;; attempt++) {
+    		try {
+    			boolean done = executeTransfer(from, to, amount);
+    			commit();
+    			return done;
+    		} catch (SQLException e) {
+    			rollback();
+    			if (!retryPolicy.retry(e, attempt)) {
+    				throw e;
+    			}
+    			count(e);
+    		}
+    	}
+    }
+    
+    //
+    // SPLIT ACCOUNTS
+    //
+    
+    /**
+     * Returns the number of slots of the account with number in param, or 0 if it is not
+     * split or split accounts are disabled. The registry is reloaded first if stale.
+     */
+    private int slotCount(int number) throws SQLException {
+    	if (slots == null) {
+    		return 0;
+    	}
+    	if (slots.isStale()) {
+    		loadSlots();
+    	}
+    	return slots.count(number);
+    }
+    
+    /**
+     * Loads the registry of the split accounts from ACCOUNT_SLOTS, if it exists yet
+     */
+    void loadSlots() throws SQLException {
+    	Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
     	try {
-			//set prepared statements parameters 
-			psUpdateBalance.setDouble(1, -amount);
-			psUpdateBalance.setInt(2, from);
-			psUpdateBalance.execute();
-			
-			psUpdateBalance.setDouble(1, amount);
-			psUpdateBalance.setInt(2, to);
-			psUpdateBalance.execute();
-			//commit the transaction
-			con.commit();
-		} catch (Exception e) {
-			success = false;
-			/**
-			 * If transfer causes balance of crediting account to be less than 0, a trigger will raise an exception
-			 * This will cause the DBMS to automatically roll back he commit.
-			 */
-			System.err.println("Error: " + e.getMessage());		
-			
-		}
-    	
-    	return success;
+    		ResultSet rs = prepare(SELECT_SLOT_COUNTS).executeQuery();
+    		while (rs.next()) {
+    			counts.put(rs.getInt(1), rs.getInt(2));
+    		}
+    		rs.close();
+    	} catch (SQLException e) {
+    		//ACCOUNT_SLOTS is created by createDB
+    		if (e.getErrorCode() != NO_SUCH_TABLE) {
+    			throw e;
+    		}
+    	}
+    	rollbackTransaction();
+    	slots.load(counts);
     }
-
-    @Override
-    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
-    	//date formatter to ensure date format works with the date generted by MySQL DBMS during logging
-    	SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    	//array list to return
-    	List<Operation> list = new ArrayList<Operation>();
-    	//Operation object to be added to array list
-    	Operation objOperation;
-    	try{
-    	String query = SELECT_OPERATIONS + "where (DATE between '"+ sdf.format(from) +"' and '"+sdf.format(to)+"')" + " and NUMBER=" + number + ";";
-    	result = statement.executeQuery(query);
-    	//iterate through resultset and populate Operation list
-    	while( result.next() ){
-    		objOperation = new Operation(result.getInt(2), result.getDouble(3), result.getDate(4));
-    	    list.add(objOperation);
+    
+    /**
+     * Returns the balance of the account with number in param, including its slots if
+     * it is split, or 0 if it does not exist
+     */
+    private double getSplitBalance(int number) throws SQLException {
+    	PreparedStatement ps = prepare(SELECT_SPLIT_BALANCE);
+    	ps.setInt(1, number);
+    	ps.setInt(2, number);
+    	ResultSet rs = ps.executeQuery();
+    	try {
+    		return rs.next() ? rs.getDouble(1) : 0;
+    	} finally {
+    		rs.close();
     	}
-    	
-    	}catch(Exception e){
-    		/**
-			 * If query fails catch exception...
-			 */
-			System.err.println("Error: " + e.getMessage());		
-    	}    	
-    	
-    	return list;
+    }
+    
+    /**
+     * Adds the amount in param to the split account with number in param.
+     * 
+     * @return 
+     * 		the account new balance, or -1.0 if the withdrawal was refused
+     */
+    private double addBalanceSplit(int number, double amount) throws SQLException {
+    	for (int attempt = 1;; attempt++) {
+    		try {
+    			int r = updateSplit(number, amount);
+    			if (r < 0) {
+    				rollback();
+    				return addBalance(number, amount);
+    			}
+    			if (r == 0) {
+    				rollback();
+    				return -1.0;
+    			}
+    			double balance = getSplitBalance(number);
+    			commit();
+    			return balance;
+    		} catch (SQLException e) {
+    			rollback();
+    			if (isBalanceRejection(e)) {
+    				count(e);
+    				return -1.0;
+    			}
+    			if (!retryPolicy.retry(e, attempt)) {
+    				throw e;
+    			}
+    			count(e);
+    		}
+    	}
+    }
+    
+    /**
+     * Transfers the amount in param between the accounts in param, one of them at least
+     * being split.
+     * 
+     * @return 
+     * 		true if the transfer was performed, false if the debited account has insufficient
+     * 		funds
+     */
+    private boolean transferSplit(int from, int to, double amount) throws SQLException {
+    	for (int attempt = 1;; attempt++) {
+    		try {
+    			//debit first, so that a refused transfer updates nothing
+    			int r = updateAny(from, -amount);
+    			if (r > 0) {
+    				r = updateAny(to, amount);
+    			}
+    			if (r < 0) {
+    				rollback();
+    				return transfer(from, to, amount);
+    			}
+    			if (r == 0) {
+    				rollback();
+    				return false;
+    			}
+    			commit();
+    			return true;
+    		} catch (SQLException e) {
+    			rollback();
+    			if (isBalanceRejection(e)) {
+    				count(e);
+    				return false;
+    			}
+    			if (!retryPolicy.retry(e, attempt)) {
+    				throw e;
+    			}
+    			count(e);
+    		}
+    	}
+    }
+    
+    /**
+     * Adds the amount in param to the account with number in param, split or not, without
+     * committing, as {@link #updateSplit(int, double)}
+     */
+    private int updateAny(int number, double amount) throws SQLException {
+    	if (slots.count(number) > 0) {
+    		return updateSplit(number, amount);
+    	}
+    	updateBalance(number, amount);
+    	return 1;
+    }
+    
+    /**
+     * Adds the amount in param to the split account with number in param, without
+     * committing. A credit goes to a random slot, so that concurrent credits lock
+     * different rows. A debit goes to a random slot too if it has enough funds, else to
+     * another slot that has, else to several slots after locking them all.
+     * 
+     * @return 
+     * 		1 if the account was updated, 0 if it has insufficient funds, -1 if it is no
+     * 		longer split (the registry is then updated)
+     */
+    private int updateSplit(int number, double amount) throws SQLException {
+    	int n = slots.count(number);
+    	int slot = AccountSlots.random(n);
+    	if (updateSlot(number, slot, amount)) {
+    		log(number, amount);
+    		return 1;
+    	}
+    	//the slots that had enough funds when last committed
+    	PreparedStatement ps = prepare(SELECT_SLOTS);
+    	ps.setInt(1, number);
+    	ResultSet rs = ps.executeQuery();
+    	int[] candidates = new int[n];
+    	int count = 0;
+    	boolean found = false;
+    	try {
+    		while (rs.next()) {
+    			found |= rs.getInt(1) == slot;
+    			if (rs.getInt(1) != slot && rs.getDouble(2) + amount >= 0 && count < n) {
+    				candidates[count++] = rs.getInt(1);
+    			}
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    	if (!found) {
+    		//merged or split again by another client
+    		slots.set(number, 0);
+    		return -1;
+    	}
+    	for (int i = 0; i < count; i++) {
+    		if (updateSlot(number, candidates[i], amount)) {
+    			log(number, amount);
+    			return 1;
+    		}
+    	}
+    	return drainSlots(number, -amount) ? 1 : 0;
+    }
+    
+    /**
+     * Adds the amount in param to a slot of the account with number in param, unless the
+     * slot would become negative, without committing or logging
+     * 
+     * @return 
+     * 		true if the slot was updated
+     */
+    private boolean updateSlot(int number, int slot, double amount) throws SQLException {
+    	PreparedStatement ps = prepare(UPDATE_SLOT);
+    	ps.setDouble(1, amount);
+    	ps.setInt(2, number);
+    	ps.setInt(3, slot);
+    	ps.setDouble(4, amount);
+    	return ps.executeUpdate() > 0;
+    }
+    
+    /**
+     * Withdraws the amount in param from the unsplit balance and the slots of the account
+     * with number in param, after locking them all, without committing. The withdrawal is
+     * logged as a single operation.
+     * 
+     * @return 
+     * 		false if the account has insufficient funds
+     */
+    private boolean drainSlots(int number, double amount) throws SQLException {
+    	double[] balances = lockBalances(number);
+    	if (balances == null || sum(balances) < amount) {
+    		return false;
+    	}
+    	setInternal(true);
+    	try {
+    		double left = amount;
+    		for (int i = 0; i < balances.length && left > 0; i++) {
+    			double take = Math.min(balances[i], left);
+    			if (take <= 0) {
+    				continue;
+    			}
+    			if (i == 0) {
+    				PreparedStatement ps = prepare(UPDATE_BALANCE);
+    				ps.setDouble(1, -take);
+    				ps.setInt(2, number);
+    				ps.executeUpdate();
+    			} else {
+    				updateSlot(number, i - 1, -take);
+    			}
+    			left -= take;
+    		}
+    	} finally {
+    		setInternal(false);
+    	}
+    	record(number, -amount);
+    	return true;
+    }
+    
+    /**
+     * Locks the row of the account with number in param and its slots.
+     * 
+     * @return 
+     * 		the unsplit balance of the account followed by the balances of its slots, or null
+     * 		if the account does not exist
+     */
+    private double[] lockBalances(int number) throws SQLException {
+    	PreparedStatement ps = prepare(SELECT_BALANCE_FOR_UPDATE);
+    	ps.setInt(1, number);
+    	ResultSet rs = ps.executeQuery();
+    	if (!rs.next()) {
+    		rs.close();
+    		return null;
+    	}
+    	double unsplit = rs.getDouble(1);
+    	rs.close();
+    	ps = prepare(SELECT_SLOTS_FOR_UPDATE);
+    	ps.setInt(1, number);
+    	rs = ps.executeQuery();
+    	List<Double> list = new ArrayList<Double>();
+    	list.add(unsplit);
+    	try {
+    		while (rs.next()) {
+    			list.add(rs.getDouble(2));
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    	double[] balances = new double[list.size()];
+    	for (int i = 0; i < balances.length; i++) {
+    		balances[i] = list.get(i);
+    	}
+    	return balances;
+    }
+    
+    private static double sum(double[] values) {
+    	double sum = 0;
+    	for (double v : values) {
+    		sum += v;
+    	}
+    	return sum;
+    }
+    
+    /**
+     * Sets or clears the session variable telling the log triggers that the updates of
+     * the session are internal moves of funds, not operations
+     */
+    private void setInternal(boolean internal) throws SQLException {
+    	prepare(internal ? SET_INTERNAL : RESET_INTERNAL).execute();
+    }
+    
+    /**
+     * Spreads the balance of the account with number in param over n slots, and commits:
+     * 0 slots merges the account back into ACCOUNTS, and a negative number rebalances its
+     * current slots, unless they are balanced enough already. These moves are not logged
+     * as operations. Each slot but the last gets an equal share rounded down to the cent,
+     * so that none is negative.
+     * 
+     * @return 
+     * 		the number of slots of the account, or -1 if it does not exist
+     */
+    int redistribute(int number, int n) throws SQLException {
+    	try {
+    		double[] balances = lockBalances(number);
+    		if (balances == null) {
+    			rollbackTransaction();
+    			return -1;
+    		}
+    		int current = balances.length - 1;
+    		double total = sum(balances);
+    		if (n < 0) {
+    			n = current;
+    			if (n == 0 || isBalanced(balances)) {
+    				rollbackTransaction();
+    				return n;
+    			}
+    		}
+    		setInternal(true);
+    		try {
+    			PreparedStatement ps = prepare(DELETE_SLOTS);
+    			ps.setInt(1, number);
+    			ps.executeUpdate();
+    			ps = prepare(SET_BALANCE);
+    			ps.setDouble(1, n == 0 ? total : 0);
+    			ps.setInt(2, number);
+    			ps.executeUpdate();
+    			if (n > 0) {
+    				double share = Math.floor(total / n * 100) / 100;
+    				ps = prepareBatch(INSERT_SLOT);
+    				for (int i = 0; i < n; i++) {
+    					ps.setInt(1, number);
+    					ps.setInt(2, i);
+    					ps.setDouble(3, i < n - 1 ? share : total - share * (n - 1));
+    					ps.addBatch();
+    				}
+    				ps.executeBatch();
+    			}
+    		} finally {
+    			setInternal(false);
+    		}
+    		commit();
+    		if (slots != null) {
+    			slots.set(number, n);
+    		}
+    		return n;
+    	} catch (SQLException e) {
+    		rollback();
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Returns true if the unsplit balance is empty and no slot holds less than half its
+     * share of the balances in param
+     */
+    private static boolean isBalanced(double[] balances) {
+    	if (balances[0] != 0) {
+    		return false;
+    	}
+    	double share = sum(balances) / (balances.length - 1);
+    	for (int i = 1; i < balances.length; i++) {
+    		if (balances[i] < share / 2) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Calls a procedure returning a single row of two values, returns the first one and
+     * keeps the second one in callUpdated
+     */
+    private double callForValue(CallableStatement cs) throws SQLException {
+    	ResultSet rs = cs.executeQuery();
+    	try {
+    		if (!rs.next()) {
+    			callUpdated = false;
+    			return 0;
+    		}
+    		callUpdated = rs.getBoolean(2);
+    		return rs.getDouble(1);
+    	} finally {
+    		rs.close();
+    		//skip the status result of the call
+    		while (cs.getMoreResults() || cs.getUpdateCount() != -1) {
+    		}
+    	}
+    }
+    
+    /**
+     * Adds the amount in param to the account with number in param, without committing
+     */
+    private void updateBalance(int number, double amount) throws SQLException {
+    	PreparedStatement ps = prepare(UPDATE_BALANCE);
+    	ps.setDouble(1, amount);
+    	ps.setInt(2, number);
+    	if (ps.executeUpdate() > 0) {
+    		log(number, amount);
+    	}
+    }
+
+    @Override
+    public synchronized List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+    	//array list to return
+    	List<Operation> list = new ArrayList<Operation>();
+    	//Operation object to be added to array list
+    	Operation objOperation;
+    	try{
+    	//the operations dated before the horizon of the archive are read from it
+    	long horizon = archive == null ? 0 : archive.getHorizonTime();
+    	if (from.getTime() < horizon) {
+    		list.addAll(archive.read(number, from, to));
+    		if (to.getTime() < horizon) {
+    			return list;
+    		}
+    		from = new Date(horizon);
+    	}
+    	PreparedStatement ps = prepare(SELECT_OPERATIONS);
+    	ps.setTimestamp(1, seconds(from));
+    	ps.setTimestamp(2, seconds(to));
+    	ps.setInt(3, number);
+    	ResultSet rs = ps.executeQuery();
+    	//iterate through resultset and populate Operation list
+    	try {
+    		while( rs.next() ){
+    			objOperation = new Operation(rs.getInt(2), rs.getDouble(3), rs.getDate(4));
+    			list.add(objOperation);
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    	
+    	}catch(Exception e){
+    		/**
+			 * If query fails catch exception...
+			 */
+			count(e);
+			System.err.println("Error: " + e.getMessage());		
+    	}    	
+    	
+    	return list;
+    }
+
+    /**
+     * Appends the operations on the account with number in param dated from from to to
+     * inclusive to the buffer in param, in date order, without creating an object per
+     * operation: dates are read as epoch seconds rather than as timestamps.
+     */
+    void getOperations(int number, Date from, Date to, OperationColumns out) throws SQLException {
+    	long start = from.getTime();
+    	//the operations dated before the horizon of the archive are read from it
+    	long horizon = archive == null ? 0 : archive.getHorizonTime();
+    	if (start < horizon) {
+    		try {
+    			archive.read(number, from, to, out);
+    		} catch (IOException e) {
+    			throw new SQLException("Cannot read the operation archive: " + e.getMessage(), e);
+    		}
+    		if (to.getTime() < horizon) {
+    			return;
+    		}
+    		start = horizon;
+    	}
+    	PreparedStatement ps = prepare(SELECT_OPERATIONS_COLUMNS);
+    	ps.setInt(1, number);
+    	ps.setTimestamp(2, seconds(new Date(start)));
+    	ps.setTimestamp(3, seconds(to));
+    	ResultSet rs = ps.executeQuery();
+    	try {
+    		while (rs.next()) {
+    			out.add(rs.getLong(1), rs.getInt(2), rs.getDouble(3), rs.getLong(4) * 1000);
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    }
+    
+    /**
+     * Binds the parameters of the i-th item of a batch to a prepared statement
+     */
+    private interface Binder {
+    	void bind(int i) throws SQLException;
+    	
+    	/**
+    	 * Records the operations of the i-th item, executed with the specified update count
+    	 */
+    	void log(int i, int rows) throws SQLException;
+    }
+    
+    /**
+     * Adds each amount in param to the account with the same index, using JDBC batches
+     * of batchSize updates and one commit per batch.
+     * 
+     * @param numbers
+     * 		the account numbers
+     * @param amounts
+     * 		the balances to add
+     * @param batchSize
+     * 		the number of updates per batch and per transaction
+     * @return 
+     * 		for each update, true if it was performed and false if it was rejected
+     * 		by the balance trigger
+     */
+    boolean[] addBalanceAll(final int[] numbers, final double[] amounts, int batchSize) throws SQLException {
+    	if (numbers.length != amounts.length) {
+    		throw new IllegalArgumentException("numbers and amounts differ in length");
+    	}
+    	final PreparedStatement ps = prepareBatch(UPDATE_BALANCE);
+    	return executeAll(ps, numbers.length, batchSize, new Binder() {
+			public void bind(int i) throws SQLException {
+				ps.setDouble(1, amounts[i]);
+				ps.setInt(2, numbers[i]);
+			}
+			public void log(int i, int rows) {
+				if (rows != 0) {
+					BankManagerImpl.this.log(numbers[i], amounts[i]);
+				}
+			}
+		});
+    }
+    
+    /**
+     * Performs the transfers in param, using JDBC batches of batchSize transfers and
+     * one commit per batch.
+     * 
+     * @param transfers
+     * 		the transfers to perform
+     * @param batchSize
+     * 		the number of transfers per batch and per transaction
+     * @return 
+     * 		for each transfer, true if it was performed and false if it was rejected
+     * 		by the balance trigger
+     */
+    boolean[] transferAll(final List<Transfer> transfers, int batchSize) throws SQLException {
+    	final PreparedStatement ps = prepareBatch(TRANSFER_BALANCE);
+    	return executeAll(ps, transfers.size(), batchSize, new Binder() {
+			public void bind(int i) throws SQLException {
+				Transfer t = transfers.get(i);
+				bindTransfer(ps, t.getFrom(), t.getTo(), t.getAmount());
+			}
+			public void log(int i, int rows) throws SQLException {
+				Transfer t = transfers.get(i);
+				logTransfer(t.getFrom(), t.getTo(), t.getAmount(), rows);
+			}
+		});
+    }
+    
+    /**
+     * Sets the parameters of the transfer statement in param
+     */
+    private static void bindTransfer(PreparedStatement ps, int from, int to, double amount) throws SQLException {
+    	ps.setInt(1, from);
+    	ps.setDouble(2, -amount);
+    	ps.setInt(3, to);
+    	ps.setDouble(4, amount);
+    	ps.setInt(5, from);
+    	ps.setInt(6, to);
+    }
+    
+    /**
+     * Executes count items of a prepared statement in batches, committing each batch.
+     * A batch in which an item is rejected by the balance trigger is rolled back
+     * and replayed item by item, as the update counts of a rewritten batch do not
+     * tell which of its items were executed. Any other error rolls back the current
+     * batch and is thrown; the previous batches remain committed.
+     */
+    private boolean[] executeAll(PreparedStatement ps, int count, int batchSize, Binder binder) throws SQLException {
+    	boolean[] done = new boolean[count];
+    	for (int start = 0; start < count; start += batchSize) {
+    		int end = Math.min(count, start + batchSize);
+    		//a batch aborted by a deadlock or a lock wait timeout is rolled back, and retried
+    		for (int attempt = 1;; attempt++) {
+    			try {
+    				executeBatch(ps, done, start, end, binder);
+    				break;
+    			} catch (SQLException e) {
+    				if (!retryPolicy.retry(e, attempt)) {
+    					throw e;
+    				}
+    				count(e);
+    				Arrays.fill(done, start, end, false);
+    			}
+    		}
+    	}
+    	return done;
+    }
+    
+    /**
+     * Executes the items start to end (exclusive) of a prepared statement in a batch, and
+     * commits them. The batch is rolled back if an exception is thrown.
+     */
+    private void executeBatch(PreparedStatement ps, boolean[] done, int start, int end, Binder binder) throws SQLException {
+    	try {
+    		for (int i = start; i < end; i++) {
+    			binder.bind(i);
+    			ps.addBatch();
+    		}
+    		int[] counts = ps.executeBatch();
+    		for (int i = start; i < end; i++) {
+    			done[i] = true;
+    			binder.log(i, counts[i - start]);
+    		}
+    	} catch (BatchUpdateException e) {
+    		ps.clearBatch();
+    		rollback();
+    		if (!isBalanceRejection(e)) {
+    			throw e;
+    		}
+    		//replay the batch one item at a time: a rejected update is rolled back
+    		//alone by the DBMS, and the others are kept
+    		for (int i = start; i < end; i++) {
+    			binder.bind(i);
+    			try {
+    				int rows = ps.executeUpdate();
+    				done[i] = true;
+    				binder.log(i, rows);
+    			} catch (SQLException e2) {
+    				if (!isBalanceRejection(e2)) {
+    					rollback();
+    					throw e2;
+    				}
+    				count(e2);
+    			}
+    		}
+    	} catch (SQLException e) {
+    		ps.clearBatch();
+    		rollback();
+    		throw e;
+    	}
+    	//commit the batch
+    	commit();
+    }
+    
+    /**
+     * Returns true if the exception in param, or one it is chained to, was raised by
+     * the balance validation trigger
+     */
+    static boolean isBalanceRejection(SQLException e) {
+    	for (SQLException x = e; x != null; x = x.getNextException()) {
+    		if (BALANCE_REJECTED.equals(x.getSQLState())) {
+    			return true;
+    		}
+    		if (x.getCause() instanceof SQLException && BALANCE_REJECTED.equals(((SQLException) x.getCause()).getSQLState())) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Returns true if the exception in param reports a deadlock; the DBMS then rolled
+     * back the whole transaction
+     */
+    static boolean isDeadlock(SQLException e) {
+    	return e.getErrorCode() == 1213 || "40001".equals(e.getSQLState());
+    }
+    
+    /**
+     * Returns true if the exception in param reports a lock wait timeout
+     */
+    static boolean isLockWaitTimeout(SQLException e) {
+    	return e.getErrorCode() == 1205;
+    }
+
+    /**
+     * Reads the next page of operations of a cursor, i.e. at most cursor.pageSize
+     * operations following the last one read, in (DATE, ID) order
+     * 
+     * @param cursor
+     * 		the cursor to fill
+     */
+    void fetchOperations(OperationCursor cursor) throws SQLException {
+    	PreparedStatement ps = prepare(SELECT_OPERATIONS_PAGE);
+    	ps.setInt(1, cursor.number);
+    	ps.setTimestamp(2, cursor.lastDate);
+    	ps.setTimestamp(3, cursor.to);
+    	ps.setTimestamp(4, cursor.lastDate);
+    	ps.setLong(5, cursor.lastId);
+    	ps.setInt(6, cursor.pageSize);
+    	ResultSet rs = ps.executeQuery();
+    	try {
+    		while (rs.next()) {
+    			cursor.add(rs.getLong(1), new Operation(rs.getInt(2), rs.getDouble(3), rs.getDate(4)), rs.getTimestamp(4));
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    }
+
+    /**
+     * Returns the balance of the account with number in param at the date in param, i.e.
+     * the sum of its operations dated up to it inclusive: the balance of its last
+     * checkpoint before the date, plus the operations since, read from the archive for
+     * those before its horizon.
+     * 
+     * @return 
+     * 		the balance at the date, 0 if the account did not exist then
+     */
+    double getBalanceAt(int number, Date at) throws SQLException {
+    	long since = 0;
+    	double balance = 0;
+    	try {
+    		PreparedStatement ps = prepare(SELECT_CHECKPOINT);
+    		ps.setInt(1, number);
+    		ps.setTimestamp(2, new Timestamp(at.getTime()));
+    		ResultSet rs = ps.executeQuery();
+    		try {
+    			if (rs.next()) {
+    				since = rs.getTimestamp(1).getTime();
+    				balance = rs.getDouble(2);
+    			}
+    		} finally {
+    			rs.close();
+    		}
+    	} catch (SQLException e) {
+    		//BALANCE_CHECKPOINTS is created by createDB
+    		if (e.getErrorCode() != NO_SUCH_TABLE) {
+    			throw e;
+    		}
+    	}
+    	long horizon = archive == null ? 0 : archive.getHorizonTime();
+    	if (since < horizon) {
+    		try {
+    			OperationColumns archived = new OperationColumns();
+    			archive.read(number, new Date(since), at, archived);
+    			balance += archived.getTotal();
+    		} catch (IOException e) {
+    			throw new SQLException("Cannot read the operation archive: " + e.getMessage(), e);
+    		}
+    		since = horizon;
+    	}
+    	if (since <= at.getTime()) {
+    		PreparedStatement ps = prepare(SELECT_OPERATIONS_SUM);
+    		ps.setInt(1, number);
+    		ps.setTimestamp(2, new Timestamp(since));
+    		ps.setTimestamp(3, new Timestamp(at.getTime()));
+    		ResultSet rs = ps.executeQuery();
+    		try {
+    			rs.next();
+    			balance += rs.getDouble(1);
+    		} finally {
+    			rs.close();
+    		}
+    	}
+    	return balance;
+    }
+    
+    /**
+     * Returns the balances of the accounts with numbers in param, read in a single
+     * consistent snapshot by IN lists of IN_CHUNK accounts. The balances of split accounts
+     * include their slots.
+     * 
+     * @param numbers
+     * 		the account numbers, in any order, possibly repeated
+     * @return 
+     * 		the balances in the order of the numbers, NaN for the accounts that do not exist
+     */
+    Balances readBalances(int[] numbers) throws SQLException {
+    	//distinct numbers in ascending order, to look rows up by binary search
+    	int[] sorted = numbers.clone();
+    	Arrays.sort(sorted);
+    	int n = 0;
+    	for (int i = 0; i < sorted.length; i++) {
+    		if (i == 0 || sorted[i] != sorted[i - 1]) {
+    			sorted[n++] = sorted[i];
+    		}
+    	}
+    	double[] values = new double[n];
+    	double[] slotSums = new double[n];
+    	Arrays.fill(values, Double.NaN);
+    	try {
+    		statement.execute(START_SNAPSHOT);
+    		for (int start = 0; start < n; start += IN_CHUNK) {
+    			int end = Math.min(n, start + IN_CHUNK);
+    			PreparedStatement ps;
+    			if (end - start == IN_CHUNK) {
+    				if (selectBalancesChunk == null) {
+    					selectBalancesChunk = balancesIn(IN_CHUNK);
+    				}
+    				ps = prepare(selectBalancesChunk);
+    			} else {
+    				//the last list is shorter, and not registered, as its length varies
+    				ps = con.prepareStatement(balancesIn(end - start));
+    			}
+    			try {
+    				int p = 1;
+    				for (int i = start; i < end; i++) {
+    					ps.setInt(p++, sorted[i]);
+    				}
+    				if (slots != null) {
+    					for (int i = start; i < end; i++) {
+    						ps.setInt(p++, sorted[i]);
+    					}
+    				}
+    				ResultSet rs = ps.executeQuery();
+    				while (rs.next()) {
+    					int k = Arrays.binarySearch(sorted, start, end, rs.getInt(2));
+    					if (rs.getInt(1) == 0) {
+    						values[k] = rs.getDouble(3);
+    					} else {
+    						slotSums[k] += rs.getDouble(3);
+    					}
+    				}
+    				rs.close();
+    			} finally {
+    				if (end - start != IN_CHUNK) {
+    					ps.close();
+    				}
+    			}
+    		}
+    	} finally {
+    		//end the snapshot
+    		rollbackTransaction();
+    	}
+    	double[] balances = new double[numbers.length];
+    	for (int i = 0; i < numbers.length; i++) {
+    		int k = Arrays.binarySearch(sorted, 0, n, numbers[i]);
+    		balances[i] = values[k] + slotSums[k];
+    	}
+    	return new Balances(numbers.clone(), balances);
+    }
+    
+    /**
+     * Returns the query of the balances of count accounts, with their slots if split
+     * accounts are enabled
+     */
+    private String balancesIn(int count) {
+    	StringBuilder sb = new StringBuilder(count * 2);
+    	for (int i = 0; i < count; i++) {
+    		sb.append(i == 0 ? "?" : ",?");
+    	}
+    	String in = sb.toString();
+    	String query = String.format(SELECT_BALANCES_IN, in);
+    	if (slots != null) {
+    		query += String.format(SELECT_SLOTS_IN, in);
+    	}
+    	return query;
+    }
+    
+    /**
+     * Streams the balances of the existing accounts with numbers from first to last
+     * inclusive to the handler in param, in number order and in a single consistent
+     * snapshot. The rows are streamed by the driver rather than read in memory at once.
+     * The balances of split accounts include their slots.
+     */
+    void scanBalances(int first, int last, Balances.Handler handler) throws SQLException {
+    	try {
+    		statement.execute(START_SNAPSHOT);
+    		//the split accounts are few: their sums are read first, as a streamed result
+    		//must be read to its end before the next query
+    		Balances.Builder split = new Balances.Builder();
+    		if (slots != null) {
+    			PreparedStatement ps = prepare(SELECT_SLOT_SUMS_RANGE);
+    			ps.setInt(1, first);
+    			ps.setInt(2, last);
+    			ResultSet rs = ps.executeQuery();
+    			try {
+    				while (rs.next()) {
+    					split.balance(rs.getInt(1), rs.getDouble(2));
+    				}
+    			} finally {
+    				rs.close();
+    			}
+    		}
+    		Balances sums = split.build();
+    		//statements are prepared forward only and read only, as streaming requires
+    		PreparedStatement ps = prepare(SELECT_BALANCES_RANGE);
+    		ps.setInt(1, first);
+    		ps.setInt(2, last);
+    		ps.setFetchSize(Integer.MIN_VALUE);
+    		ResultSet rs = ps.executeQuery();
+    		try {
+    			while (rs.next()) {
+    				int number = rs.getInt(1);
+    				double balance = rs.getDouble(2);
+    				int k = sums.size() == 0 ? -1 : Arrays.binarySearch(sums.getNumbers(), number);
+    				handler.balance(number, k >= 0 ? balance + sums.getBalance(k) : balance);
+    			}
+    		} finally {
+    			rs.close();
+    		}
+    	} finally {
+    		rollbackTransaction();
+    	}
+    }
+    
+    /**
+     * Returns the totals of the operations on the account with number in param, dated from
+     * from to to inclusive. The whole days of the interval are read from OPERATIONS_DAILY,
+     * its other whole hours from OPERATIONS_HOURLY, and only the operations of its partial
+     * hours at both ends from OPERATIONS, in a single query. The operations of split
+     * accounts not yet rolled up are read from OPERATIONS_ROLLUP_PENDING. Hours and days
+     * are those of the JVM's time zone, which must be the session time zone of the
+     * connection.
+     */
+    OperationSummary getSummary(int number, Date from, Date to) throws SQLException {
+    	//dates are stored with a precision of one second: use [start, end) in seconds
+    	long start = (from.getTime() + 999) / 1000 * 1000;
+    	long end = to.getTime() / 1000 * 1000 + 1000;
+    	long firstHour = ceil(start, Calendar.HOUR_OF_DAY);
+    	long lastHour = floor(end, Calendar.HOUR_OF_DAY);
+    	if (firstHour >= lastHour) {
+    		//no whole hour: only raw operations
+    		firstHour = lastHour = end;
+    	}
+    	long firstDay = ceil(firstHour, Calendar.DAY_OF_MONTH);
+    	long lastDay = floor(lastHour, Calendar.DAY_OF_MONTH);
+    	if (firstDay >= lastDay) {
+    		//no whole day: only whole hours
+    		firstDay = lastDay = lastHour;
+    	}
+    	PreparedStatement ps = prepare(SELECT_SUMMARY);
+    	ps.setInt(1, number);
+    	ps.setTimestamp(2, new Timestamp(start));
+    	ps.setTimestamp(3, new Timestamp(firstHour));
+    	ps.setTimestamp(4, new Timestamp(lastHour));
+    	ps.setTimestamp(5, new Timestamp(end));
+    	ps.setInt(6, number);
+    	ps.setTimestamp(7, new Timestamp(firstHour));
+    	ps.setTimestamp(8, new Timestamp(firstDay));
+    	ps.setTimestamp(9, new Timestamp(lastDay));
+    	ps.setTimestamp(10, new Timestamp(lastHour));
+    	ps.setInt(11, number);
+    	ps.setTimestamp(12, new Timestamp(firstDay));
+    	ps.setTimestamp(13, new Timestamp(lastDay));
+    	//the whole days are within the whole hours
+    	ps.setInt(14, number);
+    	ps.setTimestamp(15, new Timestamp(firstHour));
+    	ps.setTimestamp(16, new Timestamp(lastHour));
+    	long count = 0;
+    	double credits = 0;
+    	double debits = 0;
+    	ResultSet rs = ps.executeQuery();
+    	try {
+    		while (rs.next()) {
+    			count += rs.getLong(1);
+    			credits += rs.getDouble(2);
+    			debits += rs.getDouble(3);
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    	return new OperationSummary(number, count, credits, debits);
+    }
+    
+    /**
+     * Returns the start of the hour or day (as per field) containing the time in param
+     */
+    private static long floor(long time, int field) {
+    	Calendar c = Calendar.getInstance();
+    	c.setTimeInMillis(time);
+    	if (field == Calendar.DAY_OF_MONTH) {
+    		c.set(Calendar.HOUR_OF_DAY, 0);
+    	}
+    	c.set(Calendar.MINUTE, 0);
+    	c.set(Calendar.SECOND, 0);
+    	c.set(Calendar.MILLISECOND, 0);
+    	return c.getTimeInMillis();
+    }
+    
+    /**
+     * Returns the start of the first hour or day (as per field) starting at or after the time in param
+     */
+    private static long ceil(long time, int field) {
+    	long t = floor(time, field);
+    	if (t == time) {
+    		return t;
+    	}
+    	Calendar c = Calendar.getInstance();
+    	c.setTimeInMillis(t);
+    	c.add(field, 1);
+    	return c.getTimeInMillis();
+    }
+
+    /**
+     * Drops or recreates the trigger maintaining the operation rollups, and commits. While
+     * it is dropped, the rollups miss the operations logged, until they are added by
+     * {@link #rebuildRollups(long)}.
+     */
+    void setRollupTrigger(boolean enabled) throws SQLException {
+    	statement.executeUpdate(DROP_TRIGGER_ROLLUP_OPERATIONS);
+    	if (enabled) {
+    		statement.executeUpdate(CREATE_TRIGGER_ROLLUP_OPERATIONS);
+    	}
+    	commit();
+    }
+    
+    /**
+     * Adds the operations whose ID follows the one in param to the rollups, with one
+     * statement per rollup, and commits
+     */
+    void rebuildRollups(long afterId) throws SQLException {
+    	for (String sql : new String[] { REBUILD_OPERATIONS_HOURLY, REBUILD_OPERATIONS_DAILY }) {
+    		PreparedStatement ps = prepare(sql);
+    		ps.setLong(1, afterId);
+    		ps.executeUpdate();
+    	}
+    	commit();
+    }
+
+    /**
+     * Adds the operations of the split accounts queued by the rollup trigger to the
+     * rollups, and deletes them from the queue, in a single transaction. The operations
+     * queued meanwhile are left to the next call.
+     * 
+     * @return 
+     * 		the number of operations added
+     */
+    int rollUpPending() throws SQLException {
+    	ResultSet rs;
+    	try {
+    		rs = prepare(SELECT_PENDING_MAX).executeQuery();
+    	} catch (SQLException e) {
+    		//a database created before the queue queues nothing
+    		if (e.getErrorCode() != NO_SUCH_TABLE) {
+    			throw e;
+    		}
+    		rollbackTransaction();
+    		return 0;
+    	}
+    	rs.next();
+    	long maxId = rs.getLong(1);
+    	boolean empty = rs.wasNull();
+    	rs.close();
+    	if (empty) {
+    		rollbackTransaction();
+    		return 0;
+    	}
+    	for (String sql : new String[] { ROLL_UP_PENDING_HOURLY, ROLL_UP_PENDING_DAILY }) {
+    		PreparedStatement ps = prepare(sql);
+    		ps.setLong(1, maxId);
+    		ps.executeUpdate();
+    	}
+    	PreparedStatement ps = prepare(DELETE_PENDING);
+    	ps.setLong(1, maxId);
+    	int count = ps.executeUpdate();
+    	commit();
+    	return count;
+    }
+    
+    /**
+     * Returns true if the database has split accounts, whatever the mode of this manager
+     */
+    boolean hasSplitAccounts() throws SQLException {
+    	try {
+    		ResultSet rs = prepare(SELECT_ANY_SLOT).executeQuery();
+    		try {
+    			return rs.next();
+    		} finally {
+    			rs.close();
+    		}
+    	} catch (SQLException e) {
+    		//ACCOUNT_SLOTS is created by createDB
+    		if (e.getErrorCode() != NO_SUCH_TABLE) {
+    			throw e;
+    		}
+    		return false;
+    	} finally {
+    		rollbackTransaction();
+    	}
+    }
+
+    /**
+     * Loads the balances of all the accounts in an in-memory table. Rows are streamed
+     * from the server one at a time rather than read in a single result.
+     * 
+     * @param table
+     * 		the table to fill
+     * @return 
+     * 		the number of accounts loaded
+     */
+    int loadBalances(AccountTable table) throws SQLException {
+    	PreparedStatement ps = prepare(SELECT_BALANCES);
+    	//Integer.MIN_VALUE asks the MySQL driver to stream the result set
+    	ps.setFetchSize(Integer.MIN_VALUE);
+    	int count = 0;
+    	ResultSet rs = ps.executeQuery();
+    	try {
+    		while (rs.next()) {
+    			int number = rs.getInt(1);
+    			AccountTable.Stripe stripe = table.stripe(number);
+    			synchronized (stripe) {
+    				stripe.put(number, rs.getDouble(2));
+    			}
+    			count++;
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    	return count;
+    }
+    
+    /**
+     * Returns the sequence number of the last record of the journal in param applied to
+     * the database, or 0 if none was
+     */
+    long readJournalState(String journal) throws SQLException {
+    	statement.executeUpdate(CREATE_TABLE_JOURNAL_STATE);
+    	PreparedStatement ps = prepare(SELECT_JOURNAL_STATE);
+    	ps.setString(1, journal);
+    	ResultSet rs = ps.executeQuery();
+    	long seq = rs.next() ? rs.getLong(1) : 0;
+    	rs.close();
+    	commit();
+    	return seq;
+    }
+    
+    /**
+     * Writes mutations of an in-memory table to the database, in order and in a single
+     * transaction. Consecutive mutations of the same type are sent as one JDBC batch.
+     * 
+     * @param mutations
+     * 		the mutations to write
+     */
+    void applyMutations(List<Mutation> mutations) throws SQLException {
+    	applyMutations(mutations, null);
+    }
+    
+    /**
+     * Records the sequence number in param as the last one of the journal in param
+     * applied to the database, and commits, e.g. for a mutation rejected by the database,
+     * so that it is not replayed
+     */
+    void writeJournalState(String journal, long seq) throws SQLException {
+    	try {
+    		PreparedStatement state = prepare(UPDATE_JOURNAL_STATE);
+    		state.setString(1, journal);
+    		state.setLong(2, seq);
+    		state.executeUpdate();
+    		commit();
+    	} catch (SQLException e) {
+    		rollback();
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Writes mutations of an in-memory table to the database, in order and in a single
+     * transaction, along with the sequence number of the last one in the state of their
+     * journal: a mutation is thus written exactly once, even if replayed from the journal.
+     * 
+     * @param mutations
+     * 		the mutations to write
+     * @param journal
+     * 		the name of the journal of the mutations, or null if they are not journaled
+     */
+    void applyMutations(List<Mutation> mutations, String journal) throws SQLException {
+    	//the statement of the batch in progress, the only one that may hold items on failure
+    	PreparedStatement ps = null;
+    	try {
+    		int start = 0;
+    		while (start < mutations.size()) {
+    			int type = mutations.get(start).type;
+    			ps = prepareBatch(type == Mutation.CREATE ? INSERT_ACCOUNT
+    					: type == Mutation.UPDATE ? UPDATE_BALANCE : TRANSFER_BALANCE);
+    			int end = start;
+    			for (; end < mutations.size() && mutations.get(end).type == type; end++) {
+    				Mutation m = mutations.get(end);
+    				switch (type) {
+    				case Mutation.CREATE:
+    					ps.setInt(1, m.from);
+    					break;
+    				case Mutation.UPDATE:
+    					ps.setDouble(1, m.amount);
+    					ps.setInt(2, m.from);
+    					break;
+    				default:
+    					bindTransfer(ps, m.from, m.to, m.amount);
+    				}
+    				ps.addBatch();
+    			}
+    			int[] counts = ps.executeBatch();
+    			for (int i = start; i < end; i++) {
+    				Mutation m = mutations.get(i);
+    				if (type == Mutation.UPDATE && counts[i - start] != 0) {
+    					log(m.from, m.amount);
+    				} else if (type == Mutation.TRANSFER) {
+    					logTransfer(m.from, m.to, m.amount, counts[i - start]);
+    				}
+    			}
+    			start = end;
+    		}
+    		if (journal != null && !mutations.isEmpty()) {
+    			PreparedStatement state = prepare(UPDATE_JOURNAL_STATE);
+    			state.setString(1, journal);
+    			state.setLong(2, mutations.get(mutations.size() - 1).seq);
+    			state.executeUpdate();
+    		}
+    		commit();
+    	} catch (SQLException e) {
+    		if (ps != null) {
+    			ps.clearBatch();
+    		}
+    		rollback();
+    		throw e;
+    	}
+    }
+
+    /**
+     * Inserts the account with number in param and balance 0, without committing.
+     * A failed insert is rolled back alone by the DBMS, and leaves the transaction usable.
+     * 
+     * @return 
+     * 		true if the account was inserted, false if it already exists
+     */
+    boolean executeCreateAccount(int number) throws SQLException {
+    	PreparedStatement ps = prepare(INSERT_ACCOUNT);
+    	ps.setInt(1, number);
+    	try {
+    		ps.execute();
+    		return true;
+    	} catch (SQLException e) {
+    		if (e.getSQLState() != null && e.getSQLState().startsWith(INTEGRITY_VIOLATION)) {
+    			return false;
+    		}
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Adds the amount in param to the account with number in param, without committing.
+     * 
+     * @return 
+     * 		the account balance after the update, as seen by the current transaction,
+     * 		or -1.0 if the update was rejected by the balance trigger
+     */
+    double executeAddBalance(int number, double amount) throws SQLException {
+    	if (conditionalUpdates) {
+    		CallableStatement cs = prepareCall(CALL_ADD_BALANCE);
+    		cs.setInt(1, number);
+    		cs.setDouble(2, amount);
+    		double balance = callForValue(cs);
+    		if (callUpdated) {
+    			log(number, amount);
+    		}
+    		return balance;
+    	}
+    	PreparedStatement ps = prepare(UPDATE_BALANCE);
+    	ps.setDouble(1, amount);
+    	ps.setInt(2, number);
+    	try {
+    		if (ps.executeUpdate() > 0) {
+    			log(number, amount);
+    		}
+    	} catch (SQLException e) {
+    		if (!isBalanceRejection(e)) {
+    			throw e;
+    		}
+    		count(e);
+    		return -1.0;
+    	}
+    	return getBalance(number);
+    }
+    
+    /**
+     * Adds the amount in param to the account with number in param, without committing.
+     * Unlike {@link #executeAddBalance(int, double)}, tells a missing account apart from
+     * an account whose new balance is 0.
+     * 
+     * @return 
+     * 		1 if the account was updated, 0 if it does not exist, or -1 if the update
+     * 		was rejected for insufficient funds
+     */
+    int executeUpdateBalance(int number, double amount) throws SQLException {
+    	if (conditionalUpdates) {
+    		double balance = executeAddBalance(number, amount);
+    		return callUpdated ? 1 : balance == -1.0 ? -1 : 0;
+    	}
+    	PreparedStatement ps = prepare(UPDATE_BALANCE);
+    	ps.setDouble(1, amount);
+    	ps.setInt(2, number);
+    	try {
+    		if (ps.executeUpdate() == 0) {
+    			return 0;
+    		}
+    	} catch (SQLException e) {
+    		if (!isBalanceRejection(e)) {
+    			throw e;
+    		}
+    		count(e);
+    		return -1;
+    	}
+    	log(number, amount);
+    	return 1;
+    }
+    
+    /**
+     * Transfers the amount in param between the accounts in param, without committing.
+     * 
+     * @return 
+     * 		true if the transfer was performed, false if it was rejected by the balance trigger
+     */
+    boolean executeTransfer(int from, int to, double amount) throws SQLException {
+    	if (conditionalUpdates) {
+    		CallableStatement cs = prepareCall(CALL_TRANSFER_BALANCE);
+    		cs.setInt(1, from);
+    		cs.setInt(2, to);
+    		cs.setDouble(3, amount);
+    		boolean debited = callForValue(cs) == 1;
+    		if (debited) {
+    			log(from, -amount);
+    		}
+    		if (callUpdated) {
+    			log(to, amount);
+    		}
+    		return debited;
+    	}
+    	PreparedStatement ps = prepare(TRANSFER_BALANCE);
+    	bindTransfer(ps, from, to, amount);
+    	try {
+    		logTransfer(from, to, amount, ps.executeUpdate());
+    		return true;
+    	} catch (SQLException e) {
+    		if (!isBalanceRejection(e)) {
+    			throw e;
+    		}
+    		count(e);
+    		return false;
+    	}
+    }
+    
+    /**
+     * Starts an XA transaction branch with the identifier in param on this manager's
+     * connection. No local transaction may be in progress.
+     */
+    void startBranch(String xid) throws SQLException {
+    	logSize = 0;
+    	branch = xid;
+    	statement.execute("XA START " + xid);
+    }
+    
+    /**
+     * Ends and prepares the XA transaction branch in progress, after logging its operations
+     */
+    void prepareBranch(String xid) throws SQLException {
+    	flushLog();
+    	statement.execute("XA END " + xid);
+    	statement.execute("XA PREPARE " + xid);
+    }
+    
+    /**
+     * Commits the prepared XA transaction branch with the identifier in param, which may
+     * have been prepared by another connection to the same database
+     */
+    void commitBranch(String xid) throws SQLException {
+    	statement.execute("XA COMMIT " + xid);
+    	if (xid.equals(branch)) {
+    		branch = null;
+    	}
+    	if (metrics != null) {
+    		metrics.recordCommit();
+    	}
+    }
+    
+    /**
+     * Rolls back the XA transaction branch with the identifier in param, whether it is
+     * still active on this connection or prepared
+     */
+    void rollbackBranch(String xid) throws SQLException {
+    	logSize = 0;
+    	try {
+    		statement.execute("XA END " + xid);
+    	} catch (SQLException e) {
+    		//already ended, or prepared
+    	}
+    	statement.execute("XA ROLLBACK " + xid);
+    	if (xid.equals(branch)) {
+    		branch = null;
+    	}
+    	if (metrics != null) {
+    		metrics.recordRollback();
+    	}
+    }
+    
+    /**
+     * Returns true if the XA transaction branch last started on this connection may still
+     * be active or prepared, i.e. it was not committed nor rolled back successfully
+     */
+    boolean hasBranch() {
+    	return branch != null;
+    }
+    
+    /**
+     * Returns the identifiers of the XA transaction branches prepared on the database and
+     * not yet committed nor rolled back, whose global identifier starts with the prefix in
+     * param. The identifiers are returned in the form expected by the branch methods.
+     */
+    List<String> recoverBranches(String prefix) throws SQLException {
+    	List<String> xids = new ArrayList<String>();
+    	ResultSet rs = statement.executeQuery("XA RECOVER");
+    	try {
+    		while (rs.next()) {
+    			//the data column holds the global identifier followed by the branch qualifier
+    			int gtridLength = rs.getInt("gtrid_length");
+    			String data = rs.getString("data");
+    			String gtrid = data.substring(0, gtridLength);
+    			if (gtrid.startsWith(prefix)) {
+    				xids.add("'" + gtrid + "','" + data.substring(gtridLength) + "'");
+    			}
+    		}
+    	} finally {
+    		rs.close();
+    	}
+    	return xids;
     }
 
 }
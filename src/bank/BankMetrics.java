@@ -0,0 +1,255 @@
+package bank;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the bank managers of a JVM: per-method latency histograms,
+ * recorded by {@link InstrumentedBankManager}, and database counters, recorded
+ * by the pooled connections of a {@link BankManagerFactory} configured with
+ * {@link BankManagerFactory#setMetrics(BankMetrics)}. Recording is lock free
+ * and allocates no memory.
+ * <p>
+ * The metrics may be exposed through JMX with {@link #register(String)}, and
+ * printed periodically with {@link #startDump(PrintStream, long)}.
+ */
+public class BankMetrics implements BankMetricsMBean {
+
+    //
+    // CONSTANTS
+    //
+    static final int CREATE_DB = 0;
+    static final int CREATE_ACCOUNT = 1;
+    static final int GET_BALANCE = 2;
+    static final int ADD_BALANCE = 3;
+    static final int TRANSFER = 4;
+    static final int GET_OPERATIONS = 5;
+    private static final String[] METHODS = { "createDB", "createAccount", "getBalance", "addBalance", "transfer",
+	    "getOperations" };
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final LatencyHistogram[] latencies = new LatencyHistogram[METHODS.length];
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong lockWaitTimeouts = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong refusals = new AtomicLong();
+    private final AtomicLong operationRows = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementPrepares = new AtomicLong();
+    private Timer dumper;
+
+    //
+    // CONSTRUCTOR
+    //
+    public BankMetrics() {
+	for (int i = 0; i < METHODS.length; i++) {
+	    latencies[i] = new LatencyHistogram();
+	}
+    }
+
+    //
+    // RECORDING
+    //
+    void recordLatency(int method, long startNanos) {
+	latencies[method].recordSince(startNanos);
+    }
+
+    void recordCommit() {
+	commits.incrementAndGet();
+    }
+
+    void recordRollback() {
+	rollbacks.incrementAndGet();
+    }
+
+    void recordRefusal() {
+	refusals.incrementAndGet();
+    }
+
+    void recordOperationRows(int n) {
+	operationRows.addAndGet(n);
+    }
+
+    /**
+     * Counts a lookup in the statement registry of a connection: a hit if the
+     * statement was prepared already.
+     */
+    void recordStatement(boolean hit) {
+	(hit ? statementHits : statementPrepares).incrementAndGet();
+    }
+
+    /**
+     * Counts an exception raised by the database, according to its cause.
+     */
+    void recordError(Exception e) {
+	if (!(e instanceof SQLException)) {
+	    errors.incrementAndGet();
+	    return;
+	}
+	SQLException x = (SQLException) e;
+	if (BankManagerImpl.isBalanceRejection(x)) {
+	    rejections.incrementAndGet();
+	} else if (BankManagerImpl.isDeadlock(x)) {
+	    deadlocks.incrementAndGet();
+	} else if (BankManagerImpl.isLockWaitTimeout(x)) {
+	    lockWaitTimeouts.incrementAndGet();
+	} else {
+	    errors.incrementAndGet();
+	}
+    }
+
+    //
+    // MBEAN
+    //
+    public long getCommits() {
+	return commits.get();
+    }
+
+    public long getRollbacks() {
+	return rollbacks.get();
+    }
+
+    public long getRejections() {
+	return rejections.get();
+    }
+
+    public long getDeadlocks() {
+	return deadlocks.get();
+    }
+
+    public long getLockWaitTimeouts() {
+	return lockWaitTimeouts.get();
+    }
+
+    public long getErrors() {
+	return errors.get();
+    }
+
+    public long getRefusals() {
+	return refusals.get();
+    }
+
+    public long getOperationRows() {
+	return operationRows.get();
+    }
+
+    public long getStatementHits() {
+	return statementHits.get();
+    }
+
+    public long getStatementPrepares() {
+	return statementPrepares.get();
+    }
+
+    public double getStatementHitRate() {
+	long hits = statementHits.get();
+	long total = hits + statementPrepares.get();
+	return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public String[] getLatencies() {
+	String[] lines = new String[METHODS.length];
+	for (int i = 0; i < METHODS.length; i++) {
+	    lines[i] = METHODS[i] + ": " + latencies[i];
+	}
+	return lines;
+    }
+
+    /**
+     * Returns the latency histogram of the specified method, e.g.
+     * <code>"transfer"</code>.
+     */
+    public LatencyHistogram getLatency(String method) {
+	for (int i = 0; i < METHODS.length; i++) {
+	    if (METHODS[i].equals(method)) {
+		return latencies[i];
+	    }
+	}
+	throw new IllegalArgumentException("unknown method: " + method);
+    }
+
+    public void reset() {
+	for (LatencyHistogram h : latencies) {
+	    h.reset();
+	}
+	commits.set(0);
+	rollbacks.set(0);
+	rejections.set(0);
+	deadlocks.set(0);
+	lockWaitTimeouts.set(0);
+	errors.set(0);
+	refusals.set(0);
+	operationRows.set(0);
+	statementHits.set(0);
+	statementPrepares.set(0);
+    }
+
+    //
+    // EXPOSITION
+    //
+
+    /**
+     * Registers these metrics in the platform MBean server, under the name
+     * <code>bank:type=BankMetrics,name=</code><i>name</i>.
+     *
+     * @throws JMException
+     *             if the registration failed, e.g. if the name is in use
+     */
+    public void register(String name) throws JMException {
+	ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+		new ObjectName("bank:type=BankMetrics,name=" + ObjectName.quote(name)));
+    }
+
+    /**
+     * Prints these metrics to the specified stream every period, from a
+     * background thread.
+     */
+    public synchronized void startDump(final PrintStream out, long periodMillis) {
+	stopDump();
+	dumper = new Timer("BankMetrics-dump", true);
+	dumper.schedule(new TimerTask() {
+	    public void run() {
+		out.println(BankMetrics.this);
+	    }
+	}, periodMillis, periodMillis);
+    }
+
+    /**
+     * Stops printing these metrics.
+     */
+    public synchronized void stopDump() {
+	if (dumper != null) {
+	    dumper.cancel();
+	    dumper = null;
+	}
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	sb.append("BankMetrics at ").append(new Date()).append('\n');
+	sb.append("  commits=").append(getCommits()).append(" rollbacks=").append(getRollbacks());
+	sb.append(" rejections=").append(getRejections()).append(" refusals=").append(getRefusals());
+	sb.append(" deadlocks=").append(getDeadlocks()).append(" lockWaitTimeouts=").append(getLockWaitTimeouts());
+	sb.append(" errors=").append(getErrors()).append(" operationRows=").append(getOperationRows());
+	sb.append(String.format("%n  statements: hits=%d prepares=%d hitRate=%.4f", getStatementHits(),
+		getStatementPrepares(), getStatementHitRate()));
+	for (String line : getLatencies()) {
+	    sb.append("\n  ").append(line);
+	}
+	return sb.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package bank;
+
+/**
+ * The management interface of {@link BankMetrics}, as exposed through JMX.
+ */
+public interface BankMetricsMBean {
+
+    /**
+     * Returns the number of transactions committed.
+     */
+    long getCommits();
+
+    /**
+     * Returns the number of transactions rolled back by the application.
+     */
+    long getRollbacks();
+
+    /**
+     * Returns the number of updates rejected by the balance trigger.
+     */
+    long getRejections();
+
+    /**
+     * Returns the number of transactions aborted by a deadlock.
+     */
+    long getDeadlocks();
+
+    /**
+     * Returns the number of lock wait timeouts.
+     */
+    long getLockWaitTimeouts();
+
+    /**
+     * Returns the number of other SQL errors.
+     */
+    long getErrors();
+
+    /**
+     * Returns the number of calls refused by a manager, i.e. withdrawals or
+     * transfers without sufficient funds.
+     */
+    long getRefusals();
+
+    /**
+     * Returns the number of operations returned by <code>getOperations</code>.
+     */
+    long getOperationRows();
+
+    /**
+     * Returns the number of statements found prepared in the statement
+     * registry of their connection.
+     */
+    long getStatementHits();
+
+    /**
+     * Returns the number of statements prepared by the statement registries,
+     * i.e. parsed by the server.
+     */
+    long getStatementPrepares();
+
+    /**
+     * Returns the share of the statement lookups found prepared, from 0 to 1.
+     */
+    double getStatementHitRate();
+
+    /**
+     * Returns one line per method, with its call count and latency
+     * percentiles.
+     */
+    String[] getLatencies();
+
+    /**
+     * Resets all the counters and latency histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,347 @@
+package bank;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A loader of accounts with initial balances, for the provisioning of large
+ * numbers of accounts. Accounts are read from a {@link Source}, and loaded by
+ * chunks, each committed in a single transaction, with either:
+ * <ul>
+ * <li>JDBC batches, which the connections of a {@link BankManagerFactory}
+ * send as multi-row inserts, or</li>
+ * <li><code>LOAD DATA LOCAL INFILE</code> statements reading a temporary file
+ * written for each chunk, which requires the <code>local_infile</code> option
+ * of the server.</li>
+ * </ul>
+ * Unique and foreign key checks are disabled on the loading connection, as
+ * the loader inserts each account before its operation. Each non zero initial
+ * balance is logged as an operation, as if it had been added to the account
+ * after its creation.
+ * <p>
+ * If the loader has exclusive use of the database, e.g. for an initial
+ * migration, the trigger maintaining the operation rollups may also be
+ * suspended during the load: the rollups are then updated at the end with
+ * one statement per rollup rather than once per operation.
+ */
+public class BulkLoader {
+
+    //
+    // CONSTANTS
+    //
+    private static final int DEFAULT_CHUNK_ROWS = 50000;
+
+    private static final String INSERT_ACCOUNT = "insert into ACCOUNTS (NUMBER, BALANCE) values (?, ?) ;";
+    private static final String INSERT_OPERATION = "insert into OPERATIONS(NUMBER, AMOUNT, DATE) values (?, ?, sysdate()) ;";
+    private static final String LOAD_ACCOUNTS = "load data local infile '%s' into table ACCOUNTS (NUMBER, BALANCE) ;";
+    private static final String LOAD_OPERATIONS = "load data local infile '%s' into table OPERATIONS (NUMBER, AMOUNT) "
+	    + "set DATE = sysdate() ;";
+    private static final String SELECT_MAX_OPERATION = "select ifnull(max(ID), 0) from OPERATIONS ;";
+
+    //
+    // HELPER CLASSES
+    //
+
+    /**
+     * A stream of accounts to load, read one at a time.
+     */
+    public interface Source {
+
+	/**
+	 * Moves to the next account, and returns false if there is none.
+	 */
+	boolean next();
+
+	/**
+	 * Returns the number of the current account.
+	 */
+	int getNumber();
+
+	/**
+	 * Returns the initial balance of the current account.
+	 */
+	double getBalance();
+    }
+
+    /**
+     * A listener notified after each chunk loaded.
+     */
+    public interface ProgressListener {
+
+	/**
+	 * @param rows
+	 *            the number of accounts loaded so far
+	 * @param rowsPerSecond
+	 *            the average loading rate so far
+	 */
+	void progress(long rows, double rowsPerSecond);
+    }
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory factory;
+    private int chunkRows = DEFAULT_CHUNK_ROWS;
+    private boolean loadData = false;
+    private boolean exclusive = false;
+    private ProgressListener listener;
+
+    //
+    // CONSTRUCTOR
+    //
+    public BulkLoader(BankManagerFactory f) {
+	factory = f;
+    }
+
+    /**
+     * Returns a source of the accounts numbered from first to first + count -
+     * 1, all with the same initial balance.
+     */
+    public static Source range(final int first, final int count, final double balance) {
+	return new Source() {
+	    private int number = first - 1;
+
+	    public boolean next() {
+		if (number - first + 1 >= count) {
+		    return false;
+		}
+		number++;
+		return true;
+	    }
+
+	    public int getNumber() {
+		return number;
+	    }
+
+	    public double getBalance() {
+		return balance;
+	    }
+	};
+    }
+
+    //
+    // LOADING
+    //
+
+    /**
+     * Loads the accounts numbered from first to first + count - 1, all with
+     * the same initial balance.
+     *
+     * @return the number of accounts loaded
+     */
+    public long loadRange(int first, int count, double balance) throws SQLException, IOException {
+	return load(range(first, count, balance));
+    }
+
+    /**
+     * Loads the accounts of the specified source, which must not exist yet.
+     * Loading them in ascending number order is the fastest.
+     *
+     * @return the number of accounts loaded
+     * @throws SQLException
+     *             if an SQL exception occurs, e.g. if an account exists; the
+     *             chunks loaded before it remain committed
+     * @throws IllegalArgumentException
+     *             if an initial balance is negative; the chunks before the
+     *             account remain committed
+     */
+    public long load(Source source) throws SQLException, IOException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	Connection con = m.getConnection();
+	Statement s = con.createStatement();
+	long afterId = -1;
+	try {
+	    s.execute("SET unique_checks = 0, foreign_key_checks = 0");
+	    if (exclusive) {
+		ResultSet rs = s.executeQuery(SELECT_MAX_OPERATION);
+		rs.next();
+		afterId = rs.getLong(1);
+		rs.close();
+		m.setRollupTrigger(false);
+	    }
+	    int[] numbers = new int[chunkRows];
+	    double[] balances = new double[chunkRows];
+	    long rows = 0;
+	    long start = System.nanoTime();
+	    for (;;) {
+		int n = 0;
+		while (n < chunkRows && source.next()) {
+		    numbers[n] = source.getNumber();
+		    balances[n] = source.getBalance();
+		    if (balances[n] < 0) {
+			throw new IllegalArgumentException("negative balance for account " + numbers[n]);
+		    }
+		    n++;
+		}
+		if (n == 0) {
+		    break;
+		}
+		try {
+		    if (loadData) {
+			loadChunk(s, numbers, balances, n);
+		    } else {
+			insertChunk(con, numbers, balances, n);
+		    }
+		    m.commitTransaction();
+		} catch (SQLException e) {
+		    m.rollbackTransaction();
+		    throw e;
+		}
+		rows += n;
+		if (listener != null) {
+		    listener.progress(rows, rows / ((System.nanoTime() - start) / 1e9));
+		}
+		if (n < chunkRows) {
+		    break;
+		}
+	    }
+	    failed = false;
+	    return rows;
+	} finally {
+	    try {
+		if (afterId >= 0) {
+		    m.setRollupTrigger(true);
+		    m.rebuildRollups(afterId);
+		}
+		s.execute("SET unique_checks = 1, foreign_key_checks = 1");
+		s.close();
+	    } catch (SQLException e) {
+		if (!failed) {
+		    throw e;
+		}
+		System.err.println("Error: " + e.getMessage());
+	    } finally {
+		pool.release(m, failed);
+	    }
+	}
+    }
+
+    /**
+     * Inserts the first n accounts of the arrays and their operations with
+     * two JDBC batches, without committing.
+     */
+    private static void insertChunk(Connection con, int[] numbers, double[] balances, int n) throws SQLException {
+	// client-side statements, whose batches the driver rewrites as multi-row inserts
+	PreparedStatement accounts = StatementRegistry.prepareBatch(con, INSERT_ACCOUNT);
+	PreparedStatement operations = StatementRegistry.prepareBatch(con, INSERT_OPERATION);
+	try {
+	    boolean logged = false;
+	    for (int i = 0; i < n; i++) {
+		accounts.setInt(1, numbers[i]);
+		accounts.setDouble(2, balances[i]);
+		accounts.addBatch();
+		if (balances[i] != 0) {
+		    operations.setInt(1, numbers[i]);
+		    operations.setDouble(2, balances[i]);
+		    operations.addBatch();
+		    logged = true;
+		}
+	    }
+	    accounts.executeBatch();
+	    if (logged) {
+		operations.executeBatch();
+	    }
+	} finally {
+	    accounts.close();
+	    operations.close();
+	}
+    }
+
+    /**
+     * Loads the first n accounts of the arrays and their operations from
+     * temporary files, without committing.
+     */
+    private static void loadChunk(Statement s, int[] numbers, double[] balances, int n) throws SQLException,
+	    IOException {
+	File accounts = File.createTempFile("accounts", ".tsv");
+	File operations = File.createTempFile("operations", ".tsv");
+	try {
+	    BufferedWriter a = new BufferedWriter(new FileWriter(accounts));
+	    BufferedWriter o = new BufferedWriter(new FileWriter(operations));
+	    boolean logged = false;
+	    try {
+		for (int i = 0; i < n; i++) {
+		    a.write(numbers[i] + "\t" + balances[i] + "\n");
+		    if (balances[i] != 0) {
+			o.write(numbers[i] + "\t" + balances[i] + "\n");
+			logged = true;
+		    }
+		}
+	    } finally {
+		a.close();
+		o.close();
+	    }
+	    // LOCAL implies IGNORE: existing accounts are skipped, not reported
+	    int loaded = s.executeUpdate(String.format(LOAD_ACCOUNTS, path(accounts)));
+	    if (loaded != n) {
+		throw new SQLException((n - loaded) + " accounts of the chunk already exist");
+	    }
+	    if (logged) {
+		s.executeUpdate(String.format(LOAD_OPERATIONS, path(operations)));
+	    }
+	} finally {
+	    accounts.delete();
+	    operations.delete();
+	}
+    }
+
+    private static String path(File f) {
+	return f.getAbsolutePath().replace('\\', '/').replace("'", "\\'");
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int getChunkRows() {
+	return chunkRows;
+    }
+
+    /**
+     * Sets the number of accounts loaded per transaction.
+     */
+    public void setChunkRows(int rows) {
+	if (rows < 1) {
+	    throw new IllegalArgumentException("rows must be positive: " + rows);
+	}
+	chunkRows = rows;
+    }
+
+    public boolean isLoadData() {
+	return loadData;
+    }
+
+    /**
+     * Sets whether accounts are loaded with <code>LOAD DATA LOCAL
+     * INFILE</code> rather than with batches of inserts.
+     */
+    public void setLoadData(boolean b) {
+	loadData = b;
+    }
+
+    public boolean isExclusive() {
+	return exclusive;
+    }
+
+    /**
+     * Sets whether the loader has exclusive use of the database, in which case
+     * the trigger maintaining the operation rollups is suspended during the
+     * loads. The rollups are then wrong for the operations logged by other
+     * clients during a load.
+     */
+    public void setExclusive(boolean b) {
+	exclusive = b;
+    }
+
+    public void setProgressListener(ProgressListener l) {
+	listener = l;
+    }
+}
@@ -0,0 +1,100 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A BankManager decorator serving balances from a {@link BalanceCache}. Balance
+ * reads go to the database only on a cache miss, and every call that may
+ * change balances invalidates the accounts it updates once its transaction is
+ * committed, in the calling thread.
+ * <p>
+ * The cache stays consistent as long as all the updates of the database go
+ * through managers sharing it, e.g. the managers of one
+ * {@link BankManagerFactory} each wrapped with the same cache:
+ *
+ * <pre>
+ * BalanceCache cache = new BalanceCache(100000);
+ * BankManager m = new CachingBankManager(factory.newManager(), cache);
+ * </pre>
+ */
+public class CachingBankManager implements BankManager {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManager manager;
+    private final BalanceCache cache;
+
+    //
+    // CONSTRUCTOR
+    //
+    public CachingBankManager(BankManager m, BalanceCache c) {
+	manager = m;
+	cache = c;
+    }
+
+    //
+    // BANK MANAGER
+    //
+    @Override
+    public void createDB() throws SQLException {
+	manager.createDB();
+	cache.clear();
+    }
+
+    @Override
+    public boolean createAccount(int number) throws SQLException {
+	boolean r = manager.createAccount(number);
+	cache.invalidate(number);
+	return r;
+    }
+
+    @Override
+    public double getBalance(int number) throws SQLException {
+	double b = cache.get(number);
+	if (Double.isNaN(b)) {
+	    long stamp = cache.stamp(number);
+	    b = manager.getBalance(number);
+	    cache.put(number, b, stamp);
+	}
+	return b;
+    }
+
+    @Override
+    public double addBalance(int number, double amount) throws SQLException {
+	try {
+	    return manager.addBalance(number, amount);
+	} finally {
+	    cache.invalidate(number);
+	}
+    }
+
+    @Override
+    public boolean transfer(int from, int to, double amount) throws SQLException {
+	try {
+	    return manager.transfer(from, to, amount);
+	} finally {
+	    cache.invalidate(from);
+	    cache.invalidate(to);
+	}
+    }
+
+    @Override
+    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	return manager.getOperations(number, from, to);
+    }
+
+    //
+    // ACCESSORS
+    //
+    public BalanceCache getCache() {
+	return cache;
+    }
+
+    @Override
+    public String toString() {
+	return "CachingBankManager [" + manager + ", " + cache + "]";
+    }
+}
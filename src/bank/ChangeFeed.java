@@ -0,0 +1,298 @@
+package bank;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A feed of the operations logged in <code>OPERATIONS</code>, in the order of
+ * their ID, for the consumers that process every operation once, such as
+ * fraud detection or reporting. Unlike polling <code>getOperations</code> with
+ * date windows, a consumer reads from the ID of the last operation it
+ * processed, its <i>offset</i>, and never reads an operation twice or skips
+ * one.
+ * <p>
+ * IDs are allocated when operations are inserted, but become visible when
+ * their transaction commits, not necessarily in ID order. The feed therefore
+ * stops before a missing ID, until the operation after it is older than the
+ * <i>settle time</i>: a transaction that got the missing ID must have ended
+ * by then, so that the ID belongs to a rolled back operation. The settle time
+ * must exceed the duration of the longest transaction logging operations.
+ * <p>
+ * Consumers may keep their offsets themselves and call
+ * {@link #read(long, int, long)}, e.g. to store them along with their output
+ * in a single transaction. Otherwise, the feed stores the offsets of named
+ * consumers in <code>FEED_OFFSETS</code>: a consumer calls
+ * {@link #poll(String, int, long)}, processes the batch, then
+ * {@link #commit(String, long)} the ID of its last operation.
+ * <p>
+ * An object of this class is thread safe, and holds no connection while a
+ * call waits for new operations.
+ */
+public class ChangeFeed {
+
+    //
+    // CONSTANTS
+    //
+    private static final int DEFAULT_SETTLE_TIME = 10; // s
+    private static final long MIN_PAUSE = 10; // ms
+    private static final long MAX_PAUSE = 500; // ms
+
+    private static final String SELECT_CHANGES = "select ID, NUMBER, AMOUNT, DATE, "
+	    + "DATE <= sysdate() - interval ? second from OPERATIONS where ID>? order by ID limit ? ;";
+    private static final String SELECT_OFFSET = "select LAST_ID from FEED_OFFSETS where CONSUMER=? ;";
+    private static final String UPDATE_OFFSET = "insert into FEED_OFFSETS(CONSUMER, LAST_ID) values (?, ?) "
+	    + "on duplicate key update LAST_ID=values(LAST_ID) ;";
+
+    //
+    // HELPER CLASSES
+    //
+
+    /**
+     * An operation read from the feed, with its ID.
+     */
+    public static class Entry {
+
+	private final long id;
+	private final Operation operation;
+
+	Entry(long id, Operation operation) {
+	    this.id = id;
+	    this.operation = operation;
+	}
+
+	/**
+	 * Returns the ID of the operation, to commit as the offset of the
+	 * consumer once the operation is processed.
+	 */
+	public long getId() {
+	    return id;
+	}
+
+	public Operation getOperation() {
+	    return operation;
+	}
+
+	@Override
+	public String toString() {
+	    return "Entry [id=" + id + ", operation=" + operation + "]";
+	}
+    }
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory factory;
+    private volatile int settleTime = DEFAULT_SETTLE_TIME;
+    private volatile boolean offsetsCreated = false;
+
+    //
+    // CONSTRUCTOR
+    //
+    public ChangeFeed(BankManagerFactory f) {
+	factory = f;
+    }
+
+    //
+    // FEED
+    //
+
+    /**
+     * Returns the operations following the specified offset, waiting for new
+     * ones if there is none yet.
+     *
+     * @param afterId
+     *            the ID of the last operation processed by the consumer, or
+     *            0 to read from the first operation
+     * @param max
+     *            the maximum number of operations returned
+     * @param timeoutMillis
+     *            the maximum time to wait for an operation, or 0 not to wait
+     * @return the operations in ID order, or an empty list if there was none
+     *         before the timeout
+     */
+    public List<Entry> read(long afterId, int max, long timeoutMillis) throws SQLException, InterruptedException {
+	if (max < 1) {
+	    throw new IllegalArgumentException("max must be positive: " + max);
+	}
+	long deadline = System.currentTimeMillis() + timeoutMillis;
+	long pause = MIN_PAUSE;
+	for (;;) {
+	    List<Entry> r = fetch(afterId, max);
+	    long remaining = deadline - System.currentTimeMillis();
+	    if (!r.isEmpty() || remaining <= 0) {
+		return r;
+	    }
+	    Thread.sleep(Math.min(pause, remaining));
+	    pause = Math.min(pause * 2, MAX_PAUSE);
+	}
+    }
+
+    /**
+     * Returns the operations following the offset of the specified consumer,
+     * as {@link #read(long, int, long)}.
+     */
+    public List<Entry> poll(String consumer, int max, long timeoutMillis) throws SQLException, InterruptedException {
+	return read(getOffset(consumer), max, timeoutMillis);
+    }
+
+    private List<Entry> fetch(long afterId, int max) throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    List<Entry> list = new ArrayList<Entry>();
+	    PreparedStatement ps = m.getConnection().prepareStatement(SELECT_CHANGES);
+	    try {
+		ps.setInt(1, settleTime);
+		ps.setLong(2, afterId);
+		ps.setInt(3, max);
+		ResultSet rs = ps.executeQuery();
+		long expected = afterId + 1;
+		while (rs.next()) {
+		    long id = rs.getLong(1);
+		    // a missing ID may still be committed, unless the operation after it is settled
+		    if (id != expected && !rs.getBoolean(5)) {
+			break;
+		    }
+		    list.add(new Entry(id, new Operation(rs.getInt(2), rs.getDouble(3), rs.getTimestamp(4))));
+		    expected = id + 1;
+		}
+		rs.close();
+	    } finally {
+		ps.close();
+	    }
+	    failed = false;
+	    return list;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // OFFSETS
+    //
+
+    /**
+     * Returns the offset committed by the specified consumer, or 0 if it has
+     * none.
+     */
+    public long getOffset(String consumer) throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Connection con = m.getConnection();
+	    createOffsets(con);
+	    PreparedStatement ps = con.prepareStatement(SELECT_OFFSET);
+	    try {
+		ps.setString(1, consumer);
+		ResultSet rs = ps.executeQuery();
+		long offset = rs.next() ? rs.getLong(1) : 0;
+		rs.close();
+		failed = false;
+		return offset;
+	    } finally {
+		ps.close();
+	    }
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Commits the offset of the specified consumer, i.e. the ID of the last
+     * operation it processed.
+     */
+    public void commit(String consumer, long offset) throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Connection con = m.getConnection();
+	    createOffsets(con);
+	    PreparedStatement ps = con.prepareStatement(UPDATE_OFFSET);
+	    try {
+		ps.setString(1, consumer);
+		ps.setLong(2, offset);
+		ps.executeUpdate();
+		m.commitTransaction();
+		failed = false;
+	    } finally {
+		ps.close();
+	    }
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Returns the names of the consumers with a committed offset.
+     */
+    public List<String> getConsumers() throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Connection con = m.getConnection();
+	    createOffsets(con);
+	    List<String> list = new ArrayList<String>();
+	    Statement s = con.createStatement();
+	    try {
+		ResultSet rs = s.executeQuery("select CONSUMER from FEED_OFFSETS order by CONSUMER ;");
+		while (rs.next()) {
+		    list.add(rs.getString(1));
+		}
+		rs.close();
+	    } finally {
+		s.close();
+	    }
+	    failed = false;
+	    return Collections.unmodifiableList(list);
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Creates <code>FEED_OFFSETS</code> in the databases created before it
+     * was added to <code>createDB</code>.
+     */
+    private void createOffsets(Connection con) throws SQLException {
+	if (!offsetsCreated) {
+	    Statement s = con.createStatement();
+	    try {
+		s.executeUpdate(BankManagerImpl.CREATE_TABLE_FEED_OFFSETS);
+	    } finally {
+		s.close();
+	    }
+	    offsetsCreated = true;
+	}
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int getSettleTime() {
+	return settleTime;
+    }
+
+    /**
+     * Sets the time after which a missing ID is deemed rolled back.
+     *
+     * @param seconds
+     *            the settle time, longer than any transaction logging
+     *            operations
+     */
+    public void setSettleTime(int seconds) {
+	if (seconds < 0) {
+	    throw new IllegalArgumentException("seconds must not be negative: " + seconds);
+	}
+	settleTime = seconds;
+    }
+}
@@ -0,0 +1,355 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A bounded pool of connections to the bank's database. Each pooled connection
+ * is wrapped in a {@link BankManagerImpl} object, so that the statements it
+ * prepares are kept alive as long as the connection itself.
+ * <p>
+ * Connections are checked out for the duration of a single call by
+ * {@link PooledBankManager}. A connection that stayed idle longer than the
+ * validation interval is pinged before being handed out, and connections idle
+ * longer than the maximum idle time are closed by a background evictor.
+ */
+public class ConnectionPool {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory factory;
+    private final int maxSize; // maximum number of open connections
+    private final int minIdle; // number of idle connections never evicted
+    private final long maxWait; // maximum time to wait for a connection (ms)
+    private final long maxIdleTime; // idle time before eviction (ms)
+    private final long validationInterval; // idle time before validation (ms)
+
+    private final LinkedList<Entry> idle = new LinkedList<Entry>();
+    private int size = 0; // open connections, including those being opened
+    private int active = 0; // connections currently checked out
+    private boolean closed = false;
+    private final Timer evictor;
+
+    // metrics
+    private final long startTime = System.nanoTime();
+    private long lastChange = startTime; // last change of the active count
+    private long busyTime = 0; // integral of the active count over time (ns)
+    private long checkouts = 0;
+    private long timeouts = 0;
+    private long waitTime = 0; // total time spent waiting for a connection (ns)
+    private long maxWaitTime = 0;
+    private long created = 0;
+    private long destroyed = 0;
+
+    //
+    // HELPER CLASSES
+    //
+    private static class Entry {
+	final BankManagerImpl manager;
+	long lastUsed; // time the connection was returned to the pool (ms)
+
+	Entry(BankManagerImpl m) {
+	    manager = m;
+	    lastUsed = System.currentTimeMillis();
+	}
+    }
+
+    //
+    // CONSTRUCTOR
+    //
+    ConnectionPool(BankManagerFactory f) {
+	factory = f;
+	maxSize = f.getMaxConnections();
+	minIdle = f.getMinIdle();
+	maxWait = f.getMaxWait();
+	maxIdleTime = f.getMaxIdleTime();
+	validationInterval = f.getValidationInterval();
+
+	evictor = new Timer("ConnectionPool-evictor", true);
+	long period = Math.max(1000, maxIdleTime / 2);
+	evictor.schedule(new TimerTask() {
+	    public void run() {
+		evict();
+	    }
+	}, period, period);
+    }
+
+    //
+    // CHECKOUT / CHECKIN
+    //
+
+    /**
+     * Checks a connection out of the pool, opening a new one if none is idle
+     * and the pool is not full, or waiting for one to be returned otherwise.
+     *
+     * @return the manager wrapping the checked out connection
+     * @throws SQLException
+     *             if no connection could be obtained within the maximum wait
+     *             time, or if opening a new one failed
+     */
+    BankManagerImpl acquire() throws SQLException {
+	long start = System.nanoTime();
+	long deadline = start + maxWait * 1000000L;
+	while (true) {
+	    Entry e = null;
+	    boolean open = false;
+	    synchronized (this) {
+		while (!closed && idle.isEmpty() && size >= maxSize) {
+		    long remaining = deadline - System.nanoTime();
+		    if (remaining <= 0) {
+			timeouts++;
+			throw new SQLException("Timeout waiting for a connection (" + maxWait + " ms)", "08001");
+		    }
+		    try {
+			wait(remaining / 1000000L + 1);
+		    } catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", "08001", ie);
+		    }
+		}
+		if (closed) {
+		    throw new SQLException("Connection pool is closed", "08003");
+		}
+		if (!idle.isEmpty()) {
+		    // most recently used first, so that surplus connections age out
+		    e = idle.removeFirst();
+		} else {
+		    size++;
+		    open = true;
+		}
+		setActive(active + 1);
+	    }
+
+	    if (open) {
+		try {
+		    e = new Entry(factory.openSession());
+		} catch (SQLException ex) {
+		    synchronized (this) {
+			size--;
+			setActive(active - 1);
+			notifyAll();
+		    }
+		    throw ex;
+		}
+		synchronized (this) {
+		    created++;
+		}
+	    } else if (System.currentTimeMillis() - e.lastUsed > validationInterval && !isValid(e.manager)) {
+		// stale connection: drop it and try again
+		discard(e.manager);
+		continue;
+	    }
+
+	    synchronized (this) {
+		long waited = System.nanoTime() - start;
+		checkouts++;
+		waitTime += waited;
+		if (waited > maxWaitTime) {
+		    maxWaitTime = waited;
+		}
+	    }
+	    return e.manager;
+	}
+    }
+
+    /**
+     * Returns a connection to the pool. Any transaction left open on it is
+     * rolled back, so that the next user does not read from a stale snapshot.
+     *
+     * @param m
+     *            the manager returned by {@link #acquire()}
+     * @param failed
+     *            <code>true</code> if the call using it raised an exception, in
+     *            which case the connection is validated before reuse
+     */
+    void release(BankManagerImpl m, boolean failed) {
+	try {
+	    m.rollbackTransaction();
+	} catch (SQLException e) {
+	    failed = true;
+	}
+	if (failed && !isValid(m)) {
+	    discard(m);
+	    return;
+	}
+	boolean close;
+	synchronized (this) {
+	    setActive(active - 1);
+	    close = closed;
+	    if (!close) {
+		Entry e = new Entry(m);
+		idle.addFirst(e);
+		notifyAll();
+	    } else {
+		size--;
+		destroyed++;
+	    }
+	}
+	if (close) {
+	    m.close();
+	}
+    }
+
+    /**
+     * Closes a connection instead of returning it to the pool, e.g. as it may
+     * hold a prepared XA branch, which would fail the statements of the next
+     * user and keep its locks.
+     *
+     * @param m
+     *            the manager returned by {@link #acquire()}
+     */
+    void discard(BankManagerImpl m) {
+	m.close();
+	synchronized (this) {
+	    size--;
+	    destroyed++;
+	    setActive(active - 1);
+	    notifyAll();
+	}
+    }
+
+    private static boolean isValid(BankManagerImpl m) {
+	try {
+	    // Connector/J answers isValid() with a lightweight ping
+	    return m.getConnection().isValid(1);
+	} catch (SQLException e) {
+	    return false;
+	}
+    }
+
+    // must be called with the pool's lock held
+    private void setActive(int n) {
+	long now = System.nanoTime();
+	busyTime += active * (now - lastChange);
+	lastChange = now;
+	active = n;
+    }
+
+    //
+    // MAINTENANCE
+    //
+
+    /**
+     * Closes the connections that stayed idle longer than the maximum idle
+     * time, keeping at least the minimum number of idle connections.
+     */
+    void evict() {
+	LinkedList<Entry> evicted = new LinkedList<Entry>();
+	synchronized (this) {
+	    long limit = System.currentTimeMillis() - maxIdleTime;
+	    // the least recently used connections are at the end of the list
+	    while (idle.size() > minIdle && idle.getLast().lastUsed < limit) {
+		evicted.add(idle.removeLast());
+		size--;
+		destroyed++;
+	    }
+	}
+	for (Entry e : evicted) {
+	    e.manager.close();
+	}
+    }
+
+    /**
+     * Closes the pool. Idle connections are closed immediately, and checked
+     * out connections are closed when they are returned.
+     */
+    public void close() {
+	LinkedList<Entry> closing;
+	synchronized (this) {
+	    closed = true;
+	    closing = new LinkedList<Entry>(idle);
+	    size -= idle.size();
+	    destroyed += idle.size();
+	    idle.clear();
+	    notifyAll();
+	}
+	evictor.cancel();
+	for (Entry e : closing) {
+	    e.manager.close();
+	}
+    }
+
+    //
+    // METRICS
+    //
+
+    /**
+     * Returns the number of connections currently checked out.
+     */
+    public synchronized int getActive() {
+	return active;
+    }
+
+    /**
+     * Returns the number of connections currently idle in the pool.
+     */
+    public synchronized int getIdle() {
+	return idle.size();
+    }
+
+    /**
+     * Returns the maximum number of connections of the pool.
+     */
+    public int getMaxSize() {
+	return maxSize;
+    }
+
+    /**
+     * Returns the number of successful checkouts since the pool was created.
+     */
+    public synchronized long getCheckouts() {
+	return checkouts;
+    }
+
+    /**
+     * Returns the number of checkouts that timed out waiting for a connection.
+     */
+    public synchronized long getTimeouts() {
+	return timeouts;
+    }
+
+    /**
+     * Returns the number of connections opened and closed by the pool.
+     */
+    public synchronized long getCreated() {
+	return created;
+    }
+
+    public synchronized long getDestroyed() {
+	return destroyed;
+    }
+
+    /**
+     * Returns the average time spent waiting for a connection, in milliseconds.
+     */
+    public synchronized double getAverageWait() {
+	return checkouts == 0 ? 0 : waitTime / (checkouts * 1e6);
+    }
+
+    /**
+     * Returns the longest time spent waiting for a connection, in milliseconds.
+     */
+    public synchronized double getMaxWait() {
+	return maxWaitTime / 1e6;
+    }
+
+    /**
+     * Returns the average fraction of the pool's capacity that was checked out
+     * since the pool was created, between 0 and 1.
+     */
+    public synchronized double getUtilization() {
+	long now = System.nanoTime();
+	double busy = busyTime + (double) active * (now - lastChange);
+	return now == startTime ? 0 : busy / ((double) maxSize * (now - startTime));
+    }
+
+    @Override
+    public synchronized String toString() {
+	return "ConnectionPool [active=" + active + ", idle=" + idle.size() + ", max=" + maxSize + ", checkouts="
+		+ checkouts + ", timeouts=" + timeouts + ", avgWait=" + getAverageWait() + "ms, maxWait="
+		+ getMaxWait() + "ms, utilization=" + getUtilization() + "]";
+    }
+}
@@ -0,0 +1,139 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An implementation of the BankManager interface committing the updates of
+ * concurrent callers together. Calls to {@link #createAccount(int)},
+ * {@link #addBalance(int, double)} and {@link #transfer(int, int, double)}
+ * are queued to a {@link GroupCommitter}, which executes them on a dedicated
+ * connection and commits them once per group: the database then syncs its log
+ * once per group instead of once per update. Each call still blocks until its
+ * update is committed, and returns its own result.
+ * <p>
+ * Reads use the connections of the factory's pool. An object of this class is
+ * thread safe, and is meant to be shared by all the callers of a JVM: the
+ * more concurrent callers, the larger the groups.
+ */
+public class GroupCommitBankManager implements BankManager {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final ConnectionPool pool;
+    private final GroupCommitter committer;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new manager using the connections of the specified factory.
+     *
+     * @param f
+     *            the factory providing the connections
+     * @param maxGroupSize
+     *            the maximum number of updates committed together
+     * @param groupWindowMicros
+     *            the maximum time a group waits for more updates, in
+     *            microseconds
+     * @throws SQLException
+     *             if the committer's connection could not be opened
+     */
+    public GroupCommitBankManager(BankManagerFactory f, int maxGroupSize, long groupWindowMicros)
+	    throws SQLException {
+	if (maxGroupSize < 1) {
+	    throw new IllegalArgumentException("maxGroupSize must be positive: " + maxGroupSize);
+	}
+	pool = f.getPool();
+	committer = new GroupCommitter(f.openSession(), maxGroupSize, groupWindowMicros);
+    }
+
+    //
+    // BANK MANAGER
+    //
+    @Override
+    public void createDB() throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    m.createDB();
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public boolean createAccount(int number) throws SQLException {
+	return committer.execute(new GroupCommitter.Request(Mutation.CREATE, number, 0, 0)).isAccepted();
+    }
+
+    @Override
+    public double getBalance(int number) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    double r = m.getBalance(number);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public double addBalance(int number, double amount) throws SQLException {
+	return committer.execute(new GroupCommitter.Request(Mutation.UPDATE, number, 0, amount)).getBalance();
+    }
+
+    @Override
+    public boolean transfer(int from, int to, double amount) throws SQLException {
+	return committer.execute(new GroupCommitter.Request(Mutation.TRANSFER, from, to, amount)).isAccepted();
+    }
+
+    @Override
+    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    List<Operation> r = m.getOperations(number, from, to);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // GROUP COMMIT
+    //
+
+    /**
+     * Returns the average number of updates per committed group.
+     */
+    public double getAverageGroupSize() {
+	long g = committer.getGroups();
+	return g == 0 ? 0 : (double) committer.getRequests() / g;
+    }
+
+    /**
+     * Commits the queued updates and closes the committer's connection.
+     */
+    public void close() throws SQLException {
+	try {
+	    committer.close();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while closing the committer", e);
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "GroupCommitBankManager [groups=" + committer.getGroups() + ", averageGroupSize="
+		+ getAverageGroupSize() + "]";
+    }
+}
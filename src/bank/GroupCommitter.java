@@ -0,0 +1,231 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The committer thread of a {@link GroupCommitBankManager}. Callers queue
+ * their updates and wait; the committer executes the queued updates on its
+ * own connection, and commits them together once per group, i.e. once the
+ * group holds the maximum number of updates or the group window has elapsed
+ * since its first update.
+ * <p>
+ * An update rejected by the balance trigger, or a duplicate account, only
+ * affects the result of its own caller. A group aborted by lock contention is
+ * retried as a whole, following the retry policy of the committer's
+ * connection. Any other error rolls back the whole group, and is reported to
+ * all its callers.
+ */
+class GroupCommitter implements Runnable {
+
+    //
+    // CONSTANTS
+    //
+    private static final long POLL_INTERVAL = 100; // ms
+
+    //
+    // HELPER CLASSES
+    //
+
+    /**
+     * An update queued by a caller, and its result.
+     */
+    static class Request {
+	final int type; // one of the Mutation types
+	final int from;
+	final int to;
+	final double amount;
+
+	private boolean done = false;
+	private boolean accepted; // result of a creation or transfer
+	private double balance; // result of an update
+	private SQLException error;
+
+	Request(int type, int from, int to, double amount) {
+	    this.type = type;
+	    this.from = from;
+	    this.to = to;
+	    this.amount = amount;
+	}
+
+	synchronized void complete(SQLException e) {
+	    error = e;
+	    done = true;
+	    notifyAll();
+	}
+
+	/**
+	 * Waits until the group of this request is committed or rolled back.
+	 */
+	synchronized void await() throws SQLException {
+	    boolean interrupted = false;
+	    while (!done) {
+		try {
+		    wait();
+		} catch (InterruptedException e) {
+		    // the update may already be executing: wait for its outcome
+		    interrupted = true;
+		}
+	    }
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	    if (error != null) {
+		throw new SQLException(error.getMessage(), error.getSQLState(), error.getErrorCode(), error);
+	    }
+	}
+
+	boolean isAccepted() {
+	    return accepted;
+	}
+
+	double getBalance() {
+	    return balance;
+	}
+    }
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerImpl session; // the committer's own connection
+    private final int maxGroupSize;
+    private final long groupWindow; // ns
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private volatile boolean closed = false;
+    private final Thread thread;
+
+    // statistics, written by the committer thread only
+    private volatile long groups = 0;
+    private volatile long requests = 0;
+
+    //
+    // CONSTRUCTOR
+    //
+    GroupCommitter(BankManagerImpl session, int maxGroupSize, long groupWindowMicros) {
+	this.session = session;
+	this.maxGroupSize = maxGroupSize;
+	this.groupWindow = groupWindowMicros * 1000;
+	thread = new Thread(this, "GroupCommitter");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    //
+    // COMMITTER
+    //
+
+    /**
+     * Queues an update, and waits until its group is committed.
+     */
+    Request execute(Request r) throws SQLException {
+	if (closed) {
+	    throw new SQLException("Group committer is closed", "08003");
+	}
+	queue.add(r);
+	// the committer may have stopped between the check and the add: a request
+	// still queued then would never be executed
+	if (closed && queue.remove(r)) {
+	    throw new SQLException("Group committer is closed", "08003");
+	}
+	r.await();
+	return r;
+    }
+
+    /**
+     * Commits the queued updates, stops the committer thread and closes its
+     * connection. The updates queued too late to be committed fail.
+     */
+    void close() throws InterruptedException {
+	closed = true;
+	thread.join();
+	Request r;
+	while ((r = queue.poll()) != null) {
+	    r.complete(new SQLException("Group committer is closed", "08003"));
+	}
+	session.close();
+    }
+
+    long getGroups() {
+	return groups;
+    }
+
+    long getRequests() {
+	return requests;
+    }
+
+    public void run() {
+	List<Request> group = new ArrayList<Request>(maxGroupSize);
+	while (true) {
+	    Request r;
+	    try {
+		r = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+		if (r == null) {
+		    if (closed && queue.isEmpty()) {
+			return;
+		    }
+		    continue;
+		}
+		group.add(r);
+		// gather more updates until the group is full or its window elapsed
+		long deadline = System.nanoTime() + groupWindow;
+		while (group.size() < maxGroupSize) {
+		    if (queue.drainTo(group, maxGroupSize - group.size()) > 0) {
+			continue;
+		    }
+		    long remaining = deadline - System.nanoTime();
+		    if (remaining <= 0 || (r = queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+			break;
+		    }
+		    group.add(r);
+		}
+	    } catch (InterruptedException e) {
+		// commit what was gathered so far
+	    }
+	    if (!group.isEmpty()) {
+		commit(group);
+		groups++;
+		requests += group.size();
+		group.clear();
+	    }
+	}
+    }
+
+    private void commit(List<Request> group) {
+	SQLException error = null;
+	// a group aborted by a deadlock or a lock wait timeout is retried as a whole
+	for (int attempt = 1;; attempt++) {
+	    try {
+		for (Request r : group) {
+		    switch (r.type) {
+		    case Mutation.CREATE:
+			r.accepted = session.executeCreateAccount(r.from);
+			break;
+		    case Mutation.UPDATE:
+			r.balance = session.executeAddBalance(r.from, r.amount);
+			break;
+		    default:
+			r.accepted = session.executeTransfer(r.from, r.to, r.amount);
+		    }
+		}
+		session.commitTransaction();
+		break;
+	    } catch (SQLException e) {
+		try {
+		    session.rollbackTransaction();
+		} catch (SQLException e2) {
+		    System.err.println("Error: " + e2.getMessage());
+		}
+		if (!session.retryPolicy.retry(e, attempt)) {
+		    error = e;
+		    break;
+		}
+	    }
+	}
+	for (Request r : group) {
+	    r.complete(error);
+	}
+    }
+}
@@ -0,0 +1,209 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The management of the split accounts of a database, for the accounts
+ * updated by so many concurrent transactions (e.g. merchant or treasury
+ * accounts) that they would all wait for the lock of their row.
+ * <p>
+ * The balance of a split account is spread over <i>n</i> slots of
+ * <code>ACCOUNT_SLOTS</code>, in addition to its row of
+ * <code>ACCOUNTS</code>, which keeps the credits of the clients not yet aware
+ * of the split. The managers of a factory in split account mode (see
+ * {@link BankManagerFactory#setSplitAccounts(boolean)}):
+ * <ul>
+ * <li>credit a random slot, so that <i>n</i> credits may proceed at
+ * once;</li>
+ * <li>debit a slot with enough funds if any, or else lock all the slots of the
+ * account and debit several of them;</li>
+ * <li>read the balance as the sum of the row and of the slots.</li>
+ * </ul>
+ * Each credit or debit is logged as a single operation, and no slot ever goes
+ * negative. As debits drain some slots faster than others, a rebalancer
+ * started by {@link #start(long)} periodically spreads the balance evenly
+ * again; these moves are not logged as operations.
+ * <p>
+ * The operations of the split accounts are not added to the hourly and daily
+ * rollups as they are logged, which would serialize them on the rollup rows,
+ * but queued, and added in bulk by {@link #rollUp()}, which the rebalancer
+ * calls as well. The summaries include the queued operations, and the balance
+ * checkpoints roll them up first. A split account cannot be used by an
+ * {@link InMemoryBankManager}.
+ */
+public class HotAccounts {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory factory;
+    private final AccountSlots slots;
+    private Timer rebalancer;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new manager of the split accounts of the database of the
+     * specified factory.
+     *
+     * @throws IllegalArgumentException
+     *             if the factory is not in split account mode
+     */
+    public HotAccounts(BankManagerFactory f) {
+	if (!f.isSplitAccounts()) {
+	    throw new IllegalArgumentException("the factory is not in split account mode");
+	}
+	factory = f;
+	slots = f.getAccountSlots();
+    }
+
+    //
+    // SPLIT ACCOUNTS
+    //
+
+    /**
+     * Spreads the balance of an account evenly over the specified number of
+     * slots. An account already split is split again.
+     *
+     * @return false if the account does not exist
+     */
+    public boolean split(int number, int slotCount) throws SQLException {
+	if (slotCount < 1) {
+	    throw new IllegalArgumentException("slotCount must be positive: " + slotCount);
+	}
+	return redistribute(number, slotCount) >= 0;
+    }
+
+    /**
+     * Moves the balance of the slots of an account back to its row of
+     * <code>ACCOUNTS</code>, and deletes the slots.
+     *
+     * @return false if the account does not exist
+     */
+    public boolean merge(int number) throws SQLException {
+	return redistribute(number, 0) >= 0;
+    }
+
+    /**
+     * Spreads the balance of a split account evenly over its slots again,
+     * unless they are balanced enough already.
+     *
+     * @return false if the account does not exist
+     */
+    public boolean rebalance(int number) throws SQLException {
+	return redistribute(number, -1) >= 0;
+    }
+
+    /**
+     * Reloads the registry of the split accounts, and rebalances each of them
+     * as {@link #rebalance(int)}.
+     *
+     * @return the number of split accounts
+     */
+    public int rebalanceAll() throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    m.loadSlots();
+	    int count = 0;
+	    for (int number : slots.getCounts().keySet()) {
+		if (m.redistribute(number, -1) > 0) {
+		    count++;
+		}
+	    }
+	    failed = false;
+	    return count;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Adds the operations of the split accounts logged since the last call to
+     * the hourly and daily rollups.
+     *
+     * @return the number of operations added
+     */
+    public int rollUp() throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    int r = m.rollUpPending();
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    private int redistribute(int number, int slotCount) throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    int r = m.redistribute(number, slotCount);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // REBALANCER
+    //
+
+    /**
+     * Starts rebalancing the split accounts and rolling up their operations
+     * periodically, in a background thread.
+     */
+    public synchronized void start(long periodMillis) {
+	if (rebalancer != null) {
+	    throw new IllegalStateException("the rebalancer is already started");
+	}
+	rebalancer = new Timer("HotAccounts-rebalancer", true);
+	rebalancer.schedule(new TimerTask() {
+	    public void run() {
+		try {
+		    rebalanceAll();
+		    rollUp();
+		} catch (SQLException e) {
+		    System.err.println("Error: " + e.getMessage());
+		}
+	    }
+	}, periodMillis, periodMillis);
+    }
+
+    /**
+     * Stops the rebalancer, if started.
+     */
+    public synchronized void stop() {
+	if (rebalancer != null) {
+	    rebalancer.cancel();
+	    rebalancer = null;
+	}
+    }
+
+    //
+    // ACCESSORS
+    //
+
+    /**
+     * Returns the number of slots of each split account, by account number.
+     */
+    public Map<Integer, Integer> getSplitAccounts() {
+	return slots.getCounts();
+    }
+
+    @Override
+    public String toString() {
+	return "HotAccounts [split=" + slots.getCounts().size() + ", rebalancing=" + (rebalancer != null) + "]";
+    }
+}
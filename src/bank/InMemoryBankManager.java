@@ -0,0 +1,362 @@
+package bank;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An implementation of the BankManager interface keeping all the balances in
+ * memory, with the database as a durable store written behind.
+ * <p>
+ * Balances are kept in an {@link AccountTable} loaded from
+ * <code>ACCOUNTS</code> when the manager is created. Calls check and update
+ * the table under the locks of the stripes of their accounts, so that funds
+ * are checked in memory rather than by the balance trigger. Each accepted
+ * change is then queued to a {@link WriteBehindWriter}, which writes it to
+ * <code>ACCOUNTS</code> in batches; the operations log of
+ * <code>OPERATIONS</code> is still filled by the database trigger.
+ * <p>
+ * An object of this class is thread safe, and must be the only writer of its
+ * database: a single object is meant to be shared by all the threads of a
+ * JVM. Without a journal, a change acknowledged by a call may be lost if the
+ * JVM stops before it is written; see {@link #flush()}. With an
+ * {@link OperationJournal}, each change is recorded in the journal before it
+ * is acknowledged, and the changes not yet written when the JVM stopped are
+ * written when the next manager is created with the same journal.
+ * <p>
+ * A change is recorded in the journal before it is made in memory: once the
+ * journal has failed, the changes are refused with an exception and not made.
+ * A change whose record fails to be forced to disk is already made, and still
+ * written to the database: its exception reports that it was not durable
+ * when acknowledged, not that it was undone.
+ */
+public class InMemoryBankManager implements BankManager {
+
+    //
+    // CONSTANTS
+    //
+    private static final int STRIPES = 64;
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final ConnectionPool pool;
+    private final AccountTable table = new AccountTable(STRIPES);
+    private final WriteBehindWriter writer;
+    private final OperationJournal journal;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new manager using the connections of the specified factory,
+     * and loads the balances of all the existing accounts.
+     *
+     * @throws SQLException
+     *             if the accounts could not be loaded, or some are split
+     */
+    public InMemoryBankManager(BankManagerFactory f) throws SQLException {
+	this(f, null);
+    }
+
+    /**
+     * Creates a new manager using the connections of the specified factory,
+     * and journaling its changes in the specified journal. The changes of the
+     * journal not yet written to the database are written first, then the
+     * balances of all the existing accounts are loaded. The journal remains
+     * owned by the caller, and must not be used by another manager.
+     *
+     * @param journal
+     *            the journal of the manager, or null for none
+     * @throws SQLException
+     *             if the journal could not be replayed, or the accounts could
+     *             not be loaded, or some are split
+     * @throws IllegalArgumentException
+     *             if the factory is in split account mode
+     */
+    public InMemoryBankManager(BankManagerFactory f, OperationJournal journal) throws SQLException {
+	// the balances are kept in memory whole, not spread over slots
+	if (f.isSplitAccounts()) {
+	    throw new IllegalArgumentException("split accounts are not supported in memory");
+	}
+	pool = f.getPool();
+	this.journal = journal;
+	writer = new WriteBehindWriter(pool, f.getBatchSize(), journal);
+	boolean created = false;
+	try {
+	    if (journal != null) {
+		replay(f.getBatchSize());
+	    }
+	    BankManagerImpl m = pool.acquire();
+	    boolean failed = true;
+	    try {
+		if (m.hasSplitAccounts()) {
+		    throw new SQLException("the database has split accounts, not supported in memory");
+		}
+		m.loadBalances(table);
+		failed = false;
+	    } finally {
+		pool.release(m, failed);
+	    }
+	    created = true;
+	} finally {
+	    if (!created) {
+		try {
+		    writer.close();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Writes the records of the journal not yet applied to the database, in
+     * batches, through the writer: the records the database rejects are set
+     * aside as dead letters, rather than rejected again on every restart.
+     */
+    private void replay(int batchSize) throws SQLException {
+	long applied;
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    applied = m.readJournalState(journal.getName());
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+	List<Mutation> pending = journal.recover(applied);
+	for (int start = 0; start < pending.size(); start += batchSize) {
+	    writer.write(pending.subList(start, Math.min(pending.size(), start + batchSize)), false);
+	}
+    }
+
+    //
+    // BANK MANAGER
+    //
+    @Override
+    public void createDB() throws SQLException {
+	flush();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    m.createDB();
+	    table.clear();
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public boolean createAccount(int number) throws SQLException {
+	AccountTable.Stripe s = table.stripe(number);
+	long seq;
+	synchronized (s) {
+	    if (s.contains(number)) {
+		return false;
+	    }
+	    seq = submit(Mutation.CREATE, number, 0, 0);
+	    s.put(number, 0);
+	}
+	awaitDurable(seq);
+	return true;
+    }
+
+    /**
+     * Returns the balance of the specified account, or 0 if it does not exist.
+     */
+    @Override
+    public double getBalance(int number) throws SQLException {
+	AccountTable.Stripe s = table.stripe(number);
+	synchronized (s) {
+	    double b = s.get(number);
+	    return Double.isNaN(b) ? 0 : b;
+	}
+    }
+
+    /**
+     * Adds the specified amount to the specified account. As with
+     * {@link BankManagerImpl}, a missing account has a balance of 0.
+     */
+    @Override
+    public double addBalance(int number, double amount) throws SQLException {
+	AccountTable.Stripe s = table.stripe(number);
+	long seq;
+	double nb;
+	synchronized (s) {
+	    double b = s.get(number);
+	    if (Double.isNaN(b)) {
+		return 0;
+	    }
+	    nb = b + amount;
+	    if (nb < 0) {
+		return -1.0;
+	    }
+	    seq = submit(Mutation.UPDATE, number, 0, amount);
+	    s.put(number, nb);
+	}
+	awaitDurable(seq);
+	return nb;
+    }
+
+    /**
+     * Transfers the specified amount between the specified accounts. The
+     * transfer is refused if the debited account has insufficient funds, or
+     * if either account does not exist.
+     */
+    @Override
+    public boolean transfer(int from, int to, double amount) throws SQLException {
+	AccountTable.Stripe s1 = table.stripe(from);
+	AccountTable.Stripe s2 = table.stripe(to);
+	// lock the stripes in a fixed order, so that transfers cannot deadlock
+	if (s1.index > s2.index) {
+	    AccountTable.Stripe s = s1;
+	    s1 = s2;
+	    s2 = s;
+	}
+	long seq;
+	synchronized (s1) {
+	    synchronized (s2) {
+		AccountTable.Stripe sf = table.stripe(from);
+		AccountTable.Stripe st = table.stripe(to);
+		double bf = sf.get(from);
+		double bt = st.get(to);
+		if (Double.isNaN(bf) || Double.isNaN(bt) || bf - amount < 0) {
+		    return false;
+		}
+		seq = submit(Mutation.TRANSFER, from, to, amount);
+		sf.put(from, bf - amount);
+		// read again in case both accounts are the same
+		st.put(to, st.get(to) + amount);
+	    }
+	}
+	awaitDurable(seq);
+	return true;
+    }
+
+    /**
+     * Returns the list of operations on the specified account in the
+     * specified time interval. The pending changes are written first, so that
+     * the result includes all the operations acknowledged so far.
+     */
+    @Override
+    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	flush();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    List<Operation> r = m.getOperations(number, from, to);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // WRITE BEHIND
+    //
+
+    /**
+     * Records a change in the journal if any, and queues it to the writer.
+     * Must be called under the locks of the accounts changed, before the
+     * change is made in memory, which is not made if this method throws.
+     *
+     * @return the sequence number of the journal record, or 0 if there is no
+     *         journal
+     */
+    private long submit(int type, int from, int to, double amount) throws SQLException {
+	if (journal == null) {
+	    writer.submit(new Mutation(type, from, to, amount));
+	    return 0;
+	}
+	// the writer must receive the mutations in the order of their records,
+	// so that the state it commits covers all the records before it
+	synchronized (journal) {
+	    long seq;
+	    try {
+		seq = journal.append(type, from, to, amount);
+	    } catch (IOException e) {
+		throw new SQLException("Change not journaled: " + e.getMessage(), e);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new SQLException("Interrupted while waiting for the journal", e);
+	    }
+	    writer.submit(new Mutation(type, from, to, amount, seq));
+	    return seq;
+	}
+    }
+
+    /**
+     * Waits until the journal record of a change is durable.
+     */
+    private void awaitDurable(long seq) throws SQLException {
+	if (seq == 0) {
+	    return;
+	}
+	try {
+	    journal.awaitDurable(seq);
+	} catch (IOException e) {
+	    throw new SQLException("Change not journaled: " + e.getMessage(), e);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while forcing the journal", e);
+	}
+    }
+
+    /**
+     * Waits until all the changes acknowledged so far are written to the
+     * database.
+     */
+    public void flush() throws SQLException {
+	try {
+	    writer.flush();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while flushing pending changes", e);
+	}
+    }
+
+    /**
+     * Returns the number of changes waiting to be written to the database.
+     */
+    public int getPending() {
+	return writer.pending();
+    }
+
+    /**
+     * Returns the descriptions of the changes accepted in memory but rejected
+     * by the database when written, e.g. by a constraint. The balances in
+     * memory of their accounts then differ from the database, until the
+     * manager is created again.
+     */
+    public List<String> getDeadLetters() {
+	List<String> list = new ArrayList<String>();
+	for (Mutation m : writer.getDeadLetters()) {
+	    list.add(m.toString());
+	}
+	return list;
+    }
+
+    /**
+     * Writes all the pending changes to the database, and stops the
+     * background writer. The manager cannot be updated afterwards.
+     */
+    public void close() throws SQLException {
+	try {
+	    writer.close();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while closing the writer", e);
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "InMemoryBankManager [accounts=" + table.size() + ", pending=" + writer.pending() + "]";
+    }
+}
@@ -0,0 +1,142 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A BankManager decorator recording the latency of each call, the calls
+ * refused for insufficient funds, the exceptions thrown and the number of
+ * operations returned in a {@link BankMetrics} object. Any number of managers
+ * may share the same metrics.
+ * <p>
+ * To also count commits, rollbacks and the database errors the decorated
+ * managers handle without throwing them (refused withdrawals, retried
+ * deadlocks), the metrics must be set on the factory providing them. Each
+ * error is counted once, by whichever of the two sees it last:
+ *
+ * <pre>
+ * BankMetrics metrics = new BankMetrics();
+ * factory.setMetrics(metrics);
+ * BankManager m = new InstrumentedBankManager(factory.newManager(), metrics);
+ * </pre>
+ */
+public class InstrumentedBankManager implements BankManager {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManager manager;
+    private final BankMetrics metrics;
+
+    //
+    // CONSTRUCTOR
+    //
+    public InstrumentedBankManager(BankManager m, BankMetrics metrics) {
+	this.manager = m;
+	this.metrics = metrics;
+    }
+
+    //
+    // BANK MANAGER
+    //
+    @Override
+    public void createDB() throws SQLException {
+	long start = System.nanoTime();
+	try {
+	    manager.createDB();
+	} catch (SQLException e) {
+	    metrics.recordError(e);
+	    throw e;
+	} finally {
+	    metrics.recordLatency(BankMetrics.CREATE_DB, start);
+	}
+    }
+
+    @Override
+    public boolean createAccount(int number) throws SQLException {
+	long start = System.nanoTime();
+	try {
+	    return manager.createAccount(number);
+	} catch (SQLException e) {
+	    metrics.recordError(e);
+	    throw e;
+	} finally {
+	    metrics.recordLatency(BankMetrics.CREATE_ACCOUNT, start);
+	}
+    }
+
+    @Override
+    public double getBalance(int number) throws SQLException {
+	long start = System.nanoTime();
+	try {
+	    return manager.getBalance(number);
+	} catch (SQLException e) {
+	    metrics.recordError(e);
+	    throw e;
+	} finally {
+	    metrics.recordLatency(BankMetrics.GET_BALANCE, start);
+	}
+    }
+
+    @Override
+    public double addBalance(int number, double amount) throws SQLException {
+	long start = System.nanoTime();
+	try {
+	    double b = manager.addBalance(number, amount);
+	    if (b == -1.0) {
+		metrics.recordRefusal();
+	    }
+	    return b;
+	} catch (SQLException e) {
+	    metrics.recordError(e);
+	    throw e;
+	} finally {
+	    metrics.recordLatency(BankMetrics.ADD_BALANCE, start);
+	}
+    }
+
+    @Override
+    public boolean transfer(int from, int to, double amount) throws SQLException {
+	long start = System.nanoTime();
+	try {
+	    boolean r = manager.transfer(from, to, amount);
+	    if (!r) {
+		metrics.recordRefusal();
+	    }
+	    return r;
+	} catch (SQLException e) {
+	    metrics.recordError(e);
+	    throw e;
+	} finally {
+	    metrics.recordLatency(BankMetrics.TRANSFER, start);
+	}
+    }
+
+    @Override
+    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	long start = System.nanoTime();
+	try {
+	    List<Operation> r = manager.getOperations(number, from, to);
+	    metrics.recordOperationRows(r.size());
+	    return r;
+	} catch (SQLException e) {
+	    metrics.recordError(e);
+	    throw e;
+	} finally {
+	    metrics.recordLatency(BankMetrics.GET_OPERATIONS, start);
+	}
+    }
+
+    //
+    // ACCESSORS
+    //
+    public BankMetrics getMetrics() {
+	return metrics;
+    }
+
+    @Override
+    public String toString() {
+	return "InstrumentedBankManager [" + manager + "]";
+    }
+}
@@ -0,0 +1,168 @@
+package bank;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with log-linear buckets: values
+ * below 128 ns are counted exactly, and larger values in buckets whose width
+ * is below 1/64th of their value. Recording a value is thread safe, lock free
+ * and allocates no memory, so that histograms may be updated on hot paths by
+ * any number of threads.
+ */
+public class LatencyHistogram {
+
+    //
+    // CONSTANTS
+    //
+    private static final int SUB_BITS = 7; // 2^7 sub-buckets per power of 2
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final int BUCKETS = ((64 - SUB_BITS + 1) << (SUB_BITS - 1)) + (1 << SUB_BITS);
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    //
+    // RECORDING
+    //
+    private static int index(long v) {
+	if (v < (1 << SUB_BITS)) {
+	    return (int) v;
+	}
+	int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+	return (shift << (SUB_BITS - 1)) + (int) (v >>> shift);
+    }
+
+    // lowest value counted in a bucket
+    private static long lowest(int index) {
+	if (index < (1 << SUB_BITS)) {
+	    return index;
+	}
+	int shift = (index >> (SUB_BITS - 1)) - 1;
+	return (long) (index - (shift << (SUB_BITS - 1))) << shift;
+    }
+
+    // highest value counted in a bucket
+    private static long highest(int index) {
+	if (index < (1 << SUB_BITS)) {
+	    return index;
+	}
+	int shift = (index >> (SUB_BITS - 1)) - 1;
+	return lowest(index) + (1L << shift) - 1;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos
+     *            the latency in nanoseconds; negative values are counted as 0
+     */
+    public void record(long nanos) {
+	if (nanos < 0) {
+	    nanos = 0;
+	}
+	counts.incrementAndGet(index(nanos));
+	count.incrementAndGet();
+	sum.addAndGet(nanos);
+	long m;
+	while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+	    // retry
+	}
+    }
+
+    /**
+     * Records a latency measured from the specified start time, as returned by
+     * <code>System.nanoTime()</code>.
+     */
+    public void recordSince(long startNanos) {
+	record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one.
+     */
+    public void add(LatencyHistogram h) {
+	for (int i = 0; i < BUCKETS; i++) {
+	    long c = h.counts.get(i);
+	    if (c != 0) {
+		counts.addAndGet(i, c);
+	    }
+	}
+	count.addAndGet(h.count.get());
+	sum.addAndGet(h.sum.get());
+	long m, hm = h.max.get();
+	while (hm > (m = max.get()) && !max.compareAndSet(m, hm)) {
+	    // retry
+	}
+    }
+
+    /**
+     * Removes all the recorded values. Values recorded concurrently may be
+     * partially lost.
+     */
+    public void reset() {
+	for (int i = 0; i < BUCKETS; i++) {
+	    counts.set(i, 0);
+	}
+	count.set(0);
+	sum.set(0);
+	max.set(0);
+    }
+
+    //
+    // STATISTICS
+    //
+    public long getCount() {
+	return count.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values, in nanoseconds.
+     */
+    public double getMean() {
+	long c = count.get();
+	return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Returns the highest recorded value, in nanoseconds.
+     */
+    public long getMax() {
+	return max.get();
+    }
+
+    /**
+     * Returns the value below which the specified percentage of the recorded
+     * values fall, in nanoseconds, with a relative error below 2%.
+     *
+     * @param percent
+     *            the percentile, between 0 and 100
+     */
+    public long getPercentile(double percent) {
+	long c = count.get();
+	if (c == 0) {
+	    return 0;
+	}
+	long rank = Math.max(1, (long) Math.ceil(c * percent / 100.0));
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts.get(i);
+	    if (seen >= rank) {
+		return Math.min(highest(i), max.get());
+	    }
+	}
+	return max.get();
+    }
+
+    @Override
+    public String toString() {
+	return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+		getCount(), getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(90) / 1e3,
+		getPercentile(99) / 1e3, getPercentile(99.9) / 1e3, getMax() / 1e3);
+    }
+}
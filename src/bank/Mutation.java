@@ -0,0 +1,44 @@
+package bank;
+
+/**
+ * A committed change of the in-memory account table of an
+ * {@link InMemoryBankManager}, waiting to be written to the database.
+ */
+class Mutation {
+
+    //
+    // CONSTANTS
+    //
+    static final int CREATE = 0; // creation of account 'from'
+    static final int UPDATE = 1; // 'amount' added to account 'from'
+    static final int TRANSFER = 2; // 'amount' transferred from 'from' to 'to'
+
+    //
+    // INSTANCE FIELDS
+    //
+    final int type;
+    final int from;
+    final int to;
+    final double amount;
+    final long seq; // the sequence number of its journal record, or 0
+
+    //
+    // CONSTRUCTORS
+    //
+    Mutation(int type, int from, int to, double amount) {
+	this(type, from, to, amount, 0);
+    }
+
+    Mutation(int type, int from, int to, double amount, long seq) {
+	this.type = type;
+	this.from = from;
+	this.to = to;
+	this.amount = amount;
+	this.seq = seq;
+    }
+
+    @Override
+    public String toString() {
+	return "Mutation [type=" + type + ", from=" + from + ", to=" + to + ", amount=" + amount + ", seq=" + seq + "]";
+    }
+}
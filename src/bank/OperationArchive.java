@@ -0,0 +1,300 @@
+package bank;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A local archive of the operations of the monthly partitions detached from
+ * <code>OPERATIONS</code> by {@link OperationPartitions#archive(int)}.
+ * <p>
+ * Each month is archived in its own file of fixed-size records (number, id,
+ * date, amount) sorted by account number and date, so that the operations of
+ * an account are found by binary search. The archive also stores its
+ * <i>horizon</i>, the start of the oldest month still in the database: the
+ * managers whose factory has an archive read the operations dated before it
+ * from the archive, and the others from the database.
+ * <p>
+ * An object of this class is thread safe, and may be shared by several
+ * factories of the same database.
+ */
+public class OperationArchive {
+
+    //
+    // CONSTANTS
+    //
+    private static final int MAGIC = 0x4f505341; // "OPSA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8; // magic, version
+    // number (4), id (4), date (8), amount (8)
+    static final int RECORD_SIZE = 24;
+
+    private static final String PREFIX = "OPERATIONS-";
+    private static final String SUFFIX = ".bin";
+    private static final String HORIZON = "HORIZON";
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final File dir;
+    private volatile long horizon; // 0 if nothing is archived
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Opens or creates an archive.
+     *
+     * @param dir
+     *            the directory of the archive files, created if needed
+     */
+    public OperationArchive(File dir) throws IOException {
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("cannot create archive directory " + dir);
+	}
+	this.dir = dir;
+	File f = new File(dir, HORIZON);
+	if (f.exists()) {
+	    DataInputStream in = new DataInputStream(new FileInputStream(f));
+	    try {
+		horizon = in.readLong();
+	    } finally {
+		in.close();
+	    }
+	}
+    }
+
+    //
+    // WRITING
+    //
+
+    /**
+     * Writes the operations of a month, read from the columns ID, NUMBER,
+     * AMOUNT and DATE of a result set sorted by number, date and id. An
+     * existing file of the same month is replaced. The file is on disk when
+     * this method returns.
+     *
+     * @param month
+     *            the month, as <code>yyyyMM</code>
+     * @return the number of operations written
+     */
+    long write(String month, ResultSet rs) throws SQLException, IOException {
+	File f = new File(dir, PREFIX + month + SUFFIX);
+	File tmp = new File(dir, f.getName() + ".tmp");
+	FileOutputStream fos = new FileOutputStream(tmp);
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+	long count = 0;
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    while (rs.next()) {
+		out.writeInt(rs.getInt(2));
+		out.writeInt(rs.getInt(1));
+		out.writeLong(rs.getTimestamp(4).getTime());
+		out.writeDouble(rs.getDouble(3));
+		count++;
+	    }
+	    out.flush();
+	    fos.getFD().sync();
+	} finally {
+	    out.close();
+	}
+	// the file is complete once renamed
+	Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	syncDirectory();
+	return count;
+    }
+
+    /**
+     * Moves the horizon of the archive: the operations dated before it are
+     * read from the archive from now on. The horizon is on disk when this
+     * method returns.
+     */
+    synchronized void setHorizon(long time) throws IOException {
+	File f = new File(dir, HORIZON);
+	File tmp = new File(dir, HORIZON + ".tmp");
+	FileOutputStream fos = new FileOutputStream(tmp);
+	DataOutputStream out = new DataOutputStream(fos);
+	try {
+	    out.writeLong(time);
+	    out.flush();
+	    fos.getFD().sync();
+	} finally {
+	    out.close();
+	}
+	Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	syncDirectory();
+	horizon = time;
+    }
+
+    /**
+     * Forces the entries of the archive directory to disk, so that a file
+     * renamed in it keeps its new name after a crash.
+     */
+    private void syncDirectory() throws IOException {
+	FileChannel c;
+	try {
+	    c = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+	} catch (IOException e) {
+	    // the platform cannot open a directory, e.g. Windows: nothing more can be forced
+	    return;
+	}
+	try {
+	    c.force(true);
+	} finally {
+	    c.close();
+	}
+    }
+
+    /**
+     * Deletes all the files of the archive, when the database is created
+     * again.
+     */
+    synchronized void clear() throws IOException {
+	for (String name : list()) {
+	    new File(dir, name).delete();
+	}
+	new File(dir, HORIZON).delete();
+	horizon = 0;
+    }
+
+    //
+    // READING
+    //
+
+    /**
+     * Returns the archived operations on the specified account dated from
+     * from to to inclusive, and before the horizon, in date order.
+     */
+    List<Operation> read(int number, Date from, Date to) throws IOException {
+	OperationColumns columns = new OperationColumns();
+	read(number, from, to, columns);
+	return columns.toList();
+    }
+
+    /**
+     * Appends the archived operations on the specified account dated from
+     * from to to inclusive, and before the horizon, in date order, to the
+     * specified buffer.
+     */
+    void read(int number, Date from, Date to, OperationColumns out) throws IOException {
+	long start = from.getTime();
+	long end = Math.min(to.getTime(), horizon - 1);
+	if (start > end) {
+	    return;
+	}
+	String first = month(start);
+	String last = month(end);
+	String[] names = list();
+	// yyyyMM names sort in chronological order
+	Arrays.sort(names);
+	for (String name : names) {
+	    String month = name.substring(PREFIX.length(), name.length() - SUFFIX.length());
+	    // a month file may also hold older operations, never newer ones
+	    if (month.compareTo(first) >= 0) {
+		read(new File(dir, name), number, start, end, out);
+	    }
+	    if (month.compareTo(last) >= 0) {
+		break;
+	    }
+	}
+    }
+
+    private static void read(File f, int number, long start, long end, OperationColumns out) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(f, "r");
+	try {
+	    MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+	    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+		throw new IOException("not an operation archive: " + f);
+	    }
+	    int count = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+	    // first record of the account
+	    int low = 0;
+	    int high = count;
+	    while (low < high) {
+		int mid = (low + high) >>> 1;
+		if (buffer.getInt(HEADER_SIZE + mid * RECORD_SIZE) < number) {
+		    low = mid + 1;
+		} else {
+		    high = mid;
+		}
+	    }
+	    for (int i = low; i < count; i++) {
+		int p = HEADER_SIZE + i * RECORD_SIZE;
+		if (buffer.getInt(p) != number) {
+		    break;
+		}
+		long date = buffer.getLong(p + 8);
+		if (date > end) {
+		    break;
+		}
+		if (date >= start) {
+		    out.add(buffer.getInt(p + 4), number, buffer.getDouble(p + 16), date);
+		}
+	    }
+	} finally {
+	    file.close();
+	}
+    }
+
+    private String[] list() {
+	String[] names = dir.list(new FilenameFilter() {
+	    public boolean accept(File d, String name) {
+		return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+	    }
+	});
+	return names == null ? new String[0] : names;
+    }
+
+    /**
+     * Returns the month of the specified time, as <code>yyyyMM</code>.
+     */
+    static String month(long time) {
+	return new SimpleDateFormat("yyyyMM").format(new Date(time));
+    }
+
+    //
+    // ACCESSORS
+    //
+
+    /**
+     * Returns the horizon of the archive, i.e. the date of the oldest
+     * operation that may still be in the database, or null if nothing is
+     * archived.
+     */
+    public Date getHorizon() {
+	long h = horizon;
+	return h == 0 ? null : new Date(h);
+    }
+
+    long getHorizonTime() {
+	return horizon;
+    }
+
+    public File getDirectory() {
+	return dir;
+    }
+
+    @Override
+    public String toString() {
+	return "OperationArchive [dir=" + dir + ", horizon=" + getHorizon() + "]";
+    }
+}
@@ -0,0 +1,167 @@
+package bank;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A reusable buffer of operations stored by columns, filled by
+ * {@link PooledBankManager#getOperations(int, Date, Date, OperationColumns)}:
+ * the IDs, account numbers, amounts and dates (in milliseconds since the
+ * epoch) of the operations are kept in primitive arrays, which grow as
+ * needed and are kept when the buffer is cleared. A caller reusing a buffer
+ * therefore reads any number of operations without allocating an object per
+ * operation.
+ * <p>
+ * An object of this class is not thread safe.
+ */
+public class OperationColumns {
+
+    //
+    // CONSTANTS
+    //
+    private static final int DEFAULT_CAPACITY = 256;
+
+    //
+    // INSTANCE FIELDS
+    //
+    private long[] ids;
+    private int[] numbers;
+    private double[] amounts;
+    private long[] dates;
+    private int size = 0;
+    private final Calendar calendar = Calendar.getInstance();
+
+    //
+    // CONSTRUCTORS
+    //
+    public OperationColumns() {
+	this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a buffer of the specified initial capacity.
+     */
+    public OperationColumns(int capacity) {
+	ids = new long[capacity];
+	numbers = new int[capacity];
+	amounts = new double[capacity];
+	dates = new long[capacity];
+    }
+
+    //
+    // BUFFER
+    //
+
+    /**
+     * Empties the buffer, keeping its arrays.
+     */
+    public void clear() {
+	size = 0;
+    }
+
+    /**
+     * Appends an operation.
+     */
+    void add(long id, int number, double amount, long date) {
+	if (size == ids.length) {
+	    int capacity = Math.max(size * 2, DEFAULT_CAPACITY);
+	    ids = Arrays.copyOf(ids, capacity);
+	    numbers = Arrays.copyOf(numbers, capacity);
+	    amounts = Arrays.copyOf(amounts, capacity);
+	    dates = Arrays.copyOf(dates, capacity);
+	}
+	ids[size] = id;
+	numbers[size] = number;
+	amounts[size] = amount;
+	dates[size] = date;
+	size++;
+    }
+
+    /**
+     * Returns a view of the operations of the buffer as a list, for the
+     * callers of <code>getOperations</code>. Each element is created when it
+     * is read, and reflects the buffer until it is cleared.
+     */
+    public List<Operation> toList() {
+	return new AbstractList<Operation>() {
+	    public Operation get(int i) {
+		return getOperation(i);
+	    }
+
+	    public int size() {
+		return size;
+	    }
+	};
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int size() {
+	return size;
+    }
+
+    public long getId(int i) {
+	check(i);
+	return ids[i];
+    }
+
+    public int getNumber(int i) {
+	check(i);
+	return numbers[i];
+    }
+
+    public double getAmount(int i) {
+	check(i);
+	return amounts[i];
+    }
+
+    /**
+     * Returns the date of the i-th operation, in milliseconds since the
+     * epoch.
+     */
+    public long getDate(int i) {
+	check(i);
+	return dates[i];
+    }
+
+    /**
+     * Returns the i-th operation as an object, equal to the one returned by
+     * <code>getOperations</code>: its date is a <code>java.sql.Date</code> at
+     * the start of its day, as read by the JDBC driver.
+     */
+    public Operation getOperation(int i) {
+	check(i);
+	calendar.setTimeInMillis(dates[i]);
+	calendar.set(Calendar.HOUR_OF_DAY, 0);
+	calendar.set(Calendar.MINUTE, 0);
+	calendar.set(Calendar.SECOND, 0);
+	calendar.set(Calendar.MILLISECOND, 0);
+	return new Operation(numbers[i], amounts[i], new java.sql.Date(calendar.getTimeInMillis()));
+    }
+
+    /**
+     * Returns the sum of the amounts of the operations.
+     */
+    public double getTotal() {
+	double total = 0;
+	for (int i = 0; i < size; i++) {
+	    total += amounts[i];
+	}
+	return total;
+    }
+
+    private void check(int i) {
+	if (i < 0 || i >= size) {
+	    throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "OperationColumns [size=" + size + ", capacity=" + ids.length + "]";
+    }
+}
@@ -0,0 +1,114 @@
+package bank;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A cursor over the operations on an account in a time interval, as returned
+ * by {@link PooledBankManager#openOperations(int, Date, Date)}.
+ * <p>
+ * Operations are read by pages of bounded size, using keyset pagination on
+ * (DATE, ID): each page starts right after the last operation of the previous
+ * one. The memory used by a cursor thus does not depend on the size of the
+ * interval, and no connection is held between two pages. The cursor is used
+ * like a <code>ResultSet</code>:
+ *
+ * <pre>
+ * OperationCursor c = manager.openOperations(number, from, to);
+ * while (c.next()) {
+ *     Operation o = c.getOperation();
+ *     ...
+ * }
+ * </pre>
+ */
+public class OperationCursor {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final ConnectionPool pool;
+    final int number; // the account's number
+    final Timestamp to; // end date/time (inclusive)
+    final int pageSize; // maximum number of operations per page
+
+    Timestamp lastDate; // date/time of the last operation read
+    long lastId = 0; // id of the last operation read
+
+    private final List<Operation> page;
+    private int position; // position of the current operation in the page
+    private boolean last = false; // true if the current page is the last one
+
+    //
+    // CONSTRUCTOR
+    //
+    OperationCursor(ConnectionPool p, int n, Date from, Date to, int pageSize) {
+	this.pool = p;
+	this.number = n;
+	// the bounds are truncated to the second, as by getOperations
+	this.lastDate = BankManagerImpl.seconds(from);
+	this.to = BankManagerImpl.seconds(to);
+	this.pageSize = pageSize;
+	this.page = new ArrayList<Operation>(pageSize);
+	this.position = 0;
+    }
+
+    //
+    // CURSOR
+    //
+
+    /**
+     * Moves the cursor to the next operation, reading the next page if
+     * needed.
+     *
+     * @return <code>true</code> if the new current operation is valid, and
+     *         <code>false</code> if there are no more operations
+     * @throws SQLException
+     *             if an SQL exception occurs
+     */
+    public boolean next() throws SQLException {
+	position++;
+	if (position < page.size()) {
+	    return true;
+	}
+	if (last) {
+	    return false;
+	}
+	page.clear();
+	position = 0;
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    m.fetchOperations(this);
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+	last = page.size() < pageSize;
+	return !page.isEmpty();
+    }
+
+    /**
+     * Returns the current operation.
+     */
+    public Operation getOperation() {
+	if (position >= page.size()) {
+	    throw new IllegalStateException("no current operation");
+	}
+	return page.get(position);
+    }
+
+    // called by BankManagerImpl for each operation of a page, in order
+    void add(long id, Operation o, Timestamp date) {
+	page.add(o);
+	lastId = id;
+	lastDate = date;
+    }
+
+    @Override
+    public String toString() {
+	return "OperationCursor [number=" + number + ", lastDate=" + lastDate + ", lastId=" + lastId + "]";
+    }
+}
@@ -0,0 +1,332 @@
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A local write-ahead journal of the changes accepted by an
+ * {@link InMemoryBankManager}, so that a change acknowledged to a caller is
+ * not lost if the JVM stops before it is written to the database.
+ * <p>
+ * The journal is a memory-mapped file of fixed-size records, used as a ring:
+ * the record of sequence number <i>n</i> is stored in slot <i>n</i> modulo the
+ * capacity, with a checksum telling complete records from stale or torn
+ * ones. A slot is reused only once its record is applied to the database,
+ * which stores the sequence number of the last record applied along with the
+ * changes, in <code>JOURNAL_STATE</code>. On restart, the records following
+ * that number are applied again, exactly once.
+ * <p>
+ * When a record is durable depends on the force policy:
+ * <ul>
+ * <li>{@link #FORCE_EACH}: each change is forced to disk before it is
+ * acknowledged, concurrent changes sharing the same force;</li>
+ * <li>{@link #FORCE_PERIODIC}: the journal is forced periodically, and a
+ * change is acknowledged after the next force;</li>
+ * <li>{@link #FORCE_NEVER}: a change is acknowledged once written to the
+ * mapped file, which survives a crash of the JVM but not of the system.</li>
+ * </ul>
+ * An object of this class is thread safe.
+ */
+public class OperationJournal {
+
+    //
+    // CONSTANTS
+    //
+    public static final int FORCE_EACH = 0;
+    public static final int FORCE_PERIODIC = 1;
+    public static final int FORCE_NEVER = 2;
+
+    // seq (8), type (4), from (4), to (4), amount (8), checksum (4)
+    static final int RECORD_SIZE = 32;
+    private static final long FORCE_PERIOD = 10; // ms
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final String name;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int forcePolicy;
+
+    private long lastSeq; // guarded by this
+    private long appliedSeq; // guarded by this
+    private long forcedSeq; // guarded by forceLock
+    private final Object forceLock = new Object();
+    private IOException failure; // guarded by forceLock
+    private final Thread forcer;
+    private volatile boolean closed = false;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Opens or creates a journal file.
+     *
+     * @param f
+     *            the journal file; its name identifies the journal in the
+     *            database
+     * @param capacity
+     *            the maximum number of changes accepted and not yet written
+     *            to the database; an existing file must have been created
+     *            with the same capacity
+     * @param forcePolicy
+     *            {@link #FORCE_EACH}, {@link #FORCE_PERIODIC} or
+     *            {@link #FORCE_NEVER}
+     */
+    public OperationJournal(File f, int capacity, int forcePolicy) throws IOException {
+	if (forcePolicy < FORCE_EACH || forcePolicy > FORCE_NEVER) {
+	    throw new IllegalArgumentException("unknown force policy: " + forcePolicy);
+	}
+	long size = (long) capacity * RECORD_SIZE;
+	if (f.exists() && f.length() != size) {
+	    throw new IOException("journal " + f + " has a capacity of " + f.length() / RECORD_SIZE + " records");
+	}
+	this.name = f.getName();
+	this.capacity = capacity;
+	this.forcePolicy = forcePolicy;
+	file = new RandomAccessFile(f, "rw");
+	file.setLength(size);
+	buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	if (forcePolicy == FORCE_PERIODIC) {
+	    forcer = new Thread("OperationJournal-force") {
+		public void run() {
+		    while (!closed) {
+			try {
+			    Thread.sleep(FORCE_PERIOD);
+			} catch (InterruptedException e) {
+			    // force once more and stop
+			}
+			force();
+		    }
+		}
+	    };
+	    forcer.setDaemon(true);
+	    forcer.start();
+	} else {
+	    forcer = null;
+	}
+    }
+
+    //
+    // RECOVERY
+    //
+
+    /**
+     * Returns the records following the specified sequence number, i.e. the
+     * changes not yet applied to the database, and positions the journal
+     * after the last one. Must be called once, before any append.
+     *
+     * @param applied
+     *            the sequence number of the last record applied to the
+     *            database, as stored in <code>JOURNAL_STATE</code>
+     */
+    synchronized List<Mutation> recover(long applied) {
+	List<Mutation> pending = new ArrayList<Mutation>();
+	long seq = applied + 1;
+	while (seq - applied <= capacity) {
+	    int p = slot(seq);
+	    if (buffer.getLong(p) != seq || buffer.getInt(p + 28) != checksum(p)) {
+		break;
+	    }
+	    pending.add(new Mutation(buffer.getInt(p + 8), buffer.getInt(p + 12), buffer.getInt(p + 16), buffer
+		    .getDouble(p + 20), seq));
+	    seq++;
+	}
+	lastSeq = seq - 1;
+	appliedSeq = applied;
+	synchronized (forceLock) {
+	    forcedSeq = lastSeq;
+	}
+	return pending;
+    }
+
+    //
+    // JOURNAL
+    //
+
+    /**
+     * Writes a record in the journal, waiting for a free slot if the journal
+     * is full. The record is not durable before {@link #awaitDurable(long)}
+     * returns.
+     *
+     * @return the sequence number of the record
+     * @throws IOException
+     *             if the journal is closed, or failed to be forced to disk:
+     *             it then accepts no more records
+     */
+    synchronized long append(int type, int from, int to, double amount) throws IOException, InterruptedException {
+	checkOpen();
+	while (lastSeq - appliedSeq >= capacity) {
+	    wait();
+	    checkOpen();
+	}
+	long seq = ++lastSeq;
+	int p = slot(seq);
+	buffer.putInt(p + 8, type);
+	buffer.putInt(p + 12, from);
+	buffer.putInt(p + 16, to);
+	buffer.putDouble(p + 20, amount);
+	buffer.putLong(p, seq);
+	buffer.putInt(p + 28, checksum(p));
+	return seq;
+    }
+
+    private void checkOpen() throws IOException {
+	synchronized (forceLock) {
+	    if (failure != null) {
+		throw failure;
+	    }
+	}
+	if (closed) {
+	    throw new IOException("journal is closed");
+	}
+    }
+
+    /**
+     * Waits until the record with the specified sequence number is durable,
+     * as per the force policy.
+     *
+     * @throws IOException
+     *             if the journal could not be forced to disk
+     */
+    void awaitDurable(long seq) throws IOException, InterruptedException {
+	if (forcePolicy == FORCE_NEVER) {
+	    return;
+	}
+	if (forcePolicy == FORCE_EACH) {
+	    synchronized (forceLock) {
+		if (forcedSeq >= seq) {
+		    return;
+		}
+	    }
+	    force();
+	}
+	synchronized (forceLock) {
+	    while (forcedSeq < seq) {
+		if (failure != null) {
+		    throw failure;
+		}
+		if (closed) {
+		    throw new IOException("journal is closed");
+		}
+		forceLock.wait();
+	    }
+	}
+    }
+
+    /**
+     * Forces the records appended so far to disk.
+     */
+    private void force() {
+	long target;
+	synchronized (this) {
+	    target = lastSeq;
+	}
+	synchronized (forceLock) {
+	    if (forcedSeq >= target) {
+		return;
+	    }
+	}
+	IOException error = null;
+	try {
+	    buffer.force();
+	} catch (RuntimeException e) {
+	    // the mapped buffer reports I/O errors as unchecked exceptions
+	    error = new IOException("failed to force journal " + name, e);
+	}
+	synchronized (forceLock) {
+	    if (error != null) {
+		failure = error;
+	    } else if (target > forcedSeq) {
+		forcedSeq = target;
+	    }
+	    forceLock.notifyAll();
+	}
+    }
+
+    /**
+     * Frees the slots of the records up to the specified sequence number, which
+     * are applied to the database.
+     */
+    synchronized void applied(long seq) {
+	if (seq > appliedSeq) {
+	    appliedSeq = seq;
+	    notifyAll();
+	}
+    }
+
+    private int slot(long seq) {
+	return (int) (seq % capacity) * RECORD_SIZE;
+    }
+
+    /**
+     * Returns the checksum of the first 28 bytes of the record at the specified
+     * position.
+     */
+    private int checksum(int p) {
+	int h = 0x5bd1e995;
+	for (int i = 0; i < 28; i += 4) {
+	    int k = buffer.getInt(p + i) * 0xcc9e2d51;
+	    k = (k << 15 | k >>> 17) * 0x1b873593;
+	    h = (h ^ k) * 5 + 0xe6546b64;
+	}
+	h ^= h >>> 16;
+	h *= 0x85ebca6b;
+	return h ^ h >>> 13;
+    }
+
+    //
+    // ACCESSORS
+    //
+
+    /**
+     * Returns the name identifying the journal in the database.
+     */
+    public String getName() {
+	return name;
+    }
+
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Returns the number of records not yet applied to the database.
+     */
+    public synchronized long getPending() {
+	return lastSeq - appliedSeq;
+    }
+
+    /**
+     * Forces the journal to disk and closes its file. The records not yet
+     * applied to the database are applied when the journal is next opened.
+     */
+    public void close() throws IOException {
+	closed = true;
+	if (forcer != null) {
+	    forcer.interrupt();
+	    try {
+		forcer.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	buffer.force();
+	synchronized (forceLock) {
+	    forceLock.notifyAll();
+	}
+	file.close();
+    }
+
+    @Override
+    public String toString() {
+	return "OperationJournal [name=" + name + ", capacity=" + capacity + ", pending=" + getPending() + "]";
+    }
+}
@@ -0,0 +1,270 @@
+package bank;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * The maintenance of the monthly partitions of <code>OPERATIONS</code>, when
+ * it is created range-partitioned by <code>createDB</code> (see
+ * {@link BankManagerFactory#setPartitionedOperations(boolean)}).
+ * <p>
+ * Partition <code>p</code><i>yyyyMM</i> holds the operations dated before
+ * the first day of the following month, and partition <code>pmax</code> the
+ * operations dated after the last month partition. A maintenance job should
+ * periodically:
+ * <ul>
+ * <li>{@link #rollForward(int)}: split <code>pmax</code> into the
+ * partitions of the coming months, so that it stays empty and queries on
+ * recent dates read a single partition;</li>
+ * <li>{@link #archive(int)}: write the partitions of the months past the
+ * retention period to the {@link OperationArchive} of the factory, and drop
+ * them, which costs much less than deleting their rows.</li>
+ * </ul>
+ * Months are those of the server's time zone, which must be that of the JVM.
+ */
+public class OperationPartitions {
+
+    //
+    // CONSTANTS
+    //
+    static final String MAX_PARTITION = "pmax";
+
+    private static final String SELECT_PARTITIONS = "select PARTITION_NAME from information_schema.PARTITIONS "
+	    + "where TABLE_SCHEMA=database() and TABLE_NAME='OPERATIONS' and PARTITION_NAME is not null "
+	    + "order by PARTITION_ORDINAL_POSITION ;";
+    private static final String REORGANIZE_MAX_PARTITION = "alter table OPERATIONS reorganize partition "
+	    + MAX_PARTITION + " into (%s) ;";
+    private static final String DROP_PARTITION = "alter table OPERATIONS drop partition %s ;";
+    // the bounds are compared in the session time zone, as in the partition function
+    private static final String SELECT_PARTITION = "select ID, NUMBER, AMOUNT, DATE from OPERATIONS "
+	    + "where DATE<? order by NUMBER, DATE, ID ;";
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory factory;
+
+    //
+    // CONSTRUCTOR
+    //
+    public OperationPartitions(BankManagerFactory f) {
+	factory = f;
+    }
+
+    //
+    // PARTITION DEFINITIONS
+    //
+
+    /**
+     * Returns the definitions of the partitions of count months from the
+     * specified month, followed by <code>pmax</code>.
+     */
+    static String definitions(Calendar month, int count) {
+	Calendar c = (Calendar) month.clone();
+	StringBuilder sb = new StringBuilder();
+	for (int i = 0; i < count; i++) {
+	    String name = name(c);
+	    c.add(Calendar.MONTH, 1);
+	    sb.append("partition ").append(name).append(" values less than (unix_timestamp('").append(bound(c))
+		    .append("')), ");
+	}
+	return sb.append("partition ").append(MAX_PARTITION).append(" values less than maxvalue").toString();
+    }
+
+    /**
+     * Returns the first day of the month of the specified calendar, as a
+     * calendar.
+     */
+    static Calendar startOfMonth(Calendar c) {
+	Calendar m = (Calendar) c.clone();
+	m.set(Calendar.DAY_OF_MONTH, 1);
+	m.set(Calendar.HOUR_OF_DAY, 0);
+	m.set(Calendar.MINUTE, 0);
+	m.set(Calendar.SECOND, 0);
+	m.set(Calendar.MILLISECOND, 0);
+	return m;
+    }
+
+    private static String name(Calendar month) {
+	return "p" + new SimpleDateFormat("yyyyMM").format(month.getTime());
+    }
+
+    private static String bound(Calendar month) {
+	return new SimpleDateFormat("yyyy-MM-dd 00:00:00").format(month.getTime());
+    }
+
+    /**
+     * Returns the month of a partition other than <code>pmax</code>.
+     */
+    private static Calendar month(String partition) throws SQLException {
+	Calendar c = Calendar.getInstance();
+	try {
+	    c.setTime(new SimpleDateFormat("yyyyMM").parse(partition.substring(1)));
+	} catch (ParseException e) {
+	    throw new SQLException("unexpected partition of OPERATIONS: " + partition, e);
+	}
+	return c;
+    }
+
+    //
+    // MAINTENANCE
+    //
+
+    /**
+     * Returns the names of the partitions of <code>OPERATIONS</code>, oldest
+     * first, or an empty list if the table is not partitioned.
+     */
+    public List<String> getPartitions() throws SQLException {
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    List<String> r = partitions(m.getConnection());
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    private static List<String> partitions(Connection con) throws SQLException {
+	List<String> list = new ArrayList<String>();
+	Statement s = con.createStatement();
+	try {
+	    ResultSet rs = s.executeQuery(SELECT_PARTITIONS);
+	    while (rs.next()) {
+		list.add(rs.getString(1));
+	    }
+	    rs.close();
+	} finally {
+	    s.close();
+	}
+	return list;
+    }
+
+    /**
+     * Adds the partitions of the months up to the current month plus
+     * monthsAhead, if missing. The operations already in <code>pmax</code>, if
+     * any, are moved to their month partition.
+     *
+     * @return the number of partitions added
+     */
+    public int rollForward(int monthsAhead) throws SQLException {
+	if (monthsAhead < 0) {
+	    throw new IllegalArgumentException("monthsAhead must not be negative: " + monthsAhead);
+	}
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    List<String> partitions = partitions(m.getConnection());
+	    if (partitions.size() < 2) {
+		throw new SQLException("OPERATIONS is not partitioned by month");
+	    }
+	    // the month following the last month partition
+	    Calendar next = month(partitions.get(partitions.size() - 2));
+	    next.add(Calendar.MONTH, 1);
+	    Calendar last = startOfMonth(Calendar.getInstance());
+	    last.add(Calendar.MONTH, monthsAhead);
+	    int count = 0;
+	    for (Calendar c = (Calendar) next.clone(); !c.after(last); c.add(Calendar.MONTH, 1)) {
+		count++;
+	    }
+	    if (count > 0) {
+		Statement s = m.getConnection().createStatement();
+		try {
+		    s.executeUpdate(String.format(REORGANIZE_MAX_PARTITION, definitions(next, count)));
+		} finally {
+		    s.close();
+		}
+	    }
+	    failed = false;
+	    return count;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Archives and drops the partitions of the months before the current
+     * month minus monthsKept, oldest first. Each partition is written to the
+     * archive, then the horizon of the archive is moved past it, then it is
+     * dropped. The archive file and the horizon are forced to disk before the
+     * partition is dropped: a failure at any step, even a crash of the system,
+     * leaves no operation unreachable, and the partition is archived again by
+     * the next call.
+     *
+     * @param monthsKept
+     *            the number of whole months kept in the database before the
+     *            current month
+     * @return the number of partitions archived
+     * @throws IllegalStateException
+     *             if the factory has no archive
+     */
+    public int archive(int monthsKept) throws SQLException, IOException {
+	OperationArchive archive = factory.getOperationArchive();
+	if (archive == null) {
+	    throw new IllegalStateException("the factory has no operation archive");
+	}
+	if (monthsKept < 0) {
+	    throw new IllegalArgumentException("monthsKept must not be negative: " + monthsKept);
+	}
+	Calendar limit = startOfMonth(Calendar.getInstance());
+	limit.add(Calendar.MONTH, -monthsKept);
+	ConnectionPool pool = factory.getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Connection con = m.getConnection();
+	    int count = 0;
+	    for (String p : partitions(con)) {
+		if (p.equals(MAX_PARTITION)) {
+		    break;
+		}
+		Calendar end = month(p);
+		end.add(Calendar.MONTH, 1);
+		if (end.after(limit)) {
+		    break;
+		}
+		// the older partitions are dropped, so this one holds all the rows before its end
+		PreparedStatement ps = con.prepareStatement(SELECT_PARTITION, ResultSet.TYPE_FORWARD_ONLY,
+			ResultSet.CONCUR_READ_ONLY);
+		try {
+		    ps.setString(1, bound(end));
+		    // stream the rows rather than reading the whole month in memory
+		    ps.setFetchSize(Integer.MIN_VALUE);
+		    ResultSet rs = ps.executeQuery();
+		    try {
+			archive.write(p.substring(1), rs);
+		    } finally {
+			rs.close();
+		    }
+		} finally {
+		    ps.close();
+		}
+		m.commitTransaction();
+		archive.setHorizon(end.getTimeInMillis());
+		Statement s = con.createStatement();
+		try {
+		    s.executeUpdate(String.format(DROP_PARTITION, p));
+		} finally {
+		    s.close();
+		}
+		count++;
+	    }
+	    failed = false;
+	    return count;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+}
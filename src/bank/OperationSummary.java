@@ -0,0 +1,97 @@
+package bank;
+
+/**
+ * The totals of the operations on an account in a time interval, as returned
+ * by {@link PooledBankManager#getSummary(int, java.util.Date, java.util.Date)}.
+ */
+public class OperationSummary {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private int number; // the number of the account
+    private long count; // the number of operations
+    private double credits; // the sum of the positive amounts
+    private double debits; // the sum of the negative amounts, as a positive value
+
+    //
+    // CONSTRUCTOR
+    //
+    public OperationSummary(int number, long count, double credits, double debits) {
+	this.number = number;
+	this.count = count;
+	this.credits = credits;
+	this.debits = debits;
+    }
+
+    @Override
+    public String toString() {
+	return "OperationSummary [number=" + number + ", count=" + count + ", credits=" + credits + ", debits="
+		+ debits + ", net=" + getNet() + "]";
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int getNumber() {
+	return number;
+    }
+
+    public long getCount() {
+	return count;
+    }
+
+    public double getCredits() {
+	return credits;
+    }
+
+    public double getDebits() {
+	return debits;
+    }
+
+    /**
+     * Returns the change of the balance over the interval, i.e. the credits
+     * minus the debits.
+     */
+    public double getNet() {
+	return credits - debits;
+    }
+
+    //
+    // IDENTITY
+    //
+    @Override
+    public int hashCode() {
+	final int prime = 31;
+	int result = 1;
+	long temp;
+	result = prime * result + (int) (count ^ (count >>> 32));
+	temp = Double.doubleToLongBits(credits);
+	result = prime * result + (int) (temp ^ (temp >>> 32));
+	temp = Double.doubleToLongBits(debits);
+	result = prime * result + (int) (temp ^ (temp >>> 32));
+	result = prime * result + number;
+	return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (this == obj)
+	    return true;
+	if (obj == null)
+	    return false;
+	if (getClass() != obj.getClass())
+	    return false;
+	OperationSummary other = (OperationSummary) obj;
+	if (count != other.count)
+	    return false;
+	if (Double.doubleToLongBits(credits) != Double.doubleToLongBits(other.credits))
+	    return false;
+	if (Double.doubleToLongBits(debits) != Double.doubleToLongBits(other.debits))
+	    return false;
+	if (number != other.number)
+	    return false;
+	return true;
+    }
+
+}
@@ -0,0 +1,330 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An implementation of the BankManager interface that checks a connection out
+ * of a {@link ConnectionPool} for each call, and returns it as soon as the
+ * call completes. Objects of this class are created by
+ * {@link BankManagerFactory#newManager()}, and hold no connection of their
+ * own.
+ */
+public class PooledBankManager implements BankManager {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory factory;
+    private final ConnectionPool pool;
+
+    //
+    // CONSTRUCTOR
+    //
+    PooledBankManager(BankManagerFactory f) {
+	factory = f;
+	pool = f.getPool();
+    }
+
+    //
+    // BANK MANAGER
+    //
+    @Override
+    public void createDB() throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    m.createDB();
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public boolean createAccount(int number) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    boolean r = m.createAccount(number);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public double getBalance(int number) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    double r = m.getBalance(number);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public double addBalance(int number, double amount) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    double r = m.addBalance(number, amount);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public boolean transfer(int from, int to, double amount) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    boolean r = m.transfer(from, to, amount);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    List<Operation> r = m.getOperations(number, from, to);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Reads the operations on the specified account in the specified time
+     * interval into the specified buffer, which is cleared first. Unlike
+     * {@link #getOperations(int, Date, Date)}, no object is created per
+     * operation, so that a caller reusing its buffer reads operations without
+     * allocating memory, once the buffer has grown to their number.
+     *
+     * @param number
+     *            the number of the account
+     * @param from
+     *            start date/time (inclusive)
+     * @param to
+     *            end date/time (inclusive)
+     * @param into
+     *            the buffer receiving the operations, in date order
+     * @return the buffer
+     */
+    public OperationColumns getOperations(int number, Date from, Date to, OperationColumns into)
+	    throws SQLException {
+	into.clear();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    m.getOperations(number, from, to, into);
+	    failed = false;
+	    return into;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Returns a cursor over the operations on the specified account in the
+     * specified time interval. Unlike {@link #getOperations(int, Date, Date)},
+     * the operations are read by pages as the cursor moves, so that memory use
+     * does not depend on the length of the interval.
+     *
+     * @param number
+     *            the number of the account
+     * @param from
+     *            start date/time (inclusive)
+     * @param to
+     *            end date/time (inclusive)
+     * @return a cursor positioned before the first operation
+     */
+    public OperationCursor openOperations(int number, Date from, Date to) {
+	return new OperationCursor(pool, number, from, to, factory.getPageSize());
+    }
+
+    /**
+     * Returns the totals of the operations on the specified account in the
+     * specified time interval. The totals are read mostly from hourly and
+     * daily rollups maintained as operations are logged, so that the cost of
+     * a call depends on the number of days of the interval rather than on its
+     * number of operations.
+     *
+     * @param number
+     *            the number of the account
+     * @param from
+     *            start date/time (inclusive)
+     * @param to
+     *            end date/time (inclusive)
+     * @return the number of operations, and the sums of their credits and
+     *         debits
+     */
+    public OperationSummary getSummary(int number, Date from, Date to) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    OperationSummary r = m.getSummary(number, from, to);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Returns the balance of the specified account at the specified date,
+     * i.e. the sum of its operations dated up to it. The balance is read from
+     * the last checkpoint written by {@link BalanceCheckpoints} before the
+     * date, plus the operations since, so that the cost of a call depends on
+     * the checkpoint interval rather than on the age of the account.
+     *
+     * @param number
+     *            the number of the account
+     * @param at
+     *            the date/time (inclusive)
+     * @return the balance at the date, 0 if the account did not exist then
+     */
+    public double getBalanceAt(int number, Date at) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    double r = m.getBalanceAt(number, at);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // BALANCE SNAPSHOTS
+    //
+
+    /**
+     * Returns the balances of the specified accounts, all read in a single
+     * consistent snapshot, so that their total is not torn by concurrent
+     * transfers. The accounts are read by IN lists of a thousand, each in a
+     * single round trip.
+     *
+     * @param numbers
+     *            the numbers of the accounts, in any order
+     * @return the balances in the order of the numbers, <code>NaN</code> for
+     *         the accounts that do not exist
+     */
+    public Balances getBalances(int[] numbers) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Balances r = m.readBalances(numbers);
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Returns the balances of the existing accounts with numbers from first to
+     * last inclusive, in number order, read by a single range scan in a
+     * consistent snapshot.
+     */
+    public Balances getBalances(int first, int last) throws SQLException {
+	Balances.Builder builder = new Balances.Builder();
+	scanBalances(first, last, builder);
+	return builder.build();
+    }
+
+    /**
+     * Streams the balances of the existing accounts with numbers from first to
+     * last inclusive to the specified handler, in number order and in a
+     * consistent snapshot, without holding them in memory: the rows are
+     * streamed by the driver as the handler consumes them. The scan holds a
+     * connection of the pool until the handler has received the last account.
+     */
+    public void scanBalances(int first, int last, Balances.Handler handler) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    m.scanBalances(first, last, handler);
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // BATCH OPERATIONS
+    //
+
+    /**
+     * Adds each of the specified amounts to the account with the same index.
+     * Updates are sent in JDBC batches and committed once per batch, as set by
+     * {@link BankManagerFactory#setBatchSize(int)}. A withdrawal without
+     * sufficient funds is refused without aborting the other updates.
+     *
+     * @param numbers
+     *            the numbers of the accounts
+     * @param amounts
+     *            the amounts to add to the accounts' balances
+     * @return for each update, <code>true</code> if it was performed and
+     *         <code>false</code> if it was refused
+     * @throws SQLException
+     *             if an SQL exception occurs; the batches performed before it
+     *             remain committed
+     */
+    public boolean[] addBalanceAll(int[] numbers, double[] amounts) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    boolean[] r = m.addBalanceAll(numbers, amounts, factory.getBatchSize());
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Performs the specified transfers, in order. Transfers are sent in JDBC
+     * batches and committed once per batch, as set by
+     * {@link BankManagerFactory#setBatchSize(int)}. A transfer without
+     * sufficient funds is refused without aborting the other transfers.
+     *
+     * @param transfers
+     *            the transfers to perform
+     * @return for each transfer, <code>true</code> if it was performed and
+     *         <code>false</code> if it was refused
+     * @throws SQLException
+     *             if an SQL exception occurs; the batches performed before it
+     *             remain committed
+     */
+    public boolean[] transferAll(List<Transfer> transfers) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    boolean[] r = m.transferAll(transfers, factory.getBatchSize());
+	    failed = false;
+	    return r;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "PooledBankManager [" + pool + "]";
+    }
+}
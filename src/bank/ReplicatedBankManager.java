@@ -0,0 +1,593 @@
+package bank;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An implementation of the BankManager interface sending updates to a primary
+ * database, and reads to its replicas. Each database is accessed through its
+ * own {@link BankManagerFactory}.
+ * <p>
+ * A read goes to a replica chosen in turn ({@link #ROUND_ROBIN}) or with the
+ * fewest connections in use ({@link #LEAST_LOADED}), among the replicas whose
+ * lag, measured periodically with <code>SHOW SLAVE STATUS</code>, does not
+ * exceed the maximum lag. If no replica qualifies, or the chosen one fails,
+ * the read goes to the primary.
+ * <p>
+ * The reads of this manager are only as fresh as the maximum lag allows, and
+ * may miss the updates just made through it. The reads of a {@link Session}
+ * follow its writes: after an update, they go to the primary until a replica
+ * has applied the update. To know it, the monitor reads the binary log
+ * position of the primary with <code>SHOW MASTER STATUS</code>, then the
+ * position up to which each replica has executed it. An update returned
+ * before the primary position was read is applied by the replicas that
+ * reached that position. Reads thus go back to the replicas within about two
+ * measurement periods after an update, if the primary logs its updates.
+ * <p>
+ * An object of this class is thread safe.
+ */
+public class ReplicatedBankManager implements BankManager {
+
+    //
+    // CONSTANTS
+    //
+
+    /**
+     * Selection of the replicas in turn.
+     */
+    public static final int ROUND_ROBIN = 0;
+
+    /**
+     * Selection of the replica with the fewest connections in use.
+     */
+    public static final int LEAST_LOADED = 1;
+
+    private static final long DEFAULT_MAX_LAG = 5000; // ms
+    private static final long DEFAULT_MONITOR_PERIOD = 1000; // ms
+    // lag of a replica whose replication is stopped or that is unreachable
+    private static final long UNAVAILABLE = -1;
+    // time of the last write of a session that did not write
+    private static final long NEVER = Long.MIN_VALUE;
+    // maximum number of primary positions kept for a replica behind them
+    private static final int MAX_SAMPLES = 64;
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory primaryFactory;
+    private final BankManagerFactory[] replicaFactories;
+    private final PooledBankManager primary;
+    private final PooledBankManager[] replicas;
+    private final boolean ownFactories;
+    private final int selection;
+    private final AtomicInteger next = new AtomicInteger();
+
+    // measured lag of each replica in milliseconds, or UNAVAILABLE
+    private final AtomicLongArray lags;
+    // time of the latest primary position executed by each replica, in
+    // System.nanoTime() units, or NEVER
+    private final AtomicLongArray applied;
+    // primary positions read by the monitor, oldest first
+    private final ArrayDeque<Sample> samples = new ArrayDeque<Sample>();
+    private volatile long maxLag = DEFAULT_MAX_LAG;
+    private final Timer monitor;
+
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong primaryReads = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Creates a new manager over the specified databases, measuring the lag
+     * of the replicas every second. The factories are closed by
+     * {@link #close()}.
+     *
+     * @param primaryUrl
+     *            the url of the primary database
+     * @param replicaUrls
+     *            the urls of its replicas
+     * @param user
+     *            the login name of the user, on all the databases
+     * @param password
+     *            his password
+     * @param selection
+     *            {@link #ROUND_ROBIN} or {@link #LEAST_LOADED}
+     */
+    public ReplicatedBankManager(String primaryUrl, List<String> replicaUrls, String user, String password,
+	    int selection) {
+	this(new BankManagerFactory(primaryUrl, user, password), newFactories(replicaUrls, user, password),
+		selection, DEFAULT_MONITOR_PERIOD, true);
+    }
+
+    /**
+     * Creates a new manager over the databases of the specified factories. The
+     * factories remain owned by the caller.
+     *
+     * @param primary
+     *            the factory of the primary database
+     * @param replicas
+     *            the factories of its replicas
+     * @param selection
+     *            {@link #ROUND_ROBIN} or {@link #LEAST_LOADED}
+     * @param monitorPeriodMillis
+     *            the period of the measurement of the replicas' lag
+     */
+    public ReplicatedBankManager(BankManagerFactory primary, List<BankManagerFactory> replicas, int selection,
+	    long monitorPeriodMillis) {
+	this(primary, replicas.toArray(new BankManagerFactory[replicas.size()]), selection, monitorPeriodMillis,
+		false);
+    }
+
+    private ReplicatedBankManager(BankManagerFactory primary, BankManagerFactory[] replicas, int selection,
+	    long monitorPeriodMillis, boolean own) {
+	if (selection != ROUND_ROBIN && selection != LEAST_LOADED) {
+	    throw new IllegalArgumentException("unknown selection: " + selection);
+	}
+	this.primaryFactory = primary;
+	this.replicaFactories = replicas;
+	this.primary = new PooledBankManager(primary);
+	this.replicas = new PooledBankManager[replicas.length];
+	for (int i = 0; i < replicas.length; i++) {
+	    this.replicas[i] = new PooledBankManager(replicas[i]);
+	}
+	this.ownFactories = own;
+	this.selection = selection;
+	// replicas are unused until their lag is measured
+	lags = new AtomicLongArray(replicas.length);
+	applied = new AtomicLongArray(replicas.length);
+	for (int i = 0; i < replicas.length; i++) {
+	    lags.set(i, UNAVAILABLE);
+	    applied.set(i, NEVER);
+	}
+	monitor = new Timer("ReplicatedBankManager-monitor", true);
+	monitor.schedule(new TimerTask() {
+	    public void run() {
+		measureLags();
+	    }
+	}, 0, monitorPeriodMillis);
+    }
+
+    private static BankManagerFactory[] newFactories(List<String> urls, String user, String password) {
+	BankManagerFactory[] f = new BankManagerFactory[urls.size()];
+	for (int i = 0; i < f.length; i++) {
+	    f[i] = new BankManagerFactory(urls.get(i), user, password);
+	}
+	return f;
+    }
+
+    //
+    // ROUTING
+    //
+
+    /**
+     * Returns the index of the replica to read from, or -1 to read from the
+     * primary.
+     *
+     * @param lastWrite
+     *            the time of the last update the read must see, or NEVER
+     */
+    private int selectReplica(long lastWrite) {
+	int n = replicas.length;
+	if (selection == ROUND_ROBIN) {
+	    int start = (next.getAndIncrement() & 0x7fffffff) % Math.max(n, 1);
+	    for (int k = 0; k < n; k++) {
+		int i = (start + k) % n;
+		if (isEligible(i, lastWrite)) {
+		    return i;
+		}
+	    }
+	    return -1;
+	}
+	int best = -1;
+	int bestActive = Integer.MAX_VALUE;
+	for (int i = 0; i < n; i++) {
+	    if (isEligible(i, lastWrite)) {
+		int active = replicaFactories[i].getPool().getActive();
+		if (active < bestActive) {
+		    best = i;
+		    bestActive = active;
+		}
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Returns true if a replica may serve a read that must see the updates
+     * returned at the specified time.
+     */
+    private boolean isEligible(int replica, long lastWrite) {
+	long lag = lags.get(replica);
+	if (lag == UNAVAILABLE || lag > maxLag) {
+	    return false;
+	}
+	if (lastWrite == NEVER) {
+	    return true;
+	}
+	long time = applied.get(replica);
+	return time != NEVER && time - lastWrite >= 0;
+    }
+
+    /**
+     * Reads the position of the primary, then measures the lag of each
+     * replica and the position it has executed. Called by the monitor only.
+     */
+    private void measureLags() {
+	long time = System.nanoTime();
+	try {
+	    Position p = readPosition(primaryFactory.getPool(), "SHOW MASTER STATUS", "File", "Position");
+	    if (p != null) {
+		samples.addLast(new Sample(time, p));
+	    }
+	} catch (SQLException e) {
+	    // no new sample: the sessions that wrote keep reading the primary
+	}
+	for (int i = 0; i < replicas.length; i++) {
+	    ConnectionPool pool = replicaFactories[i].getPool();
+	    long lag;
+	    try {
+		lag = measureLag(pool);
+		Position p = readPosition(pool, "SHOW SLAVE STATUS", "Relay_Master_Log_File", "Exec_Master_Log_Pos");
+		// the latest primary position the replica has executed
+		for (Iterator<Sample> it = samples.descendingIterator(); p != null && it.hasNext();) {
+		    Sample s = it.next();
+		    if (s.position.compareTo(p) <= 0) {
+			applied.set(i, s.time);
+			break;
+		    }
+		}
+	    } catch (SQLException e) {
+		lag = UNAVAILABLE;
+	    }
+	    lags.set(i, lag);
+	}
+	// keep the samples a replica may still reach
+	while (samples.size() > MAX_SAMPLES || samples.size() > 1 && isReached(samples.peekFirst())) {
+	    samples.removeFirst();
+	}
+    }
+
+    private boolean isReached(Sample s) {
+	for (int i = 0; i < replicas.length; i++) {
+	    long time = applied.get(i);
+	    if (time == NEVER || time - s.time <= 0) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static long measureLag(ConnectionPool pool) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Statement s = m.getConnection().createStatement();
+	    try {
+		ResultSet rs = s.executeQuery("SHOW SLAVE STATUS");
+		long lag = UNAVAILABLE;
+		if (rs.next()) {
+		    // null if the replication is stopped
+		    long seconds = rs.getLong("Seconds_Behind_Master");
+		    if (!rs.wasNull()) {
+			lag = seconds * 1000;
+		    }
+		}
+		rs.close();
+		failed = false;
+		return lag;
+	    } finally {
+		s.close();
+	    }
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    /**
+     * Returns the binary log position in the specified columns of the result
+     * of a status query, or null if there is none, e.g. as the binary log is
+     * disabled.
+     */
+    private static Position readPosition(ConnectionPool pool, String query, String fileColumn,
+	    String positionColumn) throws SQLException {
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Statement s = m.getConnection().createStatement();
+	    try {
+		ResultSet rs = s.executeQuery(query);
+		Position p = null;
+		if (rs.next()) {
+		    String file = rs.getString(fileColumn);
+		    long position = rs.getLong(positionColumn);
+		    if (file != null && file.length() > 0) {
+			p = new Position(file, position);
+		    }
+		}
+		rs.close();
+		failed = false;
+		return p;
+	    } finally {
+		s.close();
+	    }
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // SESSIONS
+    //
+
+    /**
+     * Returns a new session, whose reads see its own updates.
+     */
+    public Session newSession() {
+	return new Session();
+    }
+
+    /**
+     * A view of this manager whose reads see the updates made through it,
+     * from any thread: it may thus be shared by the tasks of one client, e.g.
+     * under an {@link AsyncBankManager}. Until a replica has executed its last
+     * update, its reads go to the primary.
+     */
+    public final class Session implements BankManager {
+
+	// time of the last update of this session, in System.nanoTime() units
+	private final AtomicLong lastWrite = new AtomicLong(NEVER);
+
+	private Session() {
+	}
+
+	private void written() {
+	    lastWrite.set(System.nanoTime());
+	}
+
+	@Override
+	public void createDB() throws SQLException {
+	    try {
+		ReplicatedBankManager.this.createDB();
+	    } finally {
+		written();
+	    }
+	}
+
+	@Override
+	public boolean createAccount(int number) throws SQLException {
+	    try {
+		return primary.createAccount(number);
+	    } finally {
+		written();
+	    }
+	}
+
+	@Override
+	public double getBalance(int number) throws SQLException {
+	    return ReplicatedBankManager.this.getBalance(number, lastWrite.get());
+	}
+
+	@Override
+	public double addBalance(int number, double amount) throws SQLException {
+	    try {
+		return primary.addBalance(number, amount);
+	    } finally {
+		written();
+	    }
+	}
+
+	@Override
+	public boolean transfer(int from, int to, double amount) throws SQLException {
+	    try {
+		return primary.transfer(from, to, amount);
+	    } finally {
+		written();
+	    }
+	}
+
+	@Override
+	public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	    return ReplicatedBankManager.this.getOperations(number, from, to, lastWrite.get());
+	}
+    }
+
+    //
+    // BANK MANAGER
+    //
+    @Override
+    public void createDB() throws SQLException {
+	primary.createDB();
+    }
+
+    @Override
+    public boolean createAccount(int number) throws SQLException {
+	return primary.createAccount(number);
+    }
+
+    @Override
+    public double getBalance(int number) throws SQLException {
+	return getBalance(number, NEVER);
+    }
+
+    private double getBalance(int number, long lastWrite) throws SQLException {
+	int r = selectReplica(lastWrite);
+	if (r >= 0) {
+	    try {
+		double b = replicas[r].getBalance(number);
+		replicaReads.incrementAndGet();
+		return b;
+	    } catch (SQLException e) {
+		failed(r);
+	    }
+	}
+	primaryReads.incrementAndGet();
+	return primary.getBalance(number);
+    }
+
+    @Override
+    public double addBalance(int number, double amount) throws SQLException {
+	return primary.addBalance(number, amount);
+    }
+
+    @Override
+    public boolean transfer(int from, int to, double amount) throws SQLException {
+	return primary.transfer(from, to, amount);
+    }
+
+    @Override
+    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	return getOperations(number, from, to, NEVER);
+    }
+
+    private List<Operation> getOperations(int number, Date from, Date to, long lastWrite) throws SQLException {
+	int r = selectReplica(lastWrite);
+	if (r >= 0) {
+	    try {
+		List<Operation> list = replicas[r].getOperations(number, from, to);
+		replicaReads.incrementAndGet();
+		return list;
+	    } catch (SQLException e) {
+		failed(r);
+	    }
+	}
+	primaryReads.incrementAndGet();
+	return primary.getOperations(number, from, to);
+    }
+
+    /**
+     * Stops reading from a replica that failed, until its next measurement.
+     */
+    private void failed(int replica) {
+	lags.set(replica, UNAVAILABLE);
+	fallbacks.incrementAndGet();
+    }
+
+    //
+    // ACCESSORS
+    //
+
+    /**
+     * Returns the last measured lag of the specified replica in milliseconds,
+     * or -1 if its replication is stopped or it is unreachable. The lag is
+     * measured with a precision of one second.
+     */
+    public long getLag(int replica) {
+	return lags.get(replica);
+    }
+
+    /**
+     * Returns the measured lags of all the replicas, as by
+     * {@link #getLag(int)}.
+     */
+    public List<Long> getLags() {
+	List<Long> l = new ArrayList<Long>();
+	for (int i = 0; i < replicas.length; i++) {
+	    l.add(lags.get(i));
+	}
+	return l;
+    }
+
+    public long getMaxLag() {
+	return maxLag;
+    }
+
+    /**
+     * Sets the lag beyond which a replica no longer serves reads, until its
+     * lag falls back below it.
+     */
+    public void setMaxLag(long maxLagMillis) {
+	maxLag = maxLagMillis;
+    }
+
+    /**
+     * Returns the number of reads served by the replicas.
+     */
+    public long getReplicaReads() {
+	return replicaReads.get();
+    }
+
+    /**
+     * Returns the number of reads served by the primary.
+     */
+    public long getPrimaryReads() {
+	return primaryReads.get();
+    }
+
+    /**
+     * Returns the number of reads that failed on a replica, and were served by
+     * the primary.
+     */
+    public long getFallbacks() {
+	return fallbacks.get();
+    }
+
+    public BankManagerFactory getPrimary() {
+	return primaryFactory;
+    }
+
+    /**
+     * Stops measuring the lag of the replicas, and closes the factories if
+     * they were created by this manager.
+     */
+    public void close() {
+	monitor.cancel();
+	if (ownFactories) {
+	    primaryFactory.close();
+	    for (BankManagerFactory f : replicaFactories) {
+		f.close();
+	    }
+	}
+    }
+
+    /**
+     * A position in the binary log of the primary.
+     */
+    private static final class Position implements Comparable<Position> {
+	final String file;
+	final long position;
+
+	Position(String file, long position) {
+	    this.file = file;
+	    this.position = position;
+	}
+
+	public int compareTo(Position p) {
+	    // the files are numbered: a longer name comes after a shorter one
+	    int c = file.length() != p.file.length() ? file.length() - p.file.length() : file.compareTo(p.file);
+	    return c != 0 ? c : position < p.position ? -1 : position == p.position ? 0 : 1;
+	}
+    }
+
+    /**
+     * A position of the primary, and the time it was read at.
+     */
+    private static final class Sample {
+	final long time;
+	final Position position;
+
+	Sample(long time, Position position) {
+	    this.time = time;
+	    this.position = position;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "ReplicatedBankManager [replicas=" + replicas.length + ", lags=" + getLags() + ", replicaReads="
+		+ getReplicaReads() + ", primaryReads=" + getPrimaryReads() + ", fallbacks=" + getFallbacks() + "]";
+    }
+}
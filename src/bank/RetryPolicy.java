@@ -0,0 +1,173 @@
+package bank;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The retry policy of transactions aborted by lock contention, i.e. by a
+ * deadlock or a lock wait timeout. Such a transaction is retried a bounded
+ * number of times, after a random delay whose upper bound doubles at each
+ * attempt ("full jitter"), so that the retries of contending transactions do
+ * not collide again.
+ * <p>
+ * A policy is thread safe, and counts the contention it handles: it is meant
+ * to be shared by all the connections of a {@link BankManagerFactory}.
+ */
+public class RetryPolicy {
+
+    //
+    // CONSTANTS
+    //
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_BASE_DELAY = 5; // ms
+    private static final long DEFAULT_MAX_DELAY = 200; // ms
+    // SQL state class of connection exceptions
+    private static final String CONNECTION_EXCEPTION = "08";
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong lockWaitTimeouts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong giveUps = new AtomicLong();
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Creates a policy making at most 5 attempts, with delays from 5 to 200
+     * ms.
+     */
+    public RetryPolicy() {
+	this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Creates a new policy.
+     *
+     * @param maxAttempts
+     *            the maximum number of attempts of a transaction, including
+     *            the first one
+     * @param baseDelayMillis
+     *            the upper bound of the delay before the first retry
+     * @param maxDelayMillis
+     *            the upper bound of the delay before any retry
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+	if (maxAttempts < 1) {
+	    throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+	}
+	this.maxAttempts = maxAttempts;
+	this.baseDelay = baseDelayMillis;
+	this.maxDelay = maxDelayMillis;
+    }
+
+    //
+    // POLICY
+    //
+
+    /**
+     * Returns true if the exception in param reports lock contention.
+     */
+    public static boolean isContention(SQLException e) {
+	return BankManagerImpl.isDeadlock(e) || BankManagerImpl.isLockWaitTimeout(e);
+    }
+
+    /**
+     * Returns true if the exception in param may not recur when the
+     * transaction is retried later: lock contention, a lost or unavailable
+     * connection, or an error reported as transient by the driver. Constraint
+     * violations and trigger rejections are not transient.
+     */
+    public static boolean isTransient(SQLException e) {
+	String state = e.getSQLState();
+	return isContention(e) || e instanceof SQLTransientException || e instanceof SQLRecoverableException
+		|| (state != null && state.startsWith(CONNECTION_EXCEPTION));
+    }
+
+    /**
+     * Decides whether a transaction that failed with the specified exception
+     * must be retried, and waits before the retry if so. The transaction must
+     * have been rolled back.
+     *
+     * @param e
+     *            the exception that aborted the transaction
+     * @param attempt
+     *            the number of attempts made so far, starting at 1
+     * @return <code>true</code> if the transaction must be retried, and
+     *         <code>false</code> if the exception is not due to contention or
+     *         the maximum number of attempts is reached
+     */
+    boolean retry(SQLException e, int attempt) {
+	if (BankManagerImpl.isDeadlock(e)) {
+	    deadlocks.incrementAndGet();
+	} else if (BankManagerImpl.isLockWaitTimeout(e)) {
+	    lockWaitTimeouts.incrementAndGet();
+	} else {
+	    return false;
+	}
+	if (attempt >= maxAttempts) {
+	    giveUps.incrementAndGet();
+	    return false;
+	}
+	retries.incrementAndGet();
+	long bound = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 20));
+	if (bound > 0) {
+	    try {
+		Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    //
+    // STATISTICS
+    //
+
+    /**
+     * Returns the number of transactions aborted by a deadlock.
+     */
+    public long getDeadlocks() {
+	return deadlocks.get();
+    }
+
+    /**
+     * Returns the number of transactions aborted by a lock wait timeout.
+     */
+    public long getLockWaitTimeouts() {
+	return lockWaitTimeouts.get();
+    }
+
+    /**
+     * Returns the number of retries made.
+     */
+    public long getRetries() {
+	return retries.get();
+    }
+
+    /**
+     * Returns the number of transactions given up after the maximum number of
+     * attempts.
+     */
+    public long getGiveUps() {
+	return giveUps.get();
+    }
+
+    @Override
+    public String toString() {
+	return "RetryPolicy [maxAttempts=" + maxAttempts + ", deadlocks=" + getDeadlocks() + ", lockWaitTimeouts="
+		+ getLockWaitTimeouts() + ", retries=" + getRetries() + ", giveUps=" + getGiveUps() + "]";
+    }
+}
@@ -0,0 +1,655 @@
+package bank;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An implementation of the BankManager interface spreading the accounts over
+ * several databases, the shards, each with its own {@link BankManagerFactory}.
+ * An account and its operations live on the shard chosen by a hash of the
+ * account number, to which all the calls on this account are routed.
+ * <p>
+ * A transfer between two accounts of the same shard is a local transaction. A
+ * transfer between shards is an XA transaction whose debit branch is committed
+ * as a local transaction, along with a decision row: the credit branch is
+ * executed and prepared first, then the debit and the decision row are
+ * committed together, then the credit branch is committed. A credit branch
+ * left prepared by a failure is committed if its decision row exists, and
+ * rolled back otherwise: by {@link #resolve()}, which may run along with the
+ * transfers, for the branches left by this manager, and by
+ * {@link #recover()}, at startup, for those left by a crashed process. Money
+ * is thus conserved whatever the failure, at the cost of two more round
+ * trips than a local transfer.
+ * <p>
+ * Until it is resolved, a prepared credit branch keeps the lock on its
+ * account: transfers to the account wait for it, and fail once their lock
+ * wait times out. {@link #startResolver(long)} resolves the branches in the
+ * background, without waiting for a call to {@link #resolve()}.
+ * <p>
+ * An object of this class is thread safe.
+ */
+public class ShardedBankManager implements BankManager {
+
+    //
+    // CONSTANTS
+    //
+    // prefix of the global identifiers of the cross-shard transfers
+    private static final String XID_PREFIX = "bank-";
+    // number of completed decisions deleted together
+    private static final int PURGE_SIZE = 64;
+    // MySQL error code of an unknown XA transaction branch
+    private static final int XAER_NOTA = 1397;
+
+    private static final String DROP_TABLE_DECISIONS = "drop table if exists TRANSFER_DECISIONS;";
+    private static final String CREATE_TABLE_DECISIONS = "create table TRANSFER_DECISIONS ("
+	    + "GTRID varchar(64) not null, " + "DATE timestamp not null default NOW(), " + "primary key (GTRID))";
+    private static final String INSERT_DECISION = "insert into TRANSFER_DECISIONS(GTRID) values (?) ;";
+    private static final String SELECT_DECISION = "select GTRID from TRANSFER_DECISIONS where GTRID=? ;";
+    // waits for the debit transaction, if its commit is still in progress
+    private static final String SELECT_DECISION_LOCKED = "select GTRID from TRANSFER_DECISIONS where GTRID=? "
+	    + "lock in share mode ;";
+    private static final String DELETE_DECISIONS = "delete from TRANSFER_DECISIONS where GTRID in (";
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final BankManagerFactory[] factories;
+    private final PooledBankManager[] managers;
+    private final boolean ownFactories;
+    // decisions of committed transfers, to delete, by shard
+    private final List<ConcurrentLinkedQueue<String>> completed = new ArrayList<ConcurrentLinkedQueue<String>>();
+    private final AtomicInteger[] completedCounts;
+
+    private final AtomicLong localTransfers = new AtomicLong();
+    private final AtomicLong crossTransfers = new AtomicLong();
+    // transfers whose credit branch was left prepared, to resolve
+    private final ConcurrentLinkedQueue<InDoubt> inDoubt = new ConcurrentLinkedQueue<InDoubt>();
+    private Thread resolver;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Creates a new manager over the databases of the specified factories, the
+     * shards. The factories are closed by {@link #close()}.
+     *
+     * @param urls
+     *            the urls of the databases, in a fixed order: it determines
+     *            the shard of each account
+     * @param user
+     *            the login name of the user, on all the databases
+     * @param password
+     *            his password
+     */
+    public ShardedBankManager(List<String> urls, String user, String password) {
+	this(newFactories(urls, user, password), true);
+    }
+
+    /**
+     * Creates a new manager over the databases of the specified factories, the
+     * shards. The factories remain owned by the caller.
+     *
+     * @param shards
+     *            the factories of the databases, in a fixed order: it
+     *            determines the shard of each account
+     */
+    public ShardedBankManager(List<BankManagerFactory> shards) {
+	this(shards.toArray(new BankManagerFactory[shards.size()]), false);
+    }
+
+    private ShardedBankManager(BankManagerFactory[] shards, boolean own) {
+	if (shards.length == 0) {
+	    throw new IllegalArgumentException("no shard");
+	}
+	factories = shards;
+	ownFactories = own;
+	managers = new PooledBankManager[shards.length];
+	completedCounts = new AtomicInteger[shards.length];
+	for (int i = 0; i < shards.length; i++) {
+	    managers[i] = new PooledBankManager(shards[i]);
+	    completed.add(new ConcurrentLinkedQueue<String>());
+	    completedCounts[i] = new AtomicInteger();
+	}
+    }
+
+    private static BankManagerFactory[] newFactories(List<String> urls, String user, String password) {
+	BankManagerFactory[] f = new BankManagerFactory[urls.size()];
+	for (int i = 0; i < f.length; i++) {
+	    f[i] = new BankManagerFactory(urls.get(i), user, password);
+	}
+	return f;
+    }
+
+    //
+    // ROUTING
+    //
+
+    /**
+     * Returns the index of the shard of the specified account.
+     */
+    public int shard(int number) {
+	// spread consecutive account numbers over the shards
+	int h = number * 0x9E3779B9;
+	h ^= h >>> 16;
+	return (h & 0x7fffffff) % factories.length;
+    }
+
+    public int getShardCount() {
+	return factories.length;
+    }
+
+    //
+    // BANK MANAGER
+    //
+
+    /**
+     * Creates the database of every shard, in parallel.
+     */
+    @Override
+    public void createDB() throws SQLException {
+	final SQLException[] errors = new SQLException[factories.length];
+	Thread[] threads = new Thread[factories.length];
+	for (int i = 0; i < factories.length; i++) {
+	    final int shard = i;
+	    threads[i] = new Thread("ShardedBankManager-createDB-" + i) {
+		public void run() {
+		    try {
+			createShard(shard);
+		    } catch (SQLException e) {
+			errors[shard] = e;
+		    }
+		}
+	    };
+	    threads[i].start();
+	}
+	for (Thread t : threads) {
+	    try {
+		t.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new SQLException("interrupted while creating the shards");
+	    }
+	}
+	for (SQLException e : errors) {
+	    if (e != null) {
+		throw e;
+	    }
+	}
+    }
+
+    private void createShard(int shard) throws SQLException {
+	managers[shard].createDB();
+	ConnectionPool pool = factories[shard].getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Statement s = m.getConnection().createStatement();
+	    try {
+		s.executeUpdate(DROP_TABLE_DECISIONS);
+		s.executeUpdate(CREATE_TABLE_DECISIONS);
+	    } finally {
+		s.close();
+	    }
+	    m.commitTransaction();
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    @Override
+    public boolean createAccount(int number) throws SQLException {
+	return managers[shard(number)].createAccount(number);
+    }
+
+    @Override
+    public double getBalance(int number) throws SQLException {
+	return managers[shard(number)].getBalance(number);
+    }
+
+    @Override
+    public double addBalance(int number, double amount) throws SQLException {
+	return managers[shard(number)].addBalance(number, amount);
+    }
+
+    /**
+     * Transfers the specified amount between two accounts. Unlike a local
+     * transfer, a transfer between shards is refused if either account does
+     * not exist.
+     */
+    @Override
+    public boolean transfer(int from, int to, double amount) throws SQLException {
+	int fromShard = shard(from);
+	int toShard = shard(to);
+	if (fromShard == toShard) {
+	    localTransfers.incrementAndGet();
+	    return managers[fromShard].transfer(from, to, amount);
+	}
+	crossTransfers.incrementAndGet();
+	// check the connections out in shard order, so that concurrent
+	// transfers cannot wait for each other's pools
+	ConnectionPool debitPool = factories[fromShard].getPool();
+	ConnectionPool creditPool = factories[toShard].getPool();
+	BankManagerImpl debit = null;
+	BankManagerImpl credit = null;
+	boolean failed = true;
+	try {
+	    if (fromShard < toShard) {
+		debit = debitPool.acquire();
+		credit = creditPool.acquire();
+	    } else {
+		credit = creditPool.acquire();
+		debit = debitPool.acquire();
+	    }
+	    boolean r = transfer(debit, credit, fromShard, from, to, amount);
+	    failed = false;
+	    return r;
+	} finally {
+	    if (credit != null) {
+		if (credit.hasBranch()) {
+		    // a prepared branch stays attached to its session: the
+		    // session must end for resolve() to complete the branch
+		    creditPool.discard(credit);
+		} else {
+		    creditPool.release(credit, failed);
+		}
+	    }
+	    if (debit != null) {
+		debitPool.release(debit, failed);
+	    }
+	}
+    }
+
+    private boolean transfer(BankManagerImpl debit, BankManagerImpl credit, int fromShard, int from, int to,
+	    double amount) throws SQLException {
+	for (int attempt = 1;; attempt++) {
+	    String gtrid = XID_PREFIX + fromShard + "-" + UUID.randomUUID();
+	    String xid = "'" + gtrid + "','" + shard(to) + "'";
+	    boolean started = false;
+	    boolean deciding = false;
+	    try {
+		// debit first, as refusals are the common failure
+		if (debit.executeUpdateBalance(from, -amount) != 1) {
+		    debit.rollbackTransaction();
+		    return false;
+		}
+		credit.startBranch(xid);
+		started = true;
+		if (credit.executeUpdateBalance(to, amount) != 1) {
+		    credit.rollbackBranch(xid);
+		    debit.rollbackTransaction();
+		    return false;
+		}
+		credit.prepareBranch(xid);
+		// the commit of the debit decides the transfer
+		deciding = true;
+		insertDecision(debit, fromShard, gtrid);
+		debit.commitTransaction();
+	    } catch (SQLException e) {
+		if (deciding) {
+		    // the decision may or may not be committed: the credit
+		    // branch is left prepared, for resolve()
+		    inDoubt.add(new InDoubt(gtrid, xid, fromShard, shard(to), false));
+		    throw e;
+		}
+		try {
+		    debit.rollbackTransaction();
+		    if (started) {
+			credit.rollbackBranch(xid);
+		    }
+		} catch (SQLException e2) {
+		    System.err.println("Error: " + e2.getMessage());
+		}
+		if (!debit.retryPolicy.retry(e, attempt)) {
+		    throw e;
+		}
+		continue;
+	    }
+	    try {
+		credit.commitBranch(xid);
+		complete(fromShard, gtrid);
+	    } catch (SQLException e) {
+		// the transfer is decided: the credit branch is committed by
+		// resolve()
+		inDoubt.add(new InDoubt(gtrid, xid, fromShard, shard(to), true));
+		System.err.println("Transfer " + gtrid + " committed, its credit branch left prepared on shard "
+			+ shard(to) + ": " + e.getMessage());
+	    }
+	    return true;
+	}
+    }
+
+    /**
+     * Inserts the decision row of a transfer in the debit transaction, after
+     * deleting the rows of committed transfers if there are enough of them.
+     */
+    private void insertDecision(BankManagerImpl debit, int shard, String gtrid) throws SQLException {
+	if (completedCounts[shard].get() >= PURGE_SIZE) {
+	    StringBuilder sb = new StringBuilder(DELETE_DECISIONS);
+	    int n = 0;
+	    String g;
+	    while (n < PURGE_SIZE && (g = completed.get(shard).poll()) != null) {
+		sb.append(n == 0 ? "'" : ", '").append(g).append('\'');
+		n++;
+	    }
+	    completedCounts[shard].addAndGet(-n);
+	    if (n > 0) {
+		Statement s = debit.getConnection().createStatement();
+		try {
+		    s.executeUpdate(sb.append(") ;").toString());
+		} finally {
+		    s.close();
+		}
+	    }
+	}
+	PreparedStatement ps = debit.getConnection().prepareStatement(INSERT_DECISION);
+	try {
+	    ps.setString(1, gtrid);
+	    ps.executeUpdate();
+	} finally {
+	    ps.close();
+	}
+    }
+
+    private void complete(int shard, String gtrid) {
+	completed.get(shard).add(gtrid);
+	completedCounts[shard].incrementAndGet();
+    }
+
+    @Override
+    public List<Operation> getOperations(int number, Date from, Date to) throws SQLException {
+	return managers[shard(number)].getOperations(number, from, to);
+    }
+
+    //
+    // RECOVERY
+    //
+
+    /**
+     * Completes the cross-shard transfers of this manager left in doubt by a
+     * failure: the credit branch of each is committed if the decision row of
+     * the transfer exists on the debit shard, and rolled back otherwise. A
+     * decision whose commit may still be in progress is waited for. Only the
+     * transfers already given up by their call are resolved, so this method
+     * may be called while transfers are in progress.
+     * <p>
+     * A transfer whose branch cannot be completed yet, e.g. as it is still
+     * attached to a session, remains in doubt. A transfer that cannot be
+     * resolved as its shard is unreachable remains in doubt too, and the
+     * exception is thrown.
+     *
+     * @return the number of transfers completed, committed or rolled back
+     */
+    public int resolve() throws SQLException {
+	int n = 0;
+	// the transfers added meanwhile wait for the next call
+	for (int i = inDoubt.size(); i > 0; i--) {
+	    InDoubt t = inDoubt.poll();
+	    if (t == null) {
+		break;
+	    }
+	    boolean resolved;
+	    try {
+		resolved = resolve(t);
+	    } catch (SQLException e) {
+		inDoubt.add(t);
+		throw e;
+	    }
+	    if (resolved) {
+		n++;
+	    } else {
+		inDoubt.add(t);
+	    }
+	}
+	return n;
+    }
+
+    /**
+     * Completes the credit branch of an in-doubt transfer.
+     *
+     * @return false if the branch is still prepared, but could not be
+     *         completed
+     */
+    private boolean resolve(InDoubt t) throws SQLException {
+	boolean commit = t.decided || isDecided(t.debitShard, t.gtrid, SELECT_DECISION_LOCKED);
+	ConnectionPool pool = factories[t.creditShard].getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    try {
+		if (commit) {
+		    m.commitBranch(t.xid);
+		} else {
+		    m.rollbackBranch(t.xid);
+		}
+	    } catch (SQLException e) {
+		if (e.getErrorCode() != XAER_NOTA) {
+		    throw e;
+		}
+		// unknown to this session: either completed already, by
+		// recover(), or still attached to another session
+		if (m.recoverBranches(XID_PREFIX).contains(t.xid)) {
+		    failed = false;
+		    return false;
+		}
+	    }
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+	if (commit) {
+	    complete(t.debitShard, t.gtrid);
+	}
+	return true;
+    }
+
+    /**
+     * Starts a daemon thread calling {@link #resolve()} at the specified
+     * period while transfers are in doubt, until {@link #close()}. Does
+     * nothing if the thread is already started.
+     *
+     * @param period
+     *            the period, in milliseconds
+     */
+    public synchronized void startResolver(final long period) {
+	if (resolver != null) {
+	    return;
+	}
+	resolver = new Thread("ShardedBankManager-resolver") {
+	    public void run() {
+		try {
+		    while (!isInterrupted()) {
+			Thread.sleep(period);
+			if (!inDoubt.isEmpty()) {
+			    try {
+				resolve();
+			    } catch (SQLException e) {
+				System.err.println("Error: in-doubt transfer not resolved: " + e.getMessage());
+			    }
+			}
+		    }
+		} catch (InterruptedException e) {
+		    // closed
+		}
+	    }
+	};
+	resolver.setDaemon(true);
+	resolver.start();
+    }
+
+    /**
+     * Completes the cross-shard transfers interrupted by a failure: each credit
+     * branch left prepared on a shard is committed if the decision row of its
+     * transfer exists on the debit shard, and rolled back otherwise. The
+     * decision rows are then deleted.
+     * <p>
+     * This method must be called when no cross-shard transfer is in progress
+     * on the databases, e.g. when the application starts. It completes the
+     * transfers awaiting {@link #resolve()} as well.
+     *
+     * @return the number of transfers completed, committed or rolled back
+     */
+    public int recover() throws SQLException {
+	int n = 0;
+	inDoubt.clear();
+	for (int shard = 0; shard < factories.length; shard++) {
+	    ConnectionPool pool = factories[shard].getPool();
+	    BankManagerImpl m = pool.acquire();
+	    boolean failed = true;
+	    try {
+		for (String xid : m.recoverBranches(XID_PREFIX)) {
+		    // 'bank-<debit shard>-<uuid>','<credit shard>'
+		    String gtrid = xid.substring(1, xid.indexOf('\''));
+		    int debitShard = Integer.parseInt(gtrid.substring(XID_PREFIX.length(), gtrid.indexOf('-',
+			    XID_PREFIX.length())));
+		    if (isDecided(debitShard, gtrid, SELECT_DECISION)) {
+			m.commitBranch(xid);
+		    } else {
+			m.rollbackBranch(xid);
+		    }
+		    n++;
+		}
+		failed = false;
+	    } finally {
+		pool.release(m, failed);
+	    }
+	}
+	for (int shard = 0; shard < factories.length; shard++) {
+	    purgeDecisions(shard);
+	}
+	return n;
+    }
+
+    private boolean isDecided(int shard, String gtrid, String sql) throws SQLException {
+	ConnectionPool pool = factories[shard].getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    PreparedStatement ps = m.getConnection().prepareStatement(sql);
+	    try {
+		ps.setString(1, gtrid);
+		ResultSet rs = ps.executeQuery();
+		boolean r = rs.next();
+		rs.close();
+		// release the shared lock, if any
+		m.rollbackTransaction();
+		failed = false;
+		return r;
+	    } finally {
+		ps.close();
+	    }
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    private void purgeDecisions(int shard) throws SQLException {
+	ConnectionPool pool = factories[shard].getPool();
+	BankManagerImpl m = pool.acquire();
+	boolean failed = true;
+	try {
+	    Statement s = m.getConnection().createStatement();
+	    try {
+		s.executeUpdate("delete from TRANSFER_DECISIONS ;");
+	    } finally {
+		s.close();
+	    }
+	    m.commitTransaction();
+	    completed.get(shard).clear();
+	    completedCounts[shard].set(0);
+	    failed = false;
+	} finally {
+	    pool.release(m, failed);
+	}
+    }
+
+    //
+    // ACCESSORS
+    //
+    public BankManagerFactory getShard(int index) {
+	return factories[index];
+    }
+
+    /**
+     * Returns the number of transfers between accounts of the same shard.
+     */
+    public long getLocalTransfers() {
+	return localTransfers.get();
+    }
+
+    /**
+     * Returns the number of transfers between accounts of different shards.
+     */
+    public long getCrossTransfers() {
+	return crossTransfers.get();
+    }
+
+    /**
+     * Returns the number of cross-shard transfers whose credit branch was left
+     * prepared by a failure, and awaits {@link #resolve()}.
+     */
+    public long getInDoubt() {
+	return inDoubt.size();
+    }
+
+    /**
+     * Stops the resolver thread if any, then closes the factories of the
+     * shards, if they were created by this manager.
+     */
+    public void close() {
+	Thread t;
+	synchronized (this) {
+	    t = resolver;
+	    resolver = null;
+	}
+	if (t != null) {
+	    t.interrupt();
+	    try {
+		t.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	if (ownFactories) {
+	    for (BankManagerFactory f : factories) {
+		f.close();
+	    }
+	}
+    }
+
+    /**
+     * A cross-shard transfer whose credit branch was left prepared by a failure.
+     */
+    private static final class InDoubt {
+	final String gtrid;
+	final String xid;
+	final int debitShard;
+	final int creditShard;
+	// true if the decision is known to be committed
+	final boolean decided;
+
+	InDoubt(String gtrid, String xid, int debitShard, int creditShard, boolean decided) {
+	    this.gtrid = gtrid;
+	    this.xid = xid;
+	    this.debitShard = debitShard;
+	    this.creditShard = creditShard;
+	    this.decided = decided;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "ShardedBankManager [shards=" + factories.length + ", localTransfers=" + getLocalTransfers()
+		+ ", crossTransfers=" + getCrossTransfers() + ", inDoubt=" + getInDoubt() + "]";
+    }
+}
@@ -0,0 +1,108 @@
+package bank;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The prepared statements of a connection, by SQL text. Each statement is
+ * prepared on its first use and kept open until the connection is closed:
+ * with the server-side prepares of the connections of a
+ * {@link BankManagerFactory}, the server parses it once per connection, and
+ * each later call only sends its parameters, in the binary protocol.
+ * <p>
+ * The statements executed in JDBC batches are registered apart and prepared
+ * on the client, as the driver only rewrites the batches of client-side
+ * statements as multi-row statements (see <code>rewriteBatchedStatements</code>).
+ * <p>
+ * The texts registered are constants of {@link BankManagerImpl}, so that a
+ * registry holds a bounded number of statements. A registry belongs to a
+ * single manager, which confines it to the thread of the current call: it is
+ * not thread safe.
+ */
+class StatementRegistry {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final Connection con;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    private final Map<String, PreparedStatement> batches = new HashMap<String, PreparedStatement>();
+
+    //
+    // CONSTRUCTOR
+    //
+    StatementRegistry(Connection con) {
+	this.con = con;
+    }
+
+    //
+    // REGISTRY
+    //
+
+    /**
+     * Returns the statement of the specified SQL text, preparing it if needed,
+     * and counts the lookup in the specified metrics if any.
+     */
+    PreparedStatement prepare(String sql, BankMetrics metrics) throws SQLException {
+	PreparedStatement ps = statements.get(sql);
+	if (metrics != null) {
+	    metrics.recordStatement(ps != null);
+	}
+	if (ps == null) {
+	    ps = con.prepareStatement(sql);
+	    statements.put(sql, ps);
+	}
+	return ps;
+    }
+
+    /**
+     * Returns the statement calling a procedure, preparing it if needed.
+     */
+    CallableStatement prepareCall(String sql, BankMetrics metrics) throws SQLException {
+	PreparedStatement cs = statements.get(sql);
+	if (metrics != null) {
+	    metrics.recordStatement(cs != null);
+	}
+	if (cs == null) {
+	    cs = con.prepareCall(sql);
+	    statements.put(sql, cs);
+	}
+	return (CallableStatement) cs;
+    }
+
+    /**
+     * Returns the client-side statement of the specified SQL text, for JDBC
+     * batches, preparing it if needed.
+     */
+    PreparedStatement prepareBatch(String sql, BankMetrics metrics) throws SQLException {
+	PreparedStatement ps = batches.get(sql);
+	if (metrics != null) {
+	    metrics.recordStatement(ps != null);
+	}
+	if (ps == null) {
+	    ps = prepareBatch(con, sql);
+	    batches.put(sql, ps);
+	}
+	return ps;
+    }
+
+    /**
+     * Prepares a statement on the client for JDBC batches, so that the driver
+     * may rewrite them even if server-side prepares are enabled.
+     */
+    static PreparedStatement prepareBatch(Connection con, String sql) throws SQLException {
+	if (con instanceof com.mysql.jdbc.Connection) {
+	    return ((com.mysql.jdbc.Connection) con).clientPrepareStatement(sql);
+	}
+	return con.prepareStatement(sql);
+    }
+
+    @Override
+    public String toString() {
+	return "StatementRegistry [statements=" + statements.size() + ", batches=" + batches.size() + "]";
+    }
+}
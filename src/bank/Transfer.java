@@ -0,0 +1,78 @@
+package bank;
+
+/**
+ * The description of a transfer between two accounts, as submitted in a batch
+ * to {@link PooledBankManager#transferAll(java.util.List)}.
+ */
+public class Transfer {
+
+    //
+    // INSTANCE FIELDS
+    //
+    private int from; // the number of the debited account
+    private int to; // the number of the credited account
+    private double amount; // the amount transferred
+
+    //
+    // CONSTRUCTOR
+    //
+    public Transfer(int f, int t, double a) {
+	this.from = f;
+	this.to = t;
+	this.amount = a;
+    }
+
+    @Override
+    public String toString() {
+	return "Transfer [from=" + from + ", to=" + to + ", amount=" + amount + "]";
+    }
+
+    //
+    // ACCESSORS
+    //
+    public int getFrom() {
+	return from;
+    }
+
+    public int getTo() {
+	return to;
+    }
+
+    public double getAmount() {
+	return amount;
+    }
+
+    //
+    // IDENTITY
+    //
+    @Override
+    public int hashCode() {
+	final int prime = 31;
+	int result = 1;
+	long temp;
+	temp = Double.doubleToLongBits(amount);
+	result = prime * result + (int) (temp ^ (temp >>> 32));
+	result = prime * result + from;
+	result = prime * result + to;
+	return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (this == obj)
+	    return true;
+	if (obj == null)
+	    return false;
+	if (getClass() != obj.getClass())
+	    return false;
+	Transfer other = (Transfer) obj;
+	if (Double.doubleToLongBits(amount) != Double.doubleToLongBits(other.amount))
+	    return false;
+	if (from != other.from)
+	    return false;
+	if (to != other.to)
+	    return false;
+	return true;
+    }
+
+}
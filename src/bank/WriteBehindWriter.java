@@ -0,0 +1,242 @@
+package bank;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The background writer of an {@link InMemoryBankManager}. Mutations are
+ * queued in the order they were applied in memory, and written to the
+ * database by a single thread, in batches committed together.
+ * <p>
+ * A batch that fails with a transient error (see
+ * {@link RetryPolicy#isTransient(SQLException)}) is retried until it
+ * succeeds, so that no mutation accepted in memory is lost while the database
+ * is unavailable. A batch that fails with any other error, e.g. a duplicate
+ * key or a rejection by the balance trigger, is written again one mutation at
+ * a time: the mutations that still fail are set aside as dead letters, and
+ * logged, so that they do not block the mutations that follow. If the
+ * mutations are journaled, each batch also records the sequence number of
+ * its last mutation in the database, and frees the journal slots of the
+ * batch once committed. The sequence number of a dead letter is recorded
+ * alone, so that it is not replayed from the journal.
+ */
+class WriteBehindWriter implements Runnable {
+
+    //
+    // CONSTANTS
+    //
+    private static final long POLL_INTERVAL = 100; // ms
+    private static final long MAX_RETRY_DELAY = 5000; // ms
+
+    //
+    // INSTANCE FIELDS
+    //
+    private final ConnectionPool pool;
+    private final int batchSize;
+    private final OperationJournal journal;
+    private final LinkedBlockingQueue<Mutation> queue = new LinkedBlockingQueue<Mutation>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final List<Mutation> deadLetters = Collections.synchronizedList(new ArrayList<Mutation>());
+    private long written = 0; // guarded by this
+    private volatile boolean closed = false;
+    private final Thread thread;
+
+    //
+    // CONSTRUCTOR
+    //
+    WriteBehindWriter(ConnectionPool pool, int batchSize) {
+	this(pool, batchSize, null);
+    }
+
+    WriteBehindWriter(ConnectionPool pool, int batchSize, OperationJournal journal) {
+	this.pool = pool;
+	this.batchSize = batchSize;
+	this.journal = journal;
+	thread = new Thread(this, "WriteBehindWriter");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    //
+    // WRITER
+    //
+
+    /**
+     * Queues a mutation. Callers must queue the mutations of an account in the
+     * order they applied them, i.e. while holding the account's lock.
+     */
+    void submit(Mutation m) {
+	if (closed) {
+	    throw new IllegalStateException("writer is closed");
+	}
+	submitted.incrementAndGet();
+	queue.add(m);
+    }
+
+    /**
+     * Waits until all the mutations submitted before this call are committed
+     * in the database.
+     */
+    synchronized void flush() throws InterruptedException {
+	long target = submitted.get();
+	while (written < target) {
+	    wait();
+	}
+    }
+
+    /**
+     * Returns the number of mutations waiting to be written.
+     */
+    int pending() {
+	return queue.size();
+    }
+
+    /**
+     * Returns a copy of the mutations rejected by the database, in the order
+     * they were submitted.
+     */
+    List<Mutation> getDeadLetters() {
+	synchronized (deadLetters) {
+	    return new ArrayList<Mutation>(deadLetters);
+	}
+    }
+
+    /**
+     * Writes the pending mutations, and stops the writer thread.
+     */
+    void close() throws InterruptedException {
+	closed = true;
+	thread.join();
+    }
+
+    public void run() {
+	List<Mutation> batch = new ArrayList<Mutation>(batchSize);
+	while (true) {
+	    Mutation m;
+	    try {
+		m = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		m = null;
+	    }
+	    if (m == null) {
+		if (closed && queue.isEmpty()) {
+		    return;
+		}
+		continue;
+	    }
+	    batch.add(m);
+	    queue.drainTo(batch, batchSize - 1);
+	    try {
+		write(batch, true);
+	    } catch (SQLException e) {
+		// the state of the journal could not be recorded for a dead letter
+		System.err.println("Error: write-behind failed: " + e.getMessage());
+	    }
+	    synchronized (this) {
+		written += batch.size();
+		notifyAll();
+	    }
+	    batch.clear();
+	}
+    }
+
+    /**
+     * Writes a batch of mutations, setting aside those the database rejects.
+     * Called by the writer thread, or by the manager replaying its journal
+     * before any mutation is submitted.
+     *
+     * @param retry
+     *            true to retry the transient errors until they succeed, false
+     *            to throw them
+     * @throws SQLException
+     *             if a transient error occurs and retry is false; the
+     *             mutations written before it remain committed
+     */
+    void write(List<Mutation> batch, boolean retry) throws SQLException {
+	try {
+	    apply(batch, false, retry);
+	} catch (SQLException e) {
+	    if (RetryPolicy.isTransient(e)) {
+		throw e;
+	    }
+	    if (batch.size() == 1) {
+		reject(batch.get(0), e, retry);
+		return;
+	    }
+	    // the batch holds at least one mutation the database rejects for good
+	    for (Mutation m : batch) {
+		try {
+		    apply(Collections.singletonList(m), false, retry);
+		} catch (SQLException x) {
+		    if (RetryPolicy.isTransient(x)) {
+			throw x;
+		    }
+		    reject(m, x, retry);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Sets aside a mutation rejected by the database, records its sequence
+     * number in the database and frees its journal slot, so that the writer
+     * goes on with the next ones and the mutation is not replayed.
+     */
+    private void reject(Mutation m, SQLException e, boolean retry) throws SQLException {
+	System.err.println("Error: write-behind of " + m + " rejected, set aside as a dead letter: " + e.getMessage());
+	deadLetters.add(m);
+	if (journal != null) {
+	    apply(Collections.singletonList(m), true, retry);
+	}
+    }
+
+    /**
+     * Writes mutations in a single transaction, or only the journal state of
+     * a rejected one, retrying while it fails with a transient error if so
+     * specified.
+     *
+     * @throws SQLException
+     *             if it fails with any other error, or with a transient one
+     *             and retry is false; nothing is written then
+     */
+    private void apply(List<Mutation> batch, boolean rejected, boolean retry) throws SQLException {
+	long delay = POLL_INTERVAL;
+	while (true) {
+	    try {
+		BankManagerImpl m = pool.acquire();
+		boolean failed = true;
+		try {
+		    if (rejected) {
+			m.writeJournalState(journal.getName(), batch.get(0).seq);
+		    } else {
+			m.applyMutations(batch, journal == null ? null : journal.getName());
+		    }
+		    failed = false;
+		    if (journal != null) {
+			journal.applied(batch.get(batch.size() - 1).seq);
+		    }
+		    return;
+		} finally {
+		    pool.release(m, failed);
+		}
+	    } catch (SQLException e) {
+		if (!retry || !RetryPolicy.isTransient(e)) {
+		    throw e;
+		}
+		System.err.println("Error: write-behind of " + batch.size() + " mutations failed, retrying: "
+			+ e.getMessage());
+	    }
+	    try {
+		Thread.sleep(delay);
+	    } catch (InterruptedException e) {
+		// keep retrying, the mutations must not be lost
+	    }
+	    delay = Math.min(MAX_RETRY_DELAY, delay * 2);
+	}
+    }
+}
@@ -0,0 +1,177 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bank.BankManagerFactory;
+import bank.Operation;
+import bank.OperationColumns;
+import bank.PooledBankManager;
+
+/**
+ * A benchmark of the memory allocated by the two ways of reading the
+ * operations of an account: {@link PooledBankManager#getOperations(int, Date, Date)},
+ * which returns a list of objects, and
+ * {@link PooledBankManager#getOperations(int, Date, Date, OperationColumns)},
+ * which fills a reused buffer of primitive columns. A single account is
+ * populated with operations, then each way reads them all repeatedly, and the
+ * mean time and bytes allocated by the calling thread per call and per
+ * operation are printed.
+ * <p>
+ * The bytes allocated are read from the HotSpot extension of
+ * <code>ThreadMXBean</code>; they include the allocations of the JDBC driver,
+ * which are the same for both ways but for the dates.
+ * <p>
+ * Parameters are given as <code>name=value</code> arguments after the
+ * connection parameters:
+ * <ul>
+ * <li><code>operations</code>: the number of operations on the account
+ * (default 10000)</li>
+ * <li><code>calls</code>: the number of measured calls of each way (default
+ * 50)</li>
+ * <li><code>warmup</code>: the number of calls of each way before measuring
+ * (default 20)</li>
+ * </ul>
+ */
+public class AllocationBenchmark {
+
+    //
+    // CLASS FIELDS
+    //
+    private static Map<String, String> params = new HashMap<String, String>();
+
+    //
+    // HELPER METHODS
+    //
+    private static int intParam(String name, int def) {
+	String v = params.get(name);
+	return v == null ? def : Integer.parseInt(v);
+    }
+
+    /**
+     * Returns a copy of the specified operations sorted by date and amount,
+     * as the two ways may read them in different orders.
+     */
+    private static List<Operation> sorted(List<Operation> operations) {
+	List<Operation> l = new ArrayList<Operation>(operations);
+	Collections.sort(l, new Comparator<Operation>() {
+	    public int compare(Operation o1, Operation o2) {
+		int c = o1.getDate().compareTo(o2.getDate());
+		return c != 0 ? c : Double.compare(o1.getAmount(), o2.getAmount());
+	    }
+	});
+	return l;
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or -1 if the
+     * JVM does not tell.
+     */
+    private static long allocatedBytes() {
+	java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	if (threads instanceof com.sun.management.ThreadMXBean) {
+	    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	return -1;
+    }
+
+    private static void report(String way, int calls, int operations, long nanos, long bytes) {
+	double perCall = bytes < 0 ? Double.NaN : (double) bytes / calls;
+	System.out.println(String.format("%-8s %10.3f ms/call %14.0f bytes/call %10.1f bytes/operation", way,
+		nanos / 1e6 / calls, perCall, perCall / operations));
+    }
+
+    //
+    // MAIN
+    //
+    public static void main(String[] args) {
+
+	// check parameters
+	if (args.length < 3) {
+	    System.err.println("usage: AllocationBenchmark <url> <user> <password> [name=value ...]");
+	    System.exit(-1);
+	}
+	for (int i = 3; i < args.length; i++) {
+	    int eq = args[i].indexOf('=');
+	    if (eq < 0) {
+		System.err.println("invalid parameter: " + args[i]);
+		System.exit(-1);
+	    }
+	    params.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+	}
+
+	BankManagerFactory factory = new BankManagerFactory(args[0], args[1], args[2]);
+	try {
+	    int operations = intParam("operations", 10000);
+	    int calls = intParam("calls", 50);
+	    int warmup = intParam("warmup", 20);
+
+	    // create and populate the database
+	    PooledBankManager m = (PooledBankManager) factory.newManager();
+	    m.createDB();
+	    m.createAccount(1);
+	    int[] numbers = new int[operations];
+	    double[] amounts = new double[operations];
+	    for (int i = 0; i < operations; i++) {
+		numbers[i] = 1;
+		amounts[i] = i % 2 == 0 ? 2.0 : -1.0;
+	    }
+	    m.addBalanceAll(numbers, amounts);
+	    Date from = new Date(0);
+	    Date to = new Date(System.currentTimeMillis() + 60000);
+	    System.out.println("operations=" + operations + " calls=" + calls + " " + params);
+
+	    // objects
+	    double check = 0;
+	    for (int i = 0; i < warmup; i++) {
+		check += m.getOperations(1, from, to).size();
+	    }
+	    long bytes = allocatedBytes();
+	    long start = System.nanoTime();
+	    for (int i = 0; i < calls; i++) {
+		List<Operation> list = m.getOperations(1, from, to);
+		for (Operation o : list) {
+		    check += o.getAmount();
+		}
+	    }
+	    long nanos = System.nanoTime() - start;
+	    report("objects", calls, operations, nanos, bytes < 0 ? -1 : allocatedBytes() - bytes);
+
+	    // columns
+	    OperationColumns columns = new OperationColumns();
+	    for (int i = 0; i < warmup; i++) {
+		check -= m.getOperations(1, from, to, columns).size();
+	    }
+	    bytes = allocatedBytes();
+	    start = System.nanoTime();
+	    for (int i = 0; i < calls; i++) {
+		m.getOperations(1, from, to, columns);
+		check -= columns.getTotal();
+	    }
+	    nanos = System.nanoTime() - start;
+	    report("columns", calls, operations, nanos, bytes < 0 ? -1 : allocatedBytes() - bytes);
+
+	    // both ways must have read the same operations
+	    if (Math.abs(check) > 1e-6) {
+		System.err.println("the two ways read different operations: " + check);
+	    }
+	    // and the same objects, dates included
+	    m.getOperations(1, from, to, columns);
+	    if (!sorted(m.getOperations(1, from, to)).equals(sorted(columns.toList()))) {
+		System.err.println("the two ways return different lists");
+	    }
+	} catch (SQLException e) {
+	    System.err.println("benchmark aborted: " + e);
+	    e.printStackTrace();
+	} finally {
+	    factory.close();
+	}
+    }
+}
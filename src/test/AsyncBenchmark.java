@@ -0,0 +1,246 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import bank.AsyncBankManager;
+import bank.BankManager;
+import bank.BankManagerFactory;
+import bank.LatencyHistogram;
+
+/**
+ * A benchmark of {@link AsyncBankManager} against the thread per customer
+ * model of {@link SimpleTest}. In both models, each emulated customer makes a
+ * sequence of calls, alternately <code>getBalance</code> and
+ * <code>addBalance</code>, on random accounts, and all the customers start at
+ * once:
+ * <ul>
+ * <li><code>threads</code>: one platform thread per customer, calling a
+ * pooled manager;</li>
+ * <li><code>async</code>: each call of a customer is submitted to the
+ * asynchronous facade when the previous one completes, so that no thread is
+ * held while a customer waits.</li>
+ * </ul>
+ * The elapsed time, throughput, latency percentiles and peak number of live
+ * threads of each model are printed.
+ * <p>
+ * Parameters are given as <code>name=value</code> arguments after the
+ * connection parameters:
+ * <ul>
+ * <li><code>mode</code>: <code>threads</code>, <code>async</code> or
+ * <code>both</code> (default <code>both</code>)</li>
+ * <li><code>customers</code>: the number of customers (default 2000)</li>
+ * <li><code>calls</code>: the number of calls per customer (default 20)</li>
+ * <li><code>connections</code>: the pool size (default 20)</li>
+ * <li><code>accounts</code>: the number of accounts (default 1000)</li>
+ * </ul>
+ */
+public class AsyncBenchmark {
+
+    //
+    // CLASS FIELDS
+    //
+    private static Map<String, String> params = new HashMap<String, String>();
+
+    //
+    // HELPER CLASSES
+    //
+
+    /**
+     * The customers of the asynchronous model: each one submits its next call
+     * when its previous one completes.
+     */
+    static class AsyncCustomer implements BiConsumer<Object, Throwable> {
+
+	private final AsyncBankManager manager;
+	private final Random random;
+	private final int accounts;
+	private final int calls;
+	private final LatencyHistogram histogram;
+	private final AtomicLong errors;
+	private final CountDownLatch done;
+	private int made = 0;
+	private long start;
+
+	AsyncCustomer(AsyncBankManager m, long seed, int accounts, int calls, LatencyHistogram h, AtomicLong errors,
+		CountDownLatch done) {
+	    this.manager = m;
+	    this.random = new Random(seed);
+	    this.accounts = accounts;
+	    this.calls = calls;
+	    this.histogram = h;
+	    this.errors = errors;
+	    this.done = done;
+	}
+
+	void next() {
+	    int number = 1 + random.nextInt(accounts);
+	    start = System.nanoTime();
+	    if (made++ % 2 == 0) {
+		manager.getBalance(number).whenComplete(this);
+	    } else {
+		manager.addBalance(number, 1.0).whenComplete(this);
+	    }
+	}
+
+	public void accept(Object result, Throwable error) {
+	    histogram.recordSince(start);
+	    if (error != null) {
+		errors.incrementAndGet();
+	    }
+	    if (made < calls) {
+		next();
+	    } else {
+		done.countDown();
+	    }
+	}
+    }
+
+    /**
+     * The customers of the thread per customer model.
+     */
+    static class ThreadCustomer extends Thread {
+
+	private final BankManager manager;
+	private final Random random;
+	private final int accounts;
+	private final int calls;
+	private final LatencyHistogram histogram;
+	private final AtomicLong errors;
+
+	ThreadCustomer(BankManager m, long seed, int accounts, int calls, LatencyHistogram h, AtomicLong errors) {
+	    this.manager = m;
+	    this.random = new Random(seed);
+	    this.accounts = accounts;
+	    this.calls = calls;
+	    this.histogram = h;
+	    this.errors = errors;
+	}
+
+	public void run() {
+	    for (int i = 0; i < calls; i++) {
+		int number = 1 + random.nextInt(accounts);
+		long start = System.nanoTime();
+		try {
+		    if (i % 2 == 0) {
+			manager.getBalance(number);
+		    } else {
+			manager.addBalance(number, 1.0);
+		    }
+		} catch (SQLException e) {
+		    errors.incrementAndGet();
+		}
+		histogram.recordSince(start);
+	    }
+	}
+    }
+
+    //
+    // HELPER METHODS
+    //
+    private static int intParam(String name, int def) {
+	String v = params.get(name);
+	return v == null ? def : Integer.parseInt(v);
+    }
+
+    private static void report(String mode, long startNanos, LatencyHistogram h, AtomicLong errors) {
+	double elapsed = (System.nanoTime() - startNanos) / 1e9;
+	ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	System.out.println(String.format("%-8s %8.2fs %10.1f ops/s  errors=%d  peakThreads=%d  %s", mode, elapsed,
+		h.getCount() / elapsed, errors.get(), threads.getPeakThreadCount(), h));
+    }
+
+    private static void runThreads(BankManagerFactory factory, int customers, int calls, int accounts)
+	    throws InterruptedException {
+	LatencyHistogram h = new LatencyHistogram();
+	AtomicLong errors = new AtomicLong();
+	ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+	long start = System.nanoTime();
+	List<ThreadCustomer> list = new ArrayList<ThreadCustomer>();
+	for (int i = 0; i < customers; i++) {
+	    ThreadCustomer c = new ThreadCustomer(factory.newManager(), i, accounts, calls, h, errors);
+	    list.add(c);
+	    c.start();
+	}
+	for (ThreadCustomer c : list) {
+	    c.join();
+	}
+	report("threads", start, h, errors);
+    }
+
+    private static void runAsync(BankManagerFactory factory, int customers, int calls, int accounts)
+	    throws InterruptedException {
+	LatencyHistogram h = new LatencyHistogram();
+	AtomicLong errors = new AtomicLong();
+	AsyncBankManager async = new AsyncBankManager(factory);
+	async.setTimeout(600000);
+	ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+	long start = System.nanoTime();
+	CountDownLatch done = new CountDownLatch(customers);
+	for (int i = 0; i < customers; i++) {
+	    new AsyncCustomer(async, i, accounts, calls, h, errors, done).next();
+	}
+	done.await();
+	report(async.isVirtual() ? "virtual" : "async", start, h, errors);
+	async.close();
+    }
+
+    //
+    // MAIN
+    //
+    public static void main(String[] args) {
+
+	// check parameters
+	if (args.length < 3) {
+	    System.err.println("usage: AsyncBenchmark <url> <user> <password> [name=value ...]");
+	    System.exit(-1);
+	}
+	for (int i = 3; i < args.length; i++) {
+	    int eq = args[i].indexOf('=');
+	    if (eq < 0) {
+		System.err.println("invalid parameter: " + args[i]);
+		System.exit(-1);
+	    }
+	    params.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+	}
+
+	BankManagerFactory factory = new BankManagerFactory(args[0], args[1], args[2]);
+	try {
+	    String mode = params.containsKey("mode") ? params.get("mode") : "both";
+	    int customers = intParam("customers", 2000);
+	    int calls = intParam("calls", 20);
+	    int accounts = intParam("accounts", 1000);
+	    factory.setMaxConnections(intParam("connections", 20));
+
+	    // create and populate the database
+	    BankManager setup = factory.newManager();
+	    setup.createDB();
+	    for (int i = 1; i <= accounts; i++) {
+		setup.createAccount(i);
+	    }
+
+	    System.out.println("customers=" + customers + " calls=" + calls + " " + params);
+	    if (!mode.equals("async")) {
+		runThreads(factory, customers, calls, accounts);
+	    }
+	    if (!mode.equals("threads")) {
+		runAsync(factory, customers, calls, accounts);
+	    }
+	    System.out.println(factory.getPool());
+	} catch (Exception e) {
+	    System.err.println("benchmark aborted: " + e);
+	    e.printStackTrace();
+	} finally {
+	    factory.close();
+	}
+    }
+}
@@ -0,0 +1,295 @@
+package test;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bank.BankManager;
+import bank.BankManagerFactory;
+import bank.BankManagerImpl;
+import bank.GroupCommitBankManager;
+import bank.InMemoryBankManager;
+import bank.LatencyHistogram;
+
+/**
+ * A benchmark of the {@link BankManager} operations, measuring the throughput
+ * and latency percentiles of each operation against a MySQL database. Each
+ * benchmark runs a warm-up period, then a measured period, with a number of
+ * threads calling the same operation in a loop.
+ * <p>
+ * Parameters are given as <code>name=value</code> arguments after the
+ * connection parameters:
+ * <ul>
+ * <li><code>impl</code>: the manager implementation, one of
+ * <code>impl</code> (one BankManagerImpl per thread), <code>pooled</code>,
+ * <code>memory</code> or <code>group</code> (default <code>impl</code>)</li>
+ * <li><code>threads</code>: the number of calling threads (default 4)</li>
+ * <li><code>accounts</code>: the number of accounts (default 1000)</li>
+ * <li><code>hot</code>: the number of hot accounts (default 10)</li>
+ * <li><code>skew</code>: the fraction of calls on hot accounts (default 0)</li>
+ * <li><code>warmup</code>, <code>duration</code>: the lengths of the two
+ * periods of each benchmark, in seconds (default 5 and 10)</li>
+ * <li><code>bench</code>: a comma separated list of benchmarks to run, among
+ * <code>createAccount</code>, <code>getBalance</code>,
+ * <code>addBalance</code>, <code>transfer</code>, <code>getOperationsShort</code>
+ * and <code>getOperationsLong</code> (default all)</li>
+ * <li><code>out</code>: a CSV file the results are appended to, for
+ * comparisons between runs (default none)</li>
+ * </ul>
+ * The database is recreated by each run.
+ */
+public class BankBenchmark {
+
+    //
+    // CONSTANTS
+    //
+    private static final String ALL = "createAccount,getBalance,addBalance,transfer,getOperationsShort,getOperationsLong";
+    private static final long SHORT_RANGE = 60 * 1000; // 1 minute
+    private static final long LONG_RANGE = 30L * 24 * 60 * 60 * 1000; // 30 days
+
+    //
+    // CLASS FIELDS
+    //
+    private static Map<String, String> params = new HashMap<String, String>();
+
+    // next number given to a created account
+    private static final AtomicInteger nextAccount = new AtomicInteger();
+
+    //
+    // HELPER CLASSES
+    //
+    static class Worker extends Thread {
+
+	private final BankManager manager;
+	private final String bench;
+	private final Random random;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private volatile boolean measuring = false;
+	private volatile boolean stopped = false;
+	private long operations = 0;
+	private long errors = 0;
+
+	Worker(BankManager m, String b, long seed) {
+	    manager = m;
+	    bench = b;
+	    random = new Random(seed);
+	}
+
+	public void run() {
+	    while (!stopped) {
+		long start = System.nanoTime();
+		try {
+		    call();
+		} catch (SQLException e) {
+		    if (measuring) {
+			errors++;
+		    }
+		}
+		if (measuring) {
+		    histogram.recordSince(start);
+		    operations++;
+		}
+	    }
+	}
+
+	private void call() throws SQLException {
+	    if (bench.equals("createAccount")) {
+		manager.createAccount(nextAccount.incrementAndGet());
+	    } else if (bench.equals("getBalance")) {
+		manager.getBalance(account(random));
+	    } else if (bench.equals("addBalance")) {
+		manager.addBalance(account(random), random.nextBoolean() ? 10.0 : -10.0);
+	    } else if (bench.equals("transfer")) {
+		manager.transfer(account(random), account(random), 10.0);
+	    } else if (bench.equals("getOperationsShort")) {
+		Date now = new Date();
+		manager.getOperations(account(random), new Date(now.getTime() - SHORT_RANGE), now);
+	    } else if (bench.equals("getOperationsLong")) {
+		Date now = new Date();
+		manager.getOperations(account(random), new Date(now.getTime() - LONG_RANGE), now);
+	    } else {
+		throw new IllegalArgumentException("unknown benchmark: " + bench);
+	    }
+	}
+    }
+
+    //
+    // HELPER METHODS
+    //
+    private static int intParam(String name, int def) {
+	String v = params.get(name);
+	return v == null ? def : Integer.parseInt(v);
+    }
+
+    private static double doubleParam(String name, double def) {
+	String v = params.get(name);
+	return v == null ? def : Double.parseDouble(v);
+    }
+
+    private static String param(String name, String def) {
+	String v = params.get(name);
+	return v == null ? def : v;
+    }
+
+    /**
+     * Chooses an account number, hot accounts being chosen with the
+     * probability given by the skew parameter.
+     */
+    private static int account(Random random) {
+	int accounts = intParam("accounts", 1000);
+	int hot = Math.min(accounts, intParam("hot", 10));
+	if (random.nextDouble() < doubleParam("skew", 0)) {
+	    return 1 + random.nextInt(hot);
+	}
+	return 1 + random.nextInt(accounts);
+    }
+
+    /**
+     * Returns the managers used by the threads of a benchmark.
+     */
+    private static List<BankManager> managers(String[] args, BankManager shared, BankManagerFactory factory,
+	    int threads) throws SQLException {
+	List<BankManager> managers = new ArrayList<BankManager>();
+	for (int i = 0; i < threads; i++) {
+	    if (shared != null) {
+		managers.add(shared);
+	    } else if (factory != null) {
+		managers.add(factory.newManager());
+	    } else {
+		managers.add(new BankManagerImpl(args[0], args[1], args[2]));
+	    }
+	}
+	return managers;
+    }
+
+    private static void populate(BankManager m) throws SQLException {
+	int accounts = intParam("accounts", 1000);
+	for (int i = 1; i <= accounts; i++) {
+	    m.createAccount(i);
+	    m.addBalance(i, 1000000.0);
+	}
+	nextAccount.set(accounts);
+    }
+
+    private static void runBenchmark(String bench, List<BankManager> managers, PrintWriter out)
+	    throws InterruptedException {
+	long warmup = intParam("warmup", 5) * 1000L;
+	long duration = intParam("duration", 10) * 1000L;
+
+	List<Worker> workers = new ArrayList<Worker>();
+	for (int i = 0; i < managers.size(); i++) {
+	    Worker w = new Worker(managers.get(i), bench, 31L * i + bench.hashCode());
+	    workers.add(w);
+	    w.start();
+	}
+	Thread.sleep(warmup);
+	for (Worker w : workers) {
+	    w.measuring = true;
+	}
+	long start = System.nanoTime();
+	Thread.sleep(duration);
+	for (Worker w : workers) {
+	    w.measuring = false;
+	}
+	long elapsed = System.nanoTime() - start;
+	for (Worker w : workers) {
+	    w.stopped = true;
+	}
+	LatencyHistogram total = new LatencyHistogram();
+	long operations = 0;
+	long errors = 0;
+	for (Worker w : workers) {
+	    w.join();
+	    total.add(w.histogram);
+	    operations += w.operations;
+	    errors += w.errors;
+	}
+
+	double throughput = operations / (elapsed / 1e9);
+	System.out.println(String.format("%-20s %10.1f ops/s  errors=%d  %s", bench, throughput, errors, total));
+	if (out != null) {
+	    out.println(String.format("%tFT%<tT,%s,%s,%d,%d,%s,%.1f,%d,%.1f,%.1f,%.1f,%.1f", new Date(),
+		    param("impl", "impl"), bench, managers.size(), intParam("accounts", 1000),
+		    param("skew", "0"), throughput, errors, total.getMean() / 1e3,
+		    total.getPercentile(50) / 1e3, total.getPercentile(99) / 1e3, total.getPercentile(99.9) / 1e3));
+	    out.flush();
+	}
+    }
+
+    //
+    // MAIN
+    //
+    public static void main(String[] args) {
+
+	// check parameters
+	if (args.length < 3) {
+	    System.err.println("usage: BankBenchmark <url> <user> <password> [name=value ...]");
+	    System.exit(-1);
+	}
+	for (int i = 3; i < args.length; i++) {
+	    int eq = args[i].indexOf('=');
+	    if (eq < 0) {
+		System.err.println("invalid parameter: " + args[i]);
+		System.exit(-1);
+	    }
+	    params.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+	}
+
+	PrintWriter out = null;
+	BankManagerFactory factory = null;
+	try {
+	    String impl = param("impl", "impl");
+	    int threads = intParam("threads", 4);
+	    if (params.containsKey("out")) {
+		out = new PrintWriter(new FileWriter(params.get("out"), true));
+	    }
+
+	    // create and populate the database
+	    BankManager setup = new BankManagerImpl(args[0], args[1], args[2]);
+	    setup.createDB();
+	    populate(setup);
+
+	    BankManager shared = null;
+	    if (!impl.equals("impl")) {
+		factory = new BankManagerFactory(args[0], args[1], args[2]);
+		factory.setMaxConnections(Math.max(threads, 2));
+		if (impl.equals("memory")) {
+		    shared = new InMemoryBankManager(factory);
+		} else if (impl.equals("group")) {
+		    shared = new GroupCommitBankManager(factory, 64, 200);
+		} else if (!impl.equals("pooled")) {
+		    throw new IllegalArgumentException("unknown implementation: " + impl);
+		}
+	    }
+	    List<BankManager> managers = managers(args, shared, factory, threads);
+
+	    System.out.println("impl=" + impl + " threads=" + threads + " " + params);
+	    for (String bench : param("bench", ALL).split(",")) {
+		runBenchmark(bench.trim(), managers, out);
+	    }
+
+	    if (shared instanceof InMemoryBankManager) {
+		((InMemoryBankManager) shared).close();
+	    } else if (shared instanceof GroupCommitBankManager) {
+		((GroupCommitBankManager) shared).close();
+	    }
+	} catch (Exception e) {
+	    System.err.println("benchmark aborted: " + e);
+	    e.printStackTrace();
+	} finally {
+	    if (factory != null) {
+		factory.close();
+	    }
+	    if (out != null) {
+		out.close();
+	    }
+	}
+    }
+}
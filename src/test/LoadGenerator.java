@@ -0,0 +1,411 @@
+package test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bank.BankManager;
+import bank.BankManagerFactory;
+import bank.BankManagerImpl;
+import bank.BulkLoader;
+import bank.GroupCommitBankManager;
+import bank.InMemoryBankManager;
+import bank.LatencyHistogram;
+import bank.ShardedBankManager;
+
+/**
+ * A load generator for capacity planning, built on the customer emulators of
+ * {@link SimpleTest}. Emulated customers call a configurable mix of
+ * operations on accounts chosen with a Zipfian distribution, for a given
+ * duration, either:
+ * <ul>
+ * <li>in a closed loop, each customer waiting for a random think time after
+ * each call, or</li>
+ * <li>in an open loop, calls being scheduled at a fixed target rate whatever
+ * the response times. Latencies are then measured from the scheduled start
+ * of each call, so that the queueing delay of a saturated system is not
+ * hidden.</li>
+ * </ul>
+ * At the end of the run, the throughput, error and rejection rates and
+ * latency percentiles of each operation are printed, and the total of the
+ * balances is checked against the deposits and withdrawals performed.
+ * <p>
+ * Parameters are given as <code>name=value</code> arguments after the
+ * connection parameters:
+ * <ul>
+ * <li><code>impl</code>: <code>impl</code>, <code>pooled</code>,
+ * <code>memory</code>, <code>group</code> or <code>sharded</code> (default
+ * <code>pooled</code>)</li>
+ * <li><code>shards</code>: for <code>sharded</code>, the comma separated urls
+ * of the databases of the shards other than the first one, given by the
+ * connection parameters; each may be a local MySQL instance on its own
+ * port</li>
+ * <li><code>customers</code>: the number of emulated customers (default 50)</li>
+ * <li><code>connections</code>: the pool size (default 20)</li>
+ * <li><code>accounts</code>: the number of accounts (default 10000)</li>
+ * <li><code>zipf</code>: the exponent of the Zipfian distribution, 0 for
+ * uniform (default 0.99)</li>
+ * <li><code>mix</code>: the weights of the operations (default
+ * <code>getBalance:60,deposit:10,withdraw:10,transfer:15,getOperations:5</code>)</li>
+ * <li><code>rate</code>: the target rate in calls per second, for an open
+ * loop (default 0: closed loop)</li>
+ * <li><code>think</code>: the mean think time in milliseconds, for a closed
+ * loop (default 10)</li>
+ * <li><code>duration</code>: the length of the run in seconds (default 60)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    //
+    // CONSTANTS
+    //
+    private static final String[] OPERATIONS = { "getBalance", "deposit", "withdraw", "transfer", "getOperations" };
+    private static final int GET_BALANCE = 0;
+    private static final int DEPOSIT = 1;
+    private static final int WITHDRAW = 2;
+    private static final int TRANSFER = 3;
+    private static final int GET_OPERATIONS = 4;
+
+    private static final double INITIAL_BALANCE = 10000.0;
+    private static final long HISTORY = 60 * 60 * 1000; // range of getOperations
+
+    //
+    // CLASS FIELDS
+    //
+    private static Map<String, String> params = new HashMap<String, String>();
+
+    private static double[] mix; // cumulative weights of the operations
+    private static Zipf zipf;
+    private static long intervalNanos; // between two scheduled calls (open loop)
+    private static long thinkMillis; // mean think time (closed loop)
+    private static long startNanos;
+    private static long endNanos;
+    private static final AtomicLong ticket = new AtomicLong(); // next scheduled call
+
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+    private static final AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+    private static final AtomicLong[] rejects = new AtomicLong[OPERATIONS.length];
+    private static final AtomicLong deposited = new AtomicLong(); // in cents
+    private static final AtomicLong withdrawn = new AtomicLong(); // in cents
+
+    //
+    // HELPER CLASSES
+    //
+
+    /**
+     * A generator of account numbers in [1, n] following a Zipfian
+     * distribution: number k is drawn with a probability proportional to
+     * 1/k^s.
+     */
+    static class Zipf {
+
+	private final double[] cdf;
+
+	Zipf(int n, double s) {
+	    cdf = new double[n];
+	    double sum = 0;
+	    for (int k = 1; k <= n; k++) {
+		sum += 1.0 / Math.pow(k, s);
+		cdf[k - 1] = sum;
+	    }
+	    for (int k = 0; k < n; k++) {
+		cdf[k] /= sum;
+	    }
+	}
+
+	int next(Random random) {
+	    double u = random.nextDouble();
+	    int lo = 0, hi = cdf.length - 1;
+	    while (lo < hi) {
+		int mid = (lo + hi) >>> 1;
+		if (cdf[mid] < u) {
+		    lo = mid + 1;
+		} else {
+		    hi = mid;
+		}
+	    }
+	    return lo + 1;
+	}
+    }
+
+    static class CustomerEmulator extends Thread {
+
+	private final BankManager manager;
+	private final Random random;
+
+	CustomerEmulator(BankManager m, String c, long seed) {
+	    super(c);
+	    manager = m;
+	    random = new Random(seed);
+	}
+
+	public void run() {
+	    while (true) {
+		long start;
+		if (intervalNanos > 0) {
+		    // open loop: wait for the next scheduled call
+		    start = startNanos + ticket.getAndIncrement() * intervalNanos;
+		    if (start >= endNanos) {
+			return;
+		    }
+		    sleepNanos(start - System.nanoTime());
+		} else {
+		    start = System.nanoTime();
+		    if (start >= endNanos) {
+			return;
+		    }
+		}
+
+		int op = operation();
+		try {
+		    if (!call(op)) {
+			rejects[op].incrementAndGet();
+		    }
+		} catch (SQLException e) {
+		    errors[op].incrementAndGet();
+		}
+		histograms[op].recordSince(start);
+
+		if (intervalNanos == 0 && thinkMillis > 0) {
+		    // closed loop: exponentially distributed think time
+		    sleepNanos((long) (-Math.log(1 - random.nextDouble()) * thinkMillis * 1e6));
+		}
+	    }
+	}
+
+	private int operation() {
+	    double u = random.nextDouble();
+	    int op = 0;
+	    while (mix[op] < u) {
+		op++;
+	    }
+	    return op;
+	}
+
+	// returns false if the operation was refused
+	private boolean call(int op) throws SQLException {
+	    int n = zipf.next(random);
+	    long cents = 100 + random.nextInt(10000);
+	    switch (op) {
+	    case GET_BALANCE:
+		manager.getBalance(n);
+		return true;
+	    case DEPOSIT:
+		// a deposit rejected by the database returns -1.0, as a refused
+		// withdrawal, and a deposit to a missing account returns 0
+		double balance = manager.addBalance(n, cents / 100.0);
+		if (balance == -1.0 || balance == 0) {
+		    return false;
+		}
+		deposited.addAndGet(cents);
+		return true;
+	    case WITHDRAW:
+		// a refused withdrawal returns -1.0 as per the BankManager interface
+		if (manager.addBalance(n, -cents / 100.0) == -1.0) {
+		    return false;
+		}
+		withdrawn.addAndGet(cents);
+		return true;
+	    case TRANSFER:
+		return manager.transfer(n, zipf.next(random), cents / 10.0);
+	    default:
+		Date now = new Date();
+		manager.getOperations(n, new Date(now.getTime() - HISTORY), now);
+		return true;
+	    }
+	}
+    }
+
+    //
+    // HELPER METHODS
+    //
+    private static String param(String name, String def) {
+	String v = params.get(name);
+	return v == null ? def : v;
+    }
+
+    private static void sleepNanos(long nanos) {
+	if (nanos > 0) {
+	    try {
+		Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    private static void parseMix(String spec) {
+	double[] weights = new double[OPERATIONS.length];
+	double total = 0;
+	for (String item : spec.split(",")) {
+	    String[] kv = item.split(":");
+	    int op = -1;
+	    for (int i = 0; i < OPERATIONS.length; i++) {
+		if (OPERATIONS[i].equals(kv[0].trim())) {
+		    op = i;
+		}
+	    }
+	    if (op < 0 || kv.length != 2) {
+		throw new IllegalArgumentException("invalid mix: " + item);
+	    }
+	    weights[op] = Double.parseDouble(kv[1]);
+	    total += weights[op];
+	}
+	mix = new double[OPERATIONS.length];
+	double sum = 0;
+	for (int i = 0; i < OPERATIONS.length; i++) {
+	    sum += weights[i];
+	    mix[i] = sum / total;
+	}
+	mix[OPERATIONS.length - 1] = 1.0;
+    }
+
+    //
+    // MAIN
+    //
+    public static void main(String[] args) {
+
+	// check parameters
+	if (args.length < 3) {
+	    System.err.println("usage: LoadGenerator <url> <user> <password> [name=value ...]");
+	    System.exit(-1);
+	}
+	for (int i = 3; i < args.length; i++) {
+	    int eq = args[i].indexOf('=');
+	    if (eq < 0) {
+		System.err.println("invalid parameter: " + args[i]);
+		System.exit(-1);
+	    }
+	    params.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+	}
+
+	BankManagerFactory factory = new BankManagerFactory(args[0], args[1], args[2]);
+	ShardedBankManager sharded = null;
+	try {
+	    String impl = param("impl", "pooled");
+	    int customers = Integer.parseInt(param("customers", "50"));
+	    int accounts = Integer.parseInt(param("accounts", "10000"));
+	    double rate = Double.parseDouble(param("rate", "0"));
+	    long duration = Long.parseLong(param("duration", "60"));
+	    parseMix(param("mix", "getBalance:60,deposit:10,withdraw:10,transfer:15,getOperations:5"));
+	    zipf = new Zipf(accounts, Double.parseDouble(param("zipf", "0.99")));
+	    intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+	    thinkMillis = Long.parseLong(param("think", "10"));
+	    factory.setMaxConnections(Integer.parseInt(param("connections", "20")));
+	    for (int i = 0; i < OPERATIONS.length; i++) {
+		histograms[i] = new LatencyHistogram();
+		errors[i] = new AtomicLong();
+		rejects[i] = new AtomicLong();
+	    }
+
+	    // create and populate the database
+	    BankManager setup = factory.newManager();
+	    if (impl.equals("sharded")) {
+		List<BankManagerFactory> shards = new ArrayList<BankManagerFactory>();
+		shards.add(factory);
+		for (String url : param("shards", "").split(",")) {
+		    if (url.length() > 0) {
+			BankManagerFactory f = new BankManagerFactory(url, args[1], args[2]);
+			f.setMaxConnections(factory.getMaxConnections());
+			shards.add(f);
+		    }
+		}
+		sharded = new ShardedBankManager(shards);
+		sharded.startResolver(1000);
+		setup = sharded;
+	    }
+	    setup.createDB();
+	    if (sharded != null) {
+		for (int i = 1; i <= accounts; i++) {
+		    setup.createAccount(i);
+		    setup.addBalance(i, INITIAL_BALANCE);
+		}
+	    } else {
+		new BulkLoader(factory).loadRange(1, accounts, INITIAL_BALANCE);
+	    }
+
+	    BankManager shared = sharded;
+	    if (impl.equals("memory")) {
+		shared = new InMemoryBankManager(factory);
+	    } else if (impl.equals("group")) {
+		shared = new GroupCommitBankManager(factory, 64, 200);
+	    }
+
+	    // run the customers
+	    System.out.println("Starting " + customers + " customers for " + duration + "s: " + params);
+	    List<CustomerEmulator> emulators = new ArrayList<CustomerEmulator>();
+	    startNanos = System.nanoTime();
+	    endNanos = startNanos + duration * 1000000000L;
+	    for (int i = 0; i < customers; i++) {
+		BankManager m = shared != null ? shared
+			: impl.equals("impl") ? new BankManagerImpl(args[0], args[1], args[2]) : factory.newManager();
+		CustomerEmulator c = new CustomerEmulator(m, "customer" + i, i);
+		emulators.add(c);
+		c.start();
+	    }
+	    for (CustomerEmulator c : emulators) {
+		c.join();
+	    }
+	    double elapsed = (System.nanoTime() - startNanos) / 1e9;
+
+	    // report
+	    long total = 0;
+	    for (int i = 0; i < OPERATIONS.length; i++) {
+		long n = histograms[i].getCount();
+		total += n;
+		if (n > 0) {
+		    System.out.println(String.format("%-14s %9.1f ops/s  errors=%.2f%%  rejects=%.2f%%  %s",
+			    OPERATIONS[i], n / elapsed, 100.0 * errors[i].get() / n, 100.0 * rejects[i].get() / n,
+			    histograms[i]));
+		}
+	    }
+	    System.out.println(String.format("total          %9.1f ops/s", total / elapsed));
+	    if (intervalNanos > 0 && total < rate * elapsed * 0.99) {
+		System.out.println("warning: target rate not reached, the system is saturated");
+	    }
+
+	    // check that no money was created or lost
+	    if (shared instanceof InMemoryBankManager) {
+		((InMemoryBankManager) shared).close();
+	    } else if (shared instanceof GroupCommitBankManager) {
+		((GroupCommitBankManager) shared).close();
+	    } else if (sharded != null) {
+		sharded.resolve();
+	    }
+	    double sum = 0;
+	    for (int i = 1; i <= accounts; i++) {
+		sum += setup.getBalance(i);
+	    }
+	    double expected = accounts * INITIAL_BALANCE + (deposited.get() - withdrawn.get()) / 100.0;
+	    boolean writeErrors = errors[DEPOSIT].get() + errors[WITHDRAW].get() + errors[TRANSFER].get() > 0;
+	    String r = "balance conservation: total=" + sum + ", expected=" + expected;
+	    if (Math.abs(sum - expected) < 0.005) {
+		System.out.println(r + ": ok");
+	    } else if (writeErrors) {
+		System.out.println(r + ": inconclusive, some updates failed with an error");
+	    } else {
+		System.out.println(r + ": FAILED");
+	    }
+	    System.out.println(factory.getPool());
+	    if (sharded != null) {
+		System.out.println(sharded);
+	    }
+	} catch (Exception e) {
+	    System.err.println("load aborted: " + e);
+	    e.printStackTrace();
+	} finally {
+	    if (sharded != null) {
+		sharded.close();
+		for (int i = 1; i < sharded.getShardCount(); i++) {
+		    sharded.getShard(i).close();
+		}
+	    }
+	    factory.close();
+	}
+    }
+}
@@ -1,12 +1,21 @@
 package test;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
+import bank.BalanceCheckpoints;
 import bank.BankManager;
+import bank.BankManagerFactory;
 import bank.BankManagerImpl;
 import bank.Operation;
+import bank.PooledBankManager;
+import bank.Transfer;
 
 /**
  * The squeleton of a simple test program for {@link BankManagerImpl}.
@@ -21,6 +30,22 @@ public class SimpleTest {
     //
     private static final int MAX_ACCOUNTS = 10;
     private static final int MAX_CUSTOMERS = 5;
+    private static final long HALF_DAY = 12 * 60 * 60 * 1000;
+
+    // spreads the operations over the last 9 days, and rebuilds their rollups
+    private static final String[] BACKDATE_OPERATIONS = {
+	    "update OPERATIONS set DATE = DATE - interval (ID % 9) day - interval (ID % 7) hour ;",
+	    "delete from OPERATIONS_HOURLY ;",
+	    "delete from OPERATIONS_DAILY ;",
+	    "delete from BALANCE_CHECKPOINTS ;",
+	    "insert into OPERATIONS_HOURLY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) "
+		    + "select NUMBER, DATE_FORMAT(DATE, '%Y-%m-%d %H:00:00'), count(*), "
+		    + "sum(greatest(ifnull(AMOUNT, 0), 0)), sum(greatest(-ifnull(AMOUNT, 0), 0)) "
+		    + "from OPERATIONS group by 1, 2 ;",
+	    "insert into OPERATIONS_DAILY(NUMBER, PERIOD_START, OPS, CREDITS, DEBITS) "
+		    + "select NUMBER, DATE(DATE), count(*), "
+		    + "sum(greatest(ifnull(AMOUNT, 0), 0)), sum(greatest(-ifnull(AMOUNT, 0), 0)) "
+		    + "from OPERATIONS group by 1, 2 ;" };
 
     //
     // CLASS FIELDS
@@ -87,7 +112,7 @@ public class SimpleTest {
     //
     // HELPER METHODS
     //
-    private static void check(String test, boolean ok) {
+    private static synchronized void check(String test, boolean ok) {
 		testTotal += 1;
 		System.out.print(test + ": ");
 		if (ok) {
@@ -147,6 +172,84 @@ public class SimpleTest {
 		
 		
 		
+    }
+
+    /**
+     * Checks that a batched transfer from an account to itself leaves its balance unchanged.
+     */
+    private static void batchTests(BankManagerFactory factory) throws SQLException {
+
+		PooledBankManager m = (PooledBankManager) factory.newManager();
+		double before = m.getBalance(1);
+		boolean[] done = m.transferAll(Arrays.asList(new Transfer(1, 1, 100.0)));
+		check("transferAll-self", done[0] && m.getBalance(1) == before);
+    }
+
+    /**
+     * Checks the balances at past dates, read from the checkpoints and the operations since,
+     * against the replay of the operations of each account up to the date. The operations
+     * are first spread over the last days, so that the days before today are checkpointed,
+     * then the checkpoints are compacted and the balances checked again.
+     */
+    private static void checkpointTests(BankManagerFactory factory, String url, String user, String password)
+	    throws SQLException {
+
+		PooledBankManager m = (PooledBankManager) factory.newManager();
+		for (int i = 1; i <= MAX_ACCOUNTS; i++) {
+		    m.createAccount(i);
+		    m.addBalance(i, 10.0 * i);
+		    m.addBalance(i, 5.0);
+		    m.addBalance(i, -2.5);
+		}
+		Connection con = DriverManager.getConnection(url, user, password);
+		try {
+		    Statement s = con.createStatement();
+		    for (String sql : BACKDATE_OPERATIONS) {
+			s.executeUpdate(sql);
+		    }
+		    s.close();
+		} finally {
+		    con.close();
+		}
+		BalanceCheckpoints checkpoints = new BalanceCheckpoints(factory);
+		check("checkpoint", checkpoints.checkpoint() > 0);
+		Date now = new Date();
+		checkBalancesAt(m, "getBalanceAt", now);
+		check("compact", checkpoints.compact(now) >= 0);
+		checkBalancesAt(m, "getBalanceAt-compacted", now);
+    }
+
+    /**
+     * Checks the balances of the accounts at the start of each of the last 10 days, just
+     * before it, at its middle, and now.
+     */
+    private static void checkBalancesAt(PooledBankManager m, String name, Date now) throws SQLException {
+
+		Calendar c = Calendar.getInstance();
+		c.setTime(now);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		long[] days = new long[10];
+		for (int day = 0; day < days.length; day++) {
+		    days[day] = c.getTimeInMillis();
+		    c.add(Calendar.DAY_OF_MONTH, -1);
+		}
+		for (int i = 1; i <= MAX_ACCOUNTS; i++) {
+		    boolean ok = Math.abs(m.getBalanceAt(i, now) - m.getBalance(i)) < 1e-6;
+		    for (long start : days) {
+			for (long t : new long[] { start - 1000, start, start + HALF_DAY }) {
+			    Date at = new Date(t);
+			    double replay = 0;
+			    for (Operation o : m.getOperations(i, new Date(0), at)) {
+				replay += o.getAmount();
+			    }
+			    ok &= Math.abs(m.getBalanceAt(i, at) - replay) < 1e-6;
+			}
+		    }
+		    check(name + "-" + i, ok);
+		}
     }
 
     //
@@ -183,9 +286,34 @@ public class SimpleTest {
 		    System.out.println("Preparing database for multi user tests...");
 		    manager.createDB();
 		    System.out.println("Starting multi user tests...");
+		    //customers share the connections of a pool instead of opening one each
+		    BankManagerFactory factory = new BankManagerFactory(args[0], args[1], args[2]);
+		    CustomerEmulator[] customers = new CustomerEmulator[MAX_CUSTOMERS];
+		    for (int i = 0; i < MAX_CUSTOMERS; i++) {
+			BankManager m = factory.newManager();
+			customers[i] = new CustomerEmulator(m, "multi-customer" + i);
+			customers[i].start();
+		    }
+		    //wait for all the customers before printing the results
+		    for (int i = 0; i < MAX_CUSTOMERS; i++) {
+			customers[i].join();
+		    }
+		    System.out.println("Starting batch tests...");
+		    batchTests(factory);
+		    System.out.println("Starting checkpoint tests...");
+		    checkpointTests(factory, args[0], args[1], args[2]);
+		    factory.close();
+
+		    //the customers now share a single manager, whose calls are serialized
+		    System.out.println("Preparing database for shared manager tests...");
+		    manager.createDB();
+		    System.out.println("Starting shared manager tests...");
+		    for (int i = 0; i < MAX_CUSTOMERS; i++) {
+			customers[i] = new CustomerEmulator(manager, "shared-customer" + i);
+			customers[i].start();
+		    }
 		    for (int i = 0; i < MAX_CUSTOMERS; i++) {
-			BankManager m = new BankManagerImpl(args[0], args[1], args[2]);
-			new CustomerEmulator(m, "multi-customer" + i).start();
+			customers[i].join();
 		    }
 		    
 		} catch (Exception e) {